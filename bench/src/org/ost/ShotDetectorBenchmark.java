@@ -0,0 +1,163 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the detectors' processAudio, in samples per second, over a fixed length of audio handed over a
+ * buffer at a time as {@link ShotString} does. Run with the GC profiler, which bench/build.gradle turns on, the
+ * allocation rate per operation is the allocation per sample and should be zero.
+ * <p>
+ * The shot signal is the recordings from test/samples back to back. They were recorded at 44.1 kHz, other sample
+ * rates play them faster or slower, which changes the detectors' windows and block sizes but not the work per sample
+ * much. Noise is Gaussian at roughly the level of a quiet room through the phone's microphone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShotDetectorBenchmark {
+
+    /**
+     * Frames of audio processed per benchmark operation, about 24 seconds at 44.1 kHz
+     */
+    private static final int SIGNAL_FRAMES = 1 << 20;
+
+    private static final String SAMPLES[] = new String[] {
+            "test/samples/android_rec.raw",
+            "test/samples/9_shots_bigendian.raw",
+            "test/samples/9_shots_bigendian_2.raw",
+            "test/samples/9_shots_bigendian_soft.raw",
+            "test/samples/android_rec_edited.raw" };
+
+    @Param({ "amplitude", "verified", "adaptive", "envelope", "spectral" })
+    public String detector;
+
+    @Param({ "256", "1024", "4096", "16384", "65536" })
+    public int bufferBytes;
+
+    @Param({ "false", "true" })
+    public boolean direct;
+
+    @Param({ "44100", "8000" })
+    public int sampleRate;
+
+    @Param({ "silence", "noise", "shots" })
+    public String signal;
+
+    private ByteBuffer m_signal;
+
+    private ShotDetector m_detector;
+
+    private final ShotEventBuffer m_events = new ShotEventBuffer();
+
+    @Setup(Level.Trial)
+    public void createSignal() throws IOException {
+        final byte bytes[] = new byte[SIGNAL_FRAMES * 2];
+        if (signal.equals("noise")) {
+            final Random random = new Random(42);
+            for (int ii = 0; ii < bytes.length; ii += 2) {
+                final int sample = (int)(random.nextGaussian() * 300);
+                bytes[ii] = (byte)sample;
+                bytes[ii + 1] = (byte)(sample >> 8);
+            }
+        } else if (signal.equals("shots")) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                for (int ii = 0; ii < SAMPLES.length && offset < bytes.length; ii++) {
+                    offset = readInto(new File(SAMPLES[ii]), bytes, offset);
+                }
+            }
+        } else if (!signal.equals("silence")) {
+            throw new IllegalArgumentException("Unknown signal " + signal);
+        }
+
+        if (direct) {
+            m_signal = ByteBuffer.allocateDirect(bytes.length);
+            m_signal.put(bytes);
+            m_signal.clear();
+        } else {
+            m_signal = ByteBuffer.wrap(bytes);
+        }
+        m_signal.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * A fresh detector each iteration so the results don't depend on how many operations earlier iterations got
+     * through. Within an iteration the detector carries on as the signal repeats.
+     */
+    @Setup(Level.Iteration)
+    public void createDetector() {
+        m_detector = ShotDetectorCli.createDetector(detector, sampleRate, PcmFormat.PCM_16BIT_MONO, 5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIGNAL_FRAMES)
+    public int processAudio() {
+        final ByteBuffer signal = m_signal;
+        final int capacity = signal.capacity();
+        int shots = 0;
+        for (int offset = 0; offset < capacity; offset += bufferBytes) {
+            signal.limit(Math.min(capacity, offset + bufferBytes));
+            signal.position(offset);
+            m_events.clear();
+            shots += m_detector.processAudio(signal, m_events);
+        }
+        return shots;
+    }
+
+    /**
+     * Read as much of the file as fits in bytes from offset
+     * @return Offset after what was read
+     */
+    private static int readInto(File file, byte bytes[], int offset) throws IOException {
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            int read;
+            while (offset < bytes.length && (read = fis.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return offset;
+    }
+}
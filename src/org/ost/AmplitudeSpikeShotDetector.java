@@ -17,83 +17,446 @@
  */
 package org.ost;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * With a .45 I found that it spikes at for 18 milliseconds with a dense number of samples and then drops off. 
  * When the first big sample comes in count it as a shot and then stop listening for .12 seconds.
+ * <p>
+ * With a {@link ShotVerifier} the spike is only a candidate. The last few hundred milliseconds of audio are kept in a
+ * {@link PreTriggerBuffer} and once the audio after the candidate has arrived the verifier gets a look at the
+ * window around it. Only the spikes are looked at twice, so the cost per sample is still that of the threshold scan.
+ * The hold off only starts once a candidate passes. One that fails holds off detection for a few milliseconds, and
+ * the audio after it is scanned again so a real shot right behind a false one still gets its look.
  *
  */
 public class AmplitudeSpikeShotDetector extends ShotDetector {
 
-    private short m_shotDetectionThreshhold = 32000;
+    /**
+     * Fixed threshold, and the ceiling for the adaptive threshold
+     */
+    public static final int DEFAULT_THRESHOLD = 32000;
     
-    private long m_ignoreUntilSample = -1;
+    /**
+     * Fixed threshold with a verifier. The verifier throws out the loud noises that a threshold this low lets
+     * through, and in return shots from further away are heard and their leading edge is timed more closely.
+     */
+    public static final int VERIFIED_THRESHOLD = 6000;
+    
+    /**
+     * The adaptive threshold never goes below this no matter how quiet it is
+     */
+    public static final int MIN_ADAPTIVE_THRESHOLD = 2000;
+    
+    /**
+     * The adaptive threshold is at least this many times the noise floor
+     */
+    private static final int NOISE_FLOOR_MARGIN = 6;
+    
+    /**
+     * Length of the blocks whose peaks feed the level estimates
+     */
+    private static final int LEVEL_BLOCK_MILLIS = 5;
+    
+    /**
+     * The recent peak level halves in about .9 seconds
+     */
+    private static final int PEAK_DECAY_SHIFT = 8;
+    
+    /**
+     * The adaptive threshold is 1/2^PEAK_MARGIN_SHIFT below the recent peak level
+     */
+    private static final int PEAK_MARGIN_SHIFT = 4;
     
-    private long m_lastShotSample = 0;
+    /**
+     * With an adaptive threshold a spike only counts if the level blocks from QUIET_MILLIS to ONSET_MILLIS
+     * before it stayed under the threshold. Shots rise out of something quieter, while handling noise and
+     * the echoes in a string keep the level up. The last ONSET_MILLIS are left out for the front of the shot.
+     */
+    private static final int QUIET_MILLIS = 50;
+    private static final int ONSET_MILLIS = 10;
+    
+    /**
+     * How long after a candidate that failed verification scanning starts again
+     */
+    private static final int RETRY_MILLIS = 10;
+    
+    private int m_shotDetectionThreshhold = DEFAULT_THRESHOLD;
+    
+    private long m_ignoreUntilSample = -1;
     
     private final int m_samplesAboveThresholdRequired;
     
-    private int shotCount;
+    /**
+     * Samples above threshold seen since the last shot. Kept across buffers so that
+     * detection doesn't depend on how the audio was split into reads.
+     */
+    private int m_samplesAboveThreshold = 0;
+    
+    /**
+     * Length of the window after a shot where no other shot is detected, in samples
+     */
+    private final long m_holdoffSamples;
+    
+    /**
+     * Whether the threshold follows the ambient level instead of staying at DEFAULT_THRESHOLD
+     */
+    private final boolean m_adaptive;
+    
+    /**
+     * Low quantile of the block peaks, the ambient noise level between shots and their echoes
+     */
+    private final StreamingQuantile m_noiseFloor;
+    
+    /**
+     * Loudest recent block peak, jumps up to any louder block and decays by 1/2^PEAK_DECAY_SHIFT a block
+     */
+    private int m_peakLevel = 0;
+    
+    private final int m_levelBlockLength;
+    
+    /**
+     * Samples and peak of the block being measured. Blocks are laid out on the timeline, not on buffers.
+     */
+    private int m_levelBlockFill = 0;
+    private int m_levelBlockPeak = 0;
+    
+    /**
+     * Peaks of the last QUIET_MILLIS worth of level blocks, indexed by block count
+     */
+    private final int m_recentPeaks[] = new int[QUIET_MILLIS / LEVEL_BLOCK_MILLIS];
+    private long m_levelBlocks = 0;
+    
+    /**
+     * Second stage check of candidates, null to emit every candidate as a shot
+     */
+    private final ShotVerifier m_verifier;
+    
+    /**
+     * Recent audio for the verifier, enough to cover a candidate's window
+     */
+    private final PreTriggerBuffer m_history;
+    
+    /**
+     * Scratch copy of a candidate's window handed to the verifier
+     */
+    private final short m_window[];
+    
+    /**
+     * Timeline index of the candidate waiting for the rest of its window to arrive, -1 for none.
+     * Scanning stops at a candidate until it has been verified.
+     */
+    private long m_candidate = -1;
+    
+    /**
+     * Next sample on the timeline to scan for candidates when verifying
+     */
+    private long m_scanSample;
+    
+    /**
+     * Samples skipped after a candidate that failed verification
+     */
+    private final long m_retrySamples;
     
     public AmplitudeSpikeShotDetector(
             int sampleRate,
             int sampleSizeInBits,
             int samplesAboveThresholdRequired) {
-        super(sampleRate, sampleSizeInBits);
+        this(sampleRate, PcmFormat.forSampleSize(sampleSizeInBits), samplesAboveThresholdRequired);
+    }
+    
+    public AmplitudeSpikeShotDetector(
+            int sampleRate,
+            PcmFormat format,
+            int samplesAboveThresholdRequired) {
+        this(sampleRate, format, samplesAboveThresholdRequired, false);
+    }
+    
+    /**
+     * @param adaptiveThreshold Derive the threshold from a running estimate of the noise floor and peak levels.
+     * The estimates are updated from the peak of every 5 milliseconds of audio in the same pass as detection,
+     * including during the first second that is ignored for detection. Spikes that don't rise out of quieter
+     * audio are passed over.
+     */
+    public AmplitudeSpikeShotDetector(
+            int sampleRate,
+            PcmFormat format,
+            int samplesAboveThresholdRequired,
+            boolean adaptiveThreshold) {
+        this(sampleRate, format, samplesAboveThresholdRequired, adaptiveThreshold, null);
+    }
+    
+    /**
+     * @param verifier Checks each candidate against the audio around it before it is reported as a shot, which lets
+     * the fixed threshold drop to VERIFIED_THRESHOLD. Shots are reported once the verifier's window after the
+     * candidate has been processed, or by {@link #flush(ShotEventBuffer)} at the end of the audio.
+     */
+    public AmplitudeSpikeShotDetector(
+            int sampleRate,
+            PcmFormat format,
+            int samplesAboveThresholdRequired,
+            boolean adaptiveThreshold,
+            ShotVerifier verifier) {
+        super(sampleRate, format);
         m_samplesAboveThresholdRequired = samplesAboveThresholdRequired + 1;
-        if (sampleSizeInBits != 16) {
-            throw new IllegalArgumentException("Only support 16 bit samples");
+        m_ignoreUntilSample = m_clock.millisToSamples(1000);
+        m_holdoffSamples = m_clock.millisToSamples(120);
+        m_adaptive = adaptiveThreshold;
+        m_noiseFloor = new StreamingQuantile(0.2, 4, 0);
+        m_levelBlockLength = (int)m_clock.millisToSamples(LEVEL_BLOCK_MILLIS);
+        m_verifier = verifier;
+        if (verifier != null && !adaptiveThreshold) {
+            m_shotDetectionThreshhold = VERIFIED_THRESHOLD;
+        }
+        m_scanSample = m_ignoreUntilSample;
+        m_retrySamples = m_clock.millisToSamples(RETRY_MILLIS);
+        if (verifier != null) {
+            final int pre = verifier.getPreTriggerSamples();
+            final int post = verifier.getPostTriggerSamples();
+            /*
+             * History is written at most post samples at a time and the candidate is verified after the first
+             * write that completes its window, so the oldest sample ever needed is less than pre + 2 * post back.
+             */
+            m_history = new PreTriggerBuffer(pre + 2 * post);
+            m_window = new short[pre + post];
+        } else {
+            m_history = null;
+            m_window = null;
         }
-        m_ignoreUntilSample = (long)(m_samplesPerMillisecond * 1000);
     }
     
+    /**
+     * A shot resets the count and the hold off. The level estimates and the history kept for
+     * the verifier carry further back.
+     */
     @Override
-    protected ShotEvent[] p_processAudio(ByteBuffer buffer) {
-        final int length = buffer.remaining();
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        ArrayList<ShotEvent> shotEvents = new ArrayList<ShotEvent>();
-        int sampleMax = 0;
+    public boolean isResetByShot() {
+        return !m_adaptive && m_verifier == null;
+    }
+    
+    public int getThreshold() {
+        return m_shotDetectionThreshhold;
+    }
+    
+    /**
+     * Estimated ambient noise level, only maintained with an adaptive threshold
+     */
+    public int getNoiseFloor() {
+        return m_noiseFloor.getEstimate();
+    }
+    
+    /**
+     * Estimated level of the loudest sounds, only maintained with an adaptive threshold
+     */
+    public int getPeakLevel() {
+        return m_peakLevel;
+    }
+    
+    @Override
+    protected void p_processSamples(short samples[], int offset, int length, ShotEventBuffer shotEvents) {
+        final int end = offset + length;
+        if (m_verifier == null) {
+            detect(samples, offset, offset, end, shotEvents);
+            return;
+        }
+        
+        /*
+         * Record and verify a piece at a time so the history only has to
+         * reach back a piece from the end of the candidate's window.
+         */
+        final int pieceLength = m_verifier.getPostTriggerSamples();
+        int position = offset;
+        while (position < end) {
+            final int pieceEnd = Math.min(end, position + pieceLength);
+            if (m_adaptive) {
+                detect(samples, offset, position, pieceEnd, shotEvents);
+            }
+            m_history.write(samples, position, pieceEnd - position);
+            scanAndVerify(samples, offset, m_currentSample + (pieceEnd - offset), false, shotEvents);
+            position = pieceEnd;
+        }
+    }
+    
+    /**
+     * Verify the candidate still waiting on audio after it as if the audio had gone silent
+     */
+    @Override
+    protected void p_flush(ShotEventBuffer shotEvents) {
+        if (m_verifier != null) {
+            scanAndVerify(null, 0, m_currentSample, true, shotEvents);
+        }
+    }
+    
+    /**
+     * Scan the audio up to <tt>end</tt> on the timeline for candidates, verifying each one once its whole window
+     * is in the history. Audio from m_currentSample on is in <tt>samples</tt> starting at <tt>offset</tt>, audio
+     * from before it that is scanned again after a candidate failed is read back from the history.
+     * @param flush No more audio is coming, pad the window of the last candidate with silence
+     */
+    private void scanAndVerify(short samples[], int offset, long end, boolean flush, ShotEventBuffer shotEvents) {
+        final int pre = m_verifier.getPreTriggerSamples();
+        final int post = m_verifier.getPostTriggerSamples();
+        while (true) {
+            if (m_candidate >= 0) {
+                final long windowStart = m_candidate - pre;
+                if (m_candidate + post <= end) {
+                    m_history.read(windowStart, m_window, 0, pre + post);
+                } else if (flush) {
+                    final int available = (int)(end - windowStart);
+                    m_history.read(windowStart, m_window, 0, available);
+                    Arrays.fill(m_window, available, pre + post, (short)0);
+                } else {
+                    return;
+                }
+                if (m_verifier.verify(m_window)) {
+                    addShot(shotEvents, m_candidate);
+                    m_scanSample = m_candidate + m_holdoffSamples;
+                } else {
+                    m_scanSample = m_candidate + m_retrySamples;
+                }
+                m_candidate = -1;
+            }
+            if (m_scanSample >= end) {
+                return;
+            }
+            if (m_scanSample < m_currentSample) {
+                final int length = (int)Math.min(m_window.length, Math.min(end, m_currentSample) - m_scanSample);
+                m_history.read(m_scanSample, m_window, 0, length);
+                findCandidate(m_window, 0, length, m_scanSample);
+            } else {
+                findCandidate(
+                        samples,
+                        offset + (int)(m_scanSample - m_currentSample),
+                        offset + (int)(end - m_currentSample),
+                        m_scanSample);
+            }
+        }
+    }
+    
+    /**
+     * Look for a candidate in <tt>samples[from, to)</tt>, which starts at <tt>fromSample</tt> on the timeline.
+     * Either sets the candidate or moves the scan past <tt>to</tt>.
+     */
+    private void findCandidate(short samples[], int from, int to, long fromSample) {
+        int position = from;
+        while (position < to) {
+            final int index =
+                ThresholdScanner.indexOfAbove(samples, position, to, m_shotDetectionThreshhold);
+            if (index < 0) {
+                break;
+            }
+            position = index + 1;
+            m_samplesAboveThreshold++;
+            if (m_samplesAboveThreshold < m_samplesAboveThresholdRequired) {
+                continue;
+            }
+            m_samplesAboveThreshold = 0;
+            m_candidate = fromSample + (index - from);
+            m_scanSample = m_candidate;
+            return;
+        }
+        m_scanSample = fromSample + (to - from);
+    }
+    
+    /**
+     * Look for shots in <tt>samples[from, to)</tt> and keep the level estimates up to date. The sample at
+     * <tt>offset</tt> is at m_currentSample on the timeline. With a verifier only the levels are measured here.
+     */
+    private void detect(short samples[], int offset, int from, int to, ShotEventBuffer shotEvents) {
+        if (!m_adaptive) {
+            scan(samples, offset, from, to, shotEvents);
+            return;
+        }
+        
+        /*
+         * Walk the buffer a level block at a time. Each segment is still in cache
+         * from measuring its peak when it is scanned for shots.
+         */
+        int position = from;
+        while (position < to) {
+            final int segmentEnd = Math.min(to, position + (m_levelBlockLength - m_levelBlockFill));
+            m_levelBlockPeak =
+                Math.max(m_levelBlockPeak, ThresholdScanner.peak(samples, position, segmentEnd));
+            if (m_verifier == null) {
+                scan(samples, offset, position, segmentEnd, shotEvents);
+            }
+            m_levelBlockFill += segmentEnd - position;
+            if (m_levelBlockFill == m_levelBlockLength) {
+                m_noiseFloor.update(m_levelBlockPeak);
+                m_recentPeaks[(int)(m_levelBlocks++ % m_recentPeaks.length)] = m_levelBlockPeak;
+                m_peakLevel = Math.max(m_levelBlockPeak, m_peakLevel - (m_peakLevel >> PEAK_DECAY_SHIFT));
+                m_shotDetectionThreshhold = adaptiveThreshold();
+                m_levelBlockFill = 0;
+                m_levelBlockPeak = 0;
+            }
+            position = segmentEnd;
+        }
+    }
+    
+    /**
+     * Threshold well clear of the noise floor, and close enough to the level of the last
+     * loud sound that its echoes don't count, kept between the limits.
+     */
+    private int adaptiveThreshold() {
+        final int floor = m_noiseFloor.getEstimate();
+        final int threshold = Math.max(floor * NOISE_FLOOR_MARGIN, m_peakLevel - (m_peakLevel >> PEAK_MARGIN_SHIFT));
+        return Math.max(MIN_ADAPTIVE_THRESHOLD, Math.min(DEFAULT_THRESHOLD, threshold));
+    }
+    
+    /**
+     * Whether the level blocks from QUIET_MILLIS to ONSET_MILLIS before the current one were under the threshold
+     */
+    private boolean quietBefore() {
+        final int blocks = m_recentPeaks.length;
+        for (int ii = ONSET_MILLIS / LEVEL_BLOCK_MILLIS; ii < blocks; ii++) {
+            if (m_recentPeaks[(int)((m_levelBlocks - 1 - ii + blocks) % blocks)] > m_shotDetectionThreshhold) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Look for shots in <tt>samples[from, to)</tt>. The sample at <tt>offset</tt> is at m_currentSample on the timeline.
+     */
+    private void scan(short samples[], int offset, int from, int to, ShotEventBuffer shotEvents) {
+        int position = from;
         
         if (m_ignoreUntilSample > 0) {
-            int bufferLength = (length / m_sampleSizeInBytes);
-            if (m_currentSample + bufferLength < m_ignoreUntilSample) {
-                return new ShotEvent[0];
+            if (m_currentSample + (to - offset) < m_ignoreUntilSample) {
+                return;
             } else {
-                buffer.position((int)(m_ignoreUntilSample - m_currentSample));
+                position = Math.max(from, offset + (int)(m_ignoreUntilSample - m_currentSample));
                 m_ignoreUntilSample = -1;
             }
         }
         
-        int samplesAboveThreshold = 0;
-        while (buffer.hasRemaining()) {
-            short sample = (short)Math.abs((int)buffer.getShort());
-            sampleMax = Math.max( sample, sampleMax);
-            if (sample > m_shotDetectionThreshhold) {
-                samplesAboveThreshold++;
-                if (samplesAboveThreshold < m_samplesAboveThresholdRequired) {
-                    continue;
-                }
-                samplesAboveThreshold = 0;
-                final long currentSample =  m_currentSample + buffer.position();
-                m_ignoreUntilSample = currentSample + (long)(m_samplesPerMillisecond * 120);
-                final long shotTime = (long)(currentSample / m_samplesPerMillisecond);
-                final long split = (long)((currentSample - m_lastShotSample) / m_samplesPerMillisecond);
-                m_lastShotSample = currentSample;
-                shotEvents.add(new ShotEvent(++shotCount, shotTime, split));
-                final int remaining = buffer.remaining();
-                final long currentSamplePlusRemaining = currentSample + remaining;
-                if( currentSamplePlusRemaining > m_ignoreUntilSample ) {
-                    buffer.position((int)(buffer.position() + (m_ignoreUntilSample - currentSample)));
-                    m_ignoreUntilSample = -1;
-                } else {
-                    break;
-                }
+        while (position < to) {
+            final int index =
+                ThresholdScanner.indexOfAbove(samples, position, to, m_shotDetectionThreshhold);
+            if (index < 0) {
+                break;
+            }
+            position = index + 1;
+            m_samplesAboveThreshold++;
+            if (m_samplesAboveThreshold < m_samplesAboveThresholdRequired) {
+                continue;
+            }
+            m_samplesAboveThreshold = 0;
+            if (m_adaptive && !quietBefore()) {
+                continue;
+            }
+            final long currentSample = m_currentSample + (index - offset);
+            m_ignoreUntilSample = currentSample + m_holdoffSamples;
+            addShot(shotEvents, currentSample);
+            final long currentSamplePlusRemaining = m_currentSample + (to - offset);
+            if( currentSamplePlusRemaining > m_ignoreUntilSample ) {
+                position = offset + (int)(m_ignoreUntilSample - m_currentSample);
+                m_ignoreUntilSample = -1;
+            } else {
+                break;
             }
         }
-        return shotEvents.toArray(new ShotEvent[shotEvents.size()]);
     }
     
 }
\ No newline at end of file
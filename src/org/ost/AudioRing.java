@@ -0,0 +1,330 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands captured audio from the capture thread to the thread running the detector through a fixed ring of direct
+ * buffers, so a slow detector or listener never holds up the next read from the hardware.
+ * <p>
+ * There must be exactly one producer and one consumer. The producer claims a buffer, fills it and publishes it. The
+ * consumer takes the oldest published buffer, processes it and releases it. Each side only writes its own volatile
+ * counter, so there are no locks, and nothing is allocated after construction. The consumer parks when the ring is
+ * empty and the producer only unparks it when it is actually waiting.
+ * <p>
+ * When the consumer falls so far behind that the ring is full, the producer is handed a spare buffer to read into
+ * and its contents are thrown away when published. That keeps the hardware drained instead of letting it overrun.
+ * The lost audio is counted, and the number of bytes lost just before a buffer is available with it, so the
+ * consumer can keep its timeline in step with the audio that was actually captured.
+ * <p>
+ * There can also be one trailing reader, for work like recording the audio that must never hold up capture or
+ * detection. It reads published buffers through its own views of the slots and isn't waited for, so if it falls a
+ * whole ring behind the producer it is skipped ahead, and it finds out afterwards when a buffer it was reading was
+ * overwritten. Every published buffer carries its offset in the stream of captured bytes, lost bytes included, so
+ * the trailing reader always knows how much it missed.
+ */
+public final class AudioRing {
+
+    private final ByteBuffer m_slots[];
+
+    /**
+     * Bytes lost to overflow just before the audio in each slot
+     */
+    private final long m_lostBefore[];
+
+    /**
+     * Offset in the captured stream of the audio in each slot, including bytes lost to overflow
+     */
+    private final long m_offsets[];
+
+    /**
+     * Trailing reader's views of the slots, so it has its own positions and limits
+     */
+    private final ByteBuffer m_trailViews[];
+
+    /**
+     * Read into and discarded when the ring is full
+     */
+    private final ByteBuffer m_spare;
+
+    /**
+     * Number of buffers published and released since construction. The difference is the number in the ring.
+     */
+    private volatile long m_published = 0;
+    private volatile long m_released = 0;
+
+    /**
+     * Producer's state. Whether the claimed buffer is the spare, and the bytes lost since the last buffer published.
+     */
+    private boolean m_claimedSpare = false;
+    private long m_pendingLost = 0;
+
+    /**
+     * Bytes captured, lost included, written by the producer
+     */
+    private volatile long m_streamBytes = 0;
+
+    /**
+     * Trailing reader's state. The index of the next buffer to read and the offset in the stream it has read up to.
+     */
+    private long m_trailed = 0;
+    private long m_trailOffset = 0;
+
+    /**
+     * Where the buffer last returned to the trailing reader starts and ends in the stream, taken before the producer
+     * can get a ring ahead and overwrite them
+     */
+    private long m_trailStart = 0;
+    private long m_trailEnd = 0;
+
+    /**
+     * Totals, written only by the producer
+     */
+    private volatile long m_overflows = 0;
+    private volatile long m_lostBytes = 0;
+
+    /**
+     * Set while the consumer is parked waiting for a buffer
+     */
+    private volatile Thread m_waiting = null;
+
+    /**
+     * Set while the trailing reader is parked waiting for a buffer
+     */
+    private volatile Thread m_trailWaiting = null;
+
+    /**
+     * @param slots Number of buffers in the ring
+     * @param slotBytes Size of each buffer, the most that can be read at once
+     */
+    public AudioRing(int slots, int slotBytes) {
+        if (slots < 2 || slotBytes < 1) {
+            throw new IllegalArgumentException("Need at least two slots of at least one byte, got " +
+                    slots + " slots of " + slotBytes + " bytes");
+        }
+        m_slots = new ByteBuffer[slots];
+        for (int ii = 0; ii < slots; ii++) {
+            m_slots[ii] = ByteBuffer.allocateDirect(slotBytes);
+        }
+        m_lostBefore = new long[slots];
+        m_offsets = new long[slots];
+        m_trailViews = new ByteBuffer[slots];
+        for (int ii = 0; ii < slots; ii++) {
+            m_trailViews[ii] = m_slots[ii].duplicate();
+        }
+        m_spare = ByteBuffer.allocateDirect(slotBytes);
+    }
+
+    public int getSlotCount() {
+        return m_slots.length;
+    }
+
+    public int getSlotBytes() {
+        return m_spare.capacity();
+    }
+
+    /**
+     * Number of buffers that had to be thrown away because the ring was full
+     */
+    public long getOverflows() {
+        return m_overflows;
+    }
+
+    /**
+     * Number of bytes of audio that had to be thrown away because the ring was full
+     */
+    public long getLostBytes() {
+        return m_lostBytes;
+    }
+
+    /**
+     * Number of published buffers waiting for the consumer
+     */
+    public int size() {
+        return (int)(m_published - m_released);
+    }
+
+    /**
+     * Called by the producer for the buffer to read the next audio into, cleared. If the ring is full this is
+     * a spare buffer that will be discarded when published.
+     */
+    public ByteBuffer claim() {
+        m_claimedSpare = m_published - m_released == m_slots.length;
+        final ByteBuffer b = m_claimedSpare ? m_spare : m_slots[(int)(m_published % m_slots.length)];
+        b.clear();
+        return b;
+    }
+
+    /**
+     * Called by the producer before it starts on audio that doesn't follow on from what it published last,
+     * so audio lost at the end of the last recording isn't reported before the first buffer of the next
+     */
+    public void restart() {
+        m_pendingLost = 0;
+    }
+
+    /**
+     * Called by the producer once <tt>length</tt> bytes have been read into the start of the claimed buffer
+     */
+    public void publish(int length) {
+        if (m_claimedSpare) {
+            m_pendingLost += length;
+            m_lostBytes += length;
+            m_overflows++;
+            m_streamBytes += length;
+            return;
+        }
+        final int slot = (int)(m_published % m_slots.length);
+        final ByteBuffer b = m_slots[slot];
+        b.limit(length);
+        b.position(0);
+        m_lostBefore[slot] = m_pendingLost;
+        m_pendingLost = 0;
+        m_offsets[slot] = m_streamBytes;
+        m_streamBytes += length;
+        // The volatile write makes the buffer's contents visible to the consumer
+        m_published++;
+        final Thread waiting = m_waiting;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        final Thread trailWaiting = m_trailWaiting;
+        if (trailWaiting != null) {
+            LockSupport.unpark(trailWaiting);
+        }
+    }
+
+    /**
+     * Called by the consumer for the oldest published buffer, positioned at its audio. Waits for up to the timeout
+     * if the ring is empty. The buffer belongs to the consumer until it is {@link #release() released}.
+     * @return The buffer, or null if none was published in time
+     */
+    public ByteBuffer take(long timeoutNanos) {
+        if (m_published == m_released) {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            m_waiting = Thread.currentThread();
+            try {
+                // Published is read after waiting is set and the producer reads waiting after publishing,
+                // so a buffer published while parking always unparks this thread
+                long remaining = timeoutNanos;
+                while (m_published == m_released && remaining > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+            } finally {
+                m_waiting = null;
+            }
+            if (m_published == m_released) {
+                return null;
+            }
+        }
+        return m_slots[(int)(m_released % m_slots.length)];
+    }
+
+    /**
+     * Bytes of audio lost just before the buffer last taken
+     */
+    public long getLostBefore() {
+        return m_lostBefore[(int)(m_released % m_slots.length)];
+    }
+
+    /**
+     * Called by the consumer when it is done with the buffer from {@link #take(long)}
+     */
+    public void release() {
+        m_released++;
+    }
+
+    /**
+     * Start the trailing reader at the next buffer to be published. Called before it starts reading, while
+     * nothing is being published.
+     */
+    public void startTrailing() {
+        m_trailed = m_published;
+        m_trailOffset = m_streamBytes;
+    }
+
+    /**
+     * Called by the trailing reader for the next published buffer, waiting up to the timeout if there isn't one.
+     * If the reader has fallen a whole ring behind it skips to the oldest buffer that is safe to read. The view
+     * is positioned at the audio, and {@link #getTrailGap()} is how many bytes were skipped or lost before it.
+     * @return A view of the buffer, or null if none was published in time
+     */
+    public ByteBuffer trail(long timeoutNanos) {
+        if (m_published == m_trailed) {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            m_trailWaiting = Thread.currentThread();
+            try {
+                long remaining = timeoutNanos;
+                while (m_published == m_trailed && remaining > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+            } finally {
+                m_trailWaiting = null;
+            }
+            if (m_published == m_trailed) {
+                return null;
+            }
+        }
+        // The producer may already be writing into the slot of the buffer a ring after the last one published
+        final long oldestSafe = m_published - m_slots.length + 1;
+        if (m_trailed < oldestSafe) {
+            m_trailed = oldestSafe;
+        }
+        final int slot = (int)(m_trailed % m_slots.length);
+        final ByteBuffer view = m_trailViews[slot];
+        view.limit(m_slots[slot].limit());
+        view.position(0);
+        m_trailStart = m_offsets[slot];
+        m_trailEnd = m_trailStart + view.limit();
+        return view;
+    }
+
+    /**
+     * Bytes of the stream between what the trailing reader has read and the buffer last returned by
+     * {@link #trail(long)}, lost to overflow or skipped because the reader fell behind
+     */
+    public long getTrailGap() {
+        return m_trailStart - m_trailOffset;
+    }
+
+    /**
+     * Called by the trailing reader after reading some of the buffer from {@link #trail(long)}
+     * @return False if the producer may have overwritten the buffer, so what was read from it can't be trusted
+     */
+    public boolean trailIntact() {
+        return m_published - m_trailed < m_slots.length;
+    }
+
+    /**
+     * Called by the trailing reader when it is done with the buffer from {@link #trail(long)}
+     */
+    public void trailRelease() {
+        m_trailOffset = m_trailEnd;
+        m_trailed++;
+    }
+}
@@ -0,0 +1,80 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Maps instants of {@link System#nanoTime()} to sample indexes on the capture timeline, so something that happens
+ * on another thread, like the start signal, can be placed among the captured samples.
+ * <p>
+ * The capture thread calls {@link #update(long, long)} after every read with the number of frames captured so far and
+ * when the read returned. An instant is placed by extrapolating from the latest read at the sample rate. That is
+ * as good as the read times, audio spends a while in the hardware before a read returns it, so the result can be
+ * early by up to the hardware's buffering. One writer and any number of readers, the anchor is published with a
+ * version so a reader never mixes the frames of one read with the time of another, and nothing is allocated.
+ */
+public final class CaptureTimeline {
+
+    private final SampleClock m_clock;
+
+    /**
+     * Odd while the anchor is being written
+     */
+    private volatile int m_version = 0;
+
+    private volatile long m_frames = 0;
+
+    private volatile long m_nanos;
+
+    public CaptureTimeline(SampleClock clock) {
+        m_clock = clock;
+        m_nanos = System.nanoTime();
+    }
+
+    public SampleClock getClock() {
+        return m_clock;
+    }
+
+    /**
+     * Called by the capture thread
+     * @param frames Frames captured so far, including any lost
+     * @param nanos When the last of them was read
+     */
+    public void update(long frames, long nanos) {
+        m_version++;
+        m_frames = frames;
+        m_nanos = nanos;
+        m_version++;
+    }
+
+    /**
+     * Sample on the capture timeline that was being captured at the instant, never before the first
+     */
+    public long sampleAt(long nanos) {
+        long frames;
+        long anchorNanos;
+        int version;
+        do {
+            version = m_version;
+            frames = m_frames;
+            anchorNanos = m_nanos;
+        } while ((version & 1) != 0 || version != m_version);
+        final long deltaNanos = nanos - anchorNanos;
+        final long deltaSamples = deltaNanos / 1000 * m_clock.getSampleRate() / 1000000;
+        return Math.max(0, frames + deltaSamples);
+    }
+}
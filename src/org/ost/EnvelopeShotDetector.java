@@ -0,0 +1,150 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Detects shots from the short-window energy of the signal instead of individual peaks.
+ * <p>
+ * The energy of the last <tt>windowMillis</tt> of audio is kept as a running sum of squared samples. Each sample
+ * adds its square and subtracts the square of the sample leaving the window, which is kept in a preallocated ring,
+ * so a sample costs the same few integer operations whatever the window length. A shot is counted when the windowed
+ * energy crosses the trigger level. The detector then waits out the same .12 second hold off as
+ * AmplitudeSpikeShotDetector and re-arms once the energy falls below three quarters of the trigger RMS, so
+ * the tail of a shot or its echo off the berm isn't counted again.
+ * <p>
+ * Comparing energy instead of counting samples above a threshold means a microphone that clips flat, or an AGC
+ * that pulls the peaks down, still produces the same energy for the same blast. Levels are compared as sums of
+ * squares so there are no square roots or divisions per sample.
+ */
+public class EnvelopeShotDetector extends ShotDetector {
+
+    /**
+     * Default window, about the length of the initial blast of a pistol shot
+     */
+    public static final int DEFAULT_WINDOW_MILLIS = 5;
+
+    /**
+     * Default trigger level as an RMS value on the 16-bit scale
+     */
+    public static final int DEFAULT_TRIGGER_RMS = 16000;
+
+    /**
+     * Squares of the samples currently in the window
+     */
+    private final int m_window[];
+    private int m_windowIndex = 0;
+
+    /**
+     * Sum of m_window
+     */
+    private long m_energy = 0;
+
+    /**
+     * Windowed energy a shot has to exceed, trigger RMS squared times the window length
+     */
+    private final long m_triggerEnergy;
+
+    /**
+     * Windowed energy the signal has to drop below before another shot can be detected
+     */
+    private final long m_releaseEnergy;
+
+    /**
+     * No shots are detected before this sample. Covers the start up time and the hold off after a shot.
+     */
+    private long m_ignoreUntilSample;
+
+    private final long m_holdoffSamples;
+
+    /**
+     * Whether the energy has dropped below the release level since the last shot
+     */
+    private boolean m_armed = true;
+
+    public EnvelopeShotDetector(int sampleRate, PcmFormat format) {
+        this(sampleRate, format, DEFAULT_WINDOW_MILLIS, DEFAULT_TRIGGER_RMS);
+    }
+
+    /**
+     * @param windowMillis Length of the energy window
+     * @param triggerRms RMS level of the window that counts as a shot, 1 - 32767
+     */
+    public EnvelopeShotDetector(int sampleRate, PcmFormat format, int windowMillis, int triggerRms) {
+        super(sampleRate, format);
+        if (triggerRms < 1 || triggerRms > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Trigger RMS must be 1 - 32767, got " + triggerRms);
+        }
+        final int windowLength = (int)Math.max(1, m_clock.millisToSamples(windowMillis));
+        m_window = new int[windowLength];
+        m_triggerEnergy = (long)triggerRms * triggerRms * windowLength;
+        final long releaseRms = triggerRms * 3 / 4;
+        m_releaseEnergy = releaseRms * releaseRms * windowLength;
+        m_ignoreUntilSample = m_clock.millisToSamples(1000);
+        m_holdoffSamples = m_clock.millisToSamples(120);
+    }
+
+    public int getWindowLength() {
+        return m_window.length;
+    }
+
+    /**
+     * A shot disarms the detector and starts the hold off, and the energy only covers the last window of audio
+     */
+    @Override
+    public boolean isResetByShot() {
+        return true;
+    }
+
+    @Override
+    protected void p_processSamples(short samples[], int offset, int length, ShotEventBuffer events) {
+        final int window[] = m_window;
+        final int windowLength = window.length;
+        final long triggerEnergy = m_triggerEnergy;
+        final long releaseEnergy = m_releaseEnergy;
+        int windowIndex = m_windowIndex;
+        long energy = m_energy;
+        boolean armed = m_armed;
+
+        for (int ii = 0; ii < length; ii++) {
+            final int sample = samples[offset + ii];
+            final int square = sample * sample;
+            energy += square - window[windowIndex];
+            window[windowIndex] = square;
+            if (++windowIndex == windowLength) {
+                windowIndex = 0;
+            }
+
+            if (armed) {
+                if (energy > triggerEnergy) {
+                    final long currentSample = m_currentSample + ii;
+                    if (currentSample >= m_ignoreUntilSample) {
+                        addShot(events, currentSample);
+                        m_ignoreUntilSample = currentSample + m_holdoffSamples;
+                        armed = false;
+                    }
+                }
+            } else if (energy < releaseEnergy && m_currentSample + ii >= m_ignoreUntilSample) {
+                armed = true;
+            }
+        }
+
+        m_windowIndex = windowIndex;
+        m_energy = energy;
+        m_armed = armed;
+    }
+}
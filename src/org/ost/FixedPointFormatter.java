@@ -0,0 +1,82 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Formats shot numbers and times into a caller's char array with integer arithmetic only, so filling in
+ * the shot table doesn't create formatters, strings or boxed numbers for every shot.
+ */
+public final class FixedPointFormatter {
+
+    /**
+     * Most chars either method writes, enough for any long with its sign and a decimal point
+     */
+    public static final int MAX_LENGTH = 21;
+
+    private FixedPointFormatter() {}
+
+    /**
+     * Write a whole number in decimal, any long including Long.MIN_VALUE
+     * @return Number of chars written
+     */
+    public static int formatInteger(long value, char out[], int offset) {
+        if (value < 0) {
+            out[offset] = '-';
+            return 1 + formatNegated(value, out, offset + 1, 1);
+        }
+        return formatNegated(-value, out, offset, 1);
+    }
+
+    /**
+     * Write microseconds as seconds to two decimal places, rounding halves away from zero like
+     * <tt>printf("%.2f")</tt>, so 1234567 is 1.23 and 5000 is 0.01. Any long including Long.MIN_VALUE.
+     * @return Number of chars written
+     */
+    public static int formatSeconds(long micros, char out[], int offset) {
+        int length = 0;
+        if (micros < 0) {
+            out[offset] = '-';
+            length = 1;
+        }
+        // Negative magnitudes reach Long.MIN_VALUE, positive ones would overflow negating it
+        final long negated = micros < 0 ? micros : -micros;
+        final long hundredths = negated / 10000 - (negated % 10000 <= -5000 ? 1 : 0);
+        length += formatNegated(hundredths / 100, out, offset + length, 1);
+        out[offset + length++] = '.';
+        length += formatNegated(hundredths % 100, out, offset + length, 2);
+        return length;
+    }
+
+    /**
+     * Write the magnitude of a value that is zero or negative with at least <tt>minDigits</tt> digits, padded with
+     * leading zeros
+     */
+    private static int formatNegated(long value, char out[], int offset, int minDigits) {
+        int digits = 1;
+        for (long remaining = value / 10; remaining < 0; remaining /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        long remaining = value;
+        for (int ii = offset + digits - 1; ii >= offset; ii--) {
+            out[ii] = (char)('0' - remaining % 10);
+            remaining /= 10;
+        }
+        return digits;
+    }
+}
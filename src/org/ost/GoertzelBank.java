@@ -0,0 +1,132 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Measures the energy of fixed length blocks in a few frequency bands with a bank of Goertzel filters.
+ * <p>
+ * Each band is sampled at a handful of evenly spaced frequencies. The filter coefficients are computed once for the
+ * block length and there is no other state, so measuring doesn't allocate and one bank can be shared by
+ * everything that measures blocks of the same length. Each bin costs one multiply and two adds per sample.
+ */
+public final class GoertzelBank {
+
+    /**
+     * A frequency range sampled at a few evenly spaced Goertzel bins
+     */
+    public static final class Band {
+        public final int m_lowHz;
+        public final int m_highHz;
+        public final int m_bins;
+
+        public Band(int lowHz, int highHz, int bins) {
+            if (lowHz <= 0 || highHz < lowHz || bins < 1) {
+                throw new IllegalArgumentException("Bad band " + lowHz + " - " + highHz + " Hz with " + bins + " bins");
+            }
+            m_lowHz = lowHz;
+            m_highHz = highHz;
+            m_bins = bins;
+        }
+    }
+
+    private final int m_blockLength;
+
+    /**
+     * Goertzel coefficient 2cos(2 pi k / N) for every bin, band by band
+     */
+    private final float m_coefficients[];
+
+    /**
+     * Index into m_coefficients where each band starts, with an extra entry for the end of the last band
+     */
+    private final int m_bandStarts[];
+
+    public GoertzelBank(int sampleRate, int blockLength, Band bands[]) {
+        if (blockLength < 16) {
+            throw new IllegalArgumentException("Block of " + blockLength + " samples is too short");
+        }
+        m_blockLength = blockLength;
+
+        int bins = 0;
+        for (Band band : bands) {
+            bins += band.m_bins;
+        }
+        m_coefficients = new float[bins];
+        m_bandStarts = new int[bands.length + 1];
+
+        int bin = 0;
+        for (int ii = 0; ii < bands.length; ii++) {
+            final Band band = bands[ii];
+            if (band.m_highHz * 2 >= sampleRate) {
+                throw new IllegalArgumentException("Band up to " + band.m_highHz + " Hz is above Nyquist for " + sampleRate + " Hz");
+            }
+            m_bandStarts[ii] = bin;
+            for (int jj = 0; jj < band.m_bins; jj++) {
+                final double hz = band.m_bins == 1 ?
+                        (band.m_lowHz + band.m_highHz) / 2.0 :
+                        band.m_lowHz + (band.m_highHz - band.m_lowHz) * jj / (double)(band.m_bins - 1);
+                // Round to the nearest whole bin of the block so the filter has no leakage of its own
+                final long k = Math.max(1, Math.round(hz * blockLength / sampleRate));
+                m_coefficients[bin++] = (float)(2.0 * Math.cos(2.0 * Math.PI * k / blockLength));
+            }
+        }
+        m_bandStarts[bands.length] = bin;
+    }
+
+    public int getBlockLength() {
+        return m_blockLength;
+    }
+
+    public int getBandCount() {
+        return m_bandStarts.length - 1;
+    }
+
+    /**
+     * Energy a sine of the given amplitude at one of the bin frequencies leaves in that bin, (A * N / 2)^2
+     */
+    public float energyOf(int amplitude) {
+        final float scaled = amplitude * m_blockLength / 2.0f;
+        return scaled * scaled;
+    }
+
+    /**
+     * Measure the block of samples starting at <tt>offset</tt> and store the average bin energy of each band in
+     * <tt>energy</tt>
+     */
+    public void measure(final short samples[], final int offset, final float energy[]) {
+        final int end = offset + m_blockLength;
+        final float coefficients[] = m_coefficients;
+        final int bandStarts[] = m_bandStarts;
+
+        for (int band = 0; band < bandStarts.length - 1; band++) {
+            float bandEnergy = 0.0f;
+            for (int bin = bandStarts[band]; bin < bandStarts[band + 1]; bin++) {
+                final float coefficient = coefficients[bin];
+                float s1 = 0.0f;
+                float s2 = 0.0f;
+                for (int ii = offset; ii < end; ii++) {
+                    final float s0 = samples[ii] + coefficient * s1 - s2;
+                    s2 = s1;
+                    s1 = s0;
+                }
+                bandEnergy += s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+            }
+            energy[band] = bandEnergy / (bandStarts[band + 1] - bandStarts[band]);
+        }
+    }
+}
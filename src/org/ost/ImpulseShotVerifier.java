@@ -0,0 +1,130 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Checks that a candidate looks like the impulse of a shot rather than loud sustained noise or a ringing plate.
+ * <p>
+ * Looks at 50 milliseconds either side of the candidate and requires all of
+ * <ul>
+ * <li>a sharp rise, the first 10 milliseconds are at least 1.5 times as loud as the audio before the
+ * candidate, ignoring the last few milliseconds where the blast is already building</li>
+ * <li>a decay, the last 10 milliseconds of the window are at most 3/4 as loud as the first 10</li>
+ * <li>a broadband start, in the 5 milliseconds around the candidate the reject band doesn't outweigh the blast band
+ * by more than REJECT_RATIO, so a ringing plate fails, and the crack band has at least 1/MIN_CRACK_RATIO of the
+ * blast band's energy, so a low frequency thump fails</li>
+ * </ul>
+ * Loudness is compared as cross multiplied sums of squares so no square roots or divisions are taken. All the
+ * scratch space is allocated up front.
+ */
+public class ImpulseShotVerifier implements ShotVerifier {
+
+    private static final int WINDOW_MILLIS = 50;
+
+    private static final int SEGMENT_MILLIS = 10;
+
+    /**
+     * Milliseconds before the candidate that are left out of the level before the shot
+     */
+    private static final int LEAD_IN_MILLIS = 3;
+
+    private static final int RISE_RATIO_NUMERATOR = 3;
+    private static final int RISE_RATIO_DENOMINATOR = 2;
+
+    private static final int DECAY_RATIO_NUMERATOR = 3;
+    private static final int DECAY_RATIO_DENOMINATOR = 4;
+
+    private static final float REJECT_RATIO = 3.0f;
+
+    private static final float MIN_CRACK_RATIO = 128.0f;
+
+    private final int m_preTriggerSamples;
+    private final int m_postTriggerSamples;
+    private final int m_segmentLength;
+    private final int m_leadInLength;
+
+    /**
+     * Bank with the blast band first and the crack/reject band second
+     */
+    private final GoertzelBank m_bank;
+    private final float m_bandEnergy[];
+
+    public ImpulseShotVerifier(int sampleRate) {
+        final SampleClock clock = new SampleClock(sampleRate);
+        m_preTriggerSamples = (int)clock.millisToSamples(WINDOW_MILLIS);
+        m_postTriggerSamples = m_preTriggerSamples;
+        m_segmentLength = (int)clock.millisToSamples(SEGMENT_MILLIS);
+        m_leadInLength = (int)clock.millisToSamples(LEAD_IN_MILLIS);
+        m_bank = new GoertzelBank(
+                sampleRate,
+                (int)clock.millisToSamples(SpectralShotDetector.DEFAULT_BLOCK_MILLIS),
+                new GoertzelBank.Band[] {
+                        SpectralShotDetector.DEFAULT_BLAST_BAND,
+                        SpectralShotDetector.rejectBandFor(sampleRate) });
+        m_bandEnergy = new float[2];
+    }
+
+    @Override
+    public int getPreTriggerSamples() {
+        return m_preTriggerSamples;
+    }
+
+    @Override
+    public int getPostTriggerSamples() {
+        return m_postTriggerSamples;
+    }
+
+    @Override
+    public boolean verify(final short window[]) {
+        final int candidate = m_preTriggerSamples;
+        final int segment = m_segmentLength;
+
+        // Mean squares, compared across lengths by cross multiplying
+        final int beforeLength = candidate - m_leadInLength;
+        final long before = sumOfSquares(window, 0, beforeLength);
+        final long early = sumOfSquares(window, candidate, candidate + segment);
+        final long late = sumOfSquares(window, candidate + m_postTriggerSamples - segment, candidate + m_postTriggerSamples);
+
+        final long riseNumerator = RISE_RATIO_NUMERATOR * RISE_RATIO_NUMERATOR;
+        final long riseDenominator = RISE_RATIO_DENOMINATOR * RISE_RATIO_DENOMINATOR;
+        if (early * riseDenominator * beforeLength < before * riseNumerator * segment) {
+            return false;
+        }
+
+        final long decayNumerator = DECAY_RATIO_NUMERATOR * DECAY_RATIO_NUMERATOR;
+        final long decayDenominator = DECAY_RATIO_DENOMINATOR * DECAY_RATIO_DENOMINATOR;
+        if (late * decayDenominator > early * decayNumerator) {
+            return false;
+        }
+
+        // Block starting just before the candidate so it takes in the front of the blast
+        m_bank.measure(window, candidate - m_leadInLength / 3, m_bandEnergy);
+        final float blast = m_bandEnergy[0];
+        final float crack = m_bandEnergy[1];
+        return crack <= blast * REJECT_RATIO && crack * MIN_CRACK_RATIO >= blast;
+    }
+
+    private static long sumOfSquares(final short samples[], final int from, final int to) {
+        long sum = 0;
+        for (int ii = from; ii < to; ii++) {
+            final int sample = samples[ii];
+            sum += sample * sample;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,210 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds where a known sound, the buzzer, starts in captured audio, for measuring how long it takes from asking for
+ * it to be played to it arriving in the capture timeline.
+ * <p>
+ * The buzzer's onset is matched by normalized cross-correlation against a template of silence followed by the start
+ * of the sound. The normalization is by the energy of the captured audio under the whole
+ * template, so a position where the sound has already started under the silent part scores lower than the true
+ * onset, even though the buzzer is a steady tone that correlates equally well with itself anywhere along it.
+ */
+public final class LatencyCalibrator {
+
+    /**
+     * Silence leading the template, as long as the onset so that the middle of the sound scores at most 1/sqrt(2)
+     */
+    static final int SILENCE_MILLIS = 30;
+
+    /**
+     * Start of the sound taken for the template
+     */
+    static final int ONSET_MILLIS = 30;
+
+    /**
+     * Lowest correlation accepted as the onset
+     */
+    static final double MIN_SCORE = 0.8;
+
+    /**
+     * Silence then onset, at the capture sample rate
+     */
+    private final short m_template[];
+
+    private final int m_silenceLength;
+
+    private final long m_templateEnergy;
+
+    private final SampleClock m_clock;
+
+    private double m_score = 0;
+
+    /**
+     * @param sound The sound that will be played, mono
+     * @param soundRate Sample rate of the sound
+     * @param sampleRate Sample rate it will be captured at
+     */
+    public LatencyCalibrator(short sound[], int soundRate, int sampleRate) {
+        m_clock = new SampleClock(sampleRate);
+        m_silenceLength = (int)m_clock.millisToSamples(SILENCE_MILLIS);
+        final int onsetLength = (int)m_clock.millisToSamples(ONSET_MILLIS);
+        m_template = new short[m_silenceLength + onsetLength];
+        long energy = 0;
+        for (int ii = 0; ii < onsetLength; ii++) {
+            // Linear interpolation is plenty for a tone well under the Nyquist frequency of either rate
+            final double position = ii * (double)soundRate / sampleRate;
+            final int index = (int)position;
+            if (index + 1 >= sound.length) {
+                throw new IllegalArgumentException("Sound is shorter than the " + ONSET_MILLIS + " ms onset");
+            }
+            final double fraction = position - index;
+            final short value = (short)Math.round(sound[index] * (1.0 - fraction) + sound[index + 1] * fraction);
+            m_template[m_silenceLength + ii] = value;
+            energy += value * value;
+        }
+        if (energy == 0) {
+            throw new IllegalArgumentException("Sound starts with " + ONSET_MILLIS + " ms of silence");
+        }
+        m_templateEnergy = energy;
+    }
+
+    /**
+     * Calibrator for a 16 bit mono PCM WAV file, like the buzzer in res/raw
+     */
+    public static LatencyCalibrator fromWav(InputStream in, int sampleRate) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (readTag(data) != 0x46464952 /* RIFF */) {
+            throw new IOException("Not a RIFF file");
+        }
+        readLittleInt(data);
+        if (readTag(data) != 0x45564157 /* WAVE */) {
+            throw new IOException("Not a WAVE file");
+        }
+        int soundRate = -1;
+        while (true) {
+            final int tag = readTag(data);
+            final int length = readLittleInt(data);
+            if (tag == 0x20746d66 /* fmt  */) {
+                final int format = readLittleShort(data);
+                final int channels = readLittleShort(data);
+                soundRate = readLittleInt(data);
+                data.skipBytes(6);
+                final int bits = readLittleShort(data);
+                if (format != 1 || channels != 1 || bits != 16) {
+                    throw new IOException("Need 16 bit mono PCM, got format " + format + " with " + channels +
+                            " channels of " + bits + " bits");
+                }
+                data.skipBytes(length - 16);
+            } else if (tag == 0x61746164 /* data */) {
+                if (soundRate < 0) {
+                    throw new IOException("Data before format");
+                }
+                final short sound[] = new short[length / 2];
+                for (int ii = 0; ii < sound.length; ii++) {
+                    sound[ii] = (short)readLittleShort(data);
+                }
+                return new LatencyCalibrator(sound, soundRate, sampleRate);
+            } else {
+                data.skipBytes(length + (length & 1));
+            }
+        }
+    }
+
+    private static int readTag(DataInputStream in) throws IOException {
+        return readLittleInt(in);
+    }
+
+    private static int readLittleInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readLittleShort(DataInputStream in) throws IOException {
+        final int low = in.read();
+        final int high = in.read();
+        if ((low | high) < 0) {
+            throw new EOFException();
+        }
+        return (short)(low | (high << 8));
+    }
+
+    public SampleClock getClock() {
+        return m_clock;
+    }
+
+    /**
+     * Correlation of the best match found by the last {@link #locate(short[], int, int, int)}, even if it wasn't good
+     * enough to accept, 1 is a perfect match
+     */
+    public double getScore() {
+        return m_score;
+    }
+
+    /**
+     * Find the sample where the sound starts
+     * @param length Number of samples captured
+     * @param from Earliest sample the sound could start at
+     * @param to Latest sample the sound could start at
+     * @return The sample, or -1 if nothing between from and to looked enough like the onset of the sound
+     */
+    public int locate(short samples[], int length, int from, int to) {
+        final int templateLength = m_template.length;
+        final int first = Math.max(0, from - m_silenceLength);
+        final int last = Math.min(to - m_silenceLength, length - templateLength);
+        m_score = 0;
+        if (last < first) {
+            return -1;
+        }
+
+        // Energy under the template, slid along a sample at a time
+        long energy = 0;
+        for (int ii = first; ii < first + templateLength; ii++) {
+            energy += samples[ii] * samples[ii];
+        }
+        int best = -1;
+        double bestScore = 0;
+        for (int position = first; position <= last; position++) {
+            if (position > first) {
+                final int leaving = samples[position - 1];
+                final int entering = samples[position + templateLength - 1];
+                energy += entering * entering - leaving * leaving;
+            }
+            if (energy <= 0) {
+                continue;
+            }
+            // The silent part of the template contributes nothing to the product
+            long product = 0;
+            for (int ii = m_silenceLength; ii < templateLength; ii++) {
+                product += m_template[ii] * samples[position + ii];
+            }
+            final double score = product / Math.sqrt((double)m_templateEnergy * energy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = position + m_silenceLength;
+            }
+        }
+        m_score = bestScore;
+        return bestScore < MIN_SCORE ? -1 : best;
+    }
+}
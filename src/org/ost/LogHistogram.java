@@ -0,0 +1,130 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with a bucket per power of two, recorded by one thread and read by any.
+ * <p>
+ * Recording is a leading zero count and a few stores into preallocated slots, so it can go on the
+ * capture and processing paths. Values are only kept to within a factor of two, which is plenty to see whether
+ * a buffer took microseconds or milliseconds. The count, sum and maximum are exact. Readers copy the slots into
+ * a {@link LogHistogram.Snapshot}, which may be a moment out of step with itself while recording carries on.
+ */
+public final class LogHistogram {
+
+    /**
+     * Bucket 0 holds 0, bucket n holds [2^(n-1), 2^n)
+     */
+    public static final int BUCKETS = 64;
+
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+
+    /**
+     * Buckets followed by the count, sum and max. Only the recording thread writes, so a get and a set are enough
+     * without compare and set, the atomics are just for the visibility of whole longs. Not lazySet, which Android
+     * only has from API 9.
+     */
+    private final AtomicLongArray m_slots = new AtomicLongArray(BUCKETS + 3);
+
+    /**
+     * Copy of a histogram at some point, reusable so polling needn't allocate either
+     */
+    public static final class Snapshot {
+        private final long m_buckets[] = new long[BUCKETS];
+        private long m_count;
+        private long m_sum;
+        private long m_max;
+
+        public long getCount() {
+            return m_count;
+        }
+
+        public long getSum() {
+            return m_sum;
+        }
+
+        public long getMax() {
+            return m_max;
+        }
+
+        public long getMean() {
+            return m_count == 0 ? 0 : m_sum / m_count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the value at the percentile, capped at the maximum
+         */
+        public long getPercentile(double percent) {
+            if (m_count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long)Math.ceil(percent / 100.0 * m_count));
+            long seen = 0;
+            for (int ii = 0; ii < BUCKETS; ii++) {
+                seen += m_buckets[ii];
+                if (seen >= rank) {
+                    return ii == 0 ? 0 : Math.min(m_max, (1L << ii) - 1);
+                }
+            }
+            return m_max;
+        }
+
+        /**
+         * Append the count, mean, p50, p99 and max as a JSON object
+         */
+        public StringBuilder toJson(StringBuilder sb) {
+            return sb.append("{\"count\":").append(m_count)
+                .append(",\"mean\":").append(getMean())
+                .append(",\"p50\":").append(getPercentile(50))
+                .append(",\"p99\":").append(getPercentile(99))
+                .append(",\"max\":").append(m_max)
+                .append('}');
+        }
+    }
+
+    /**
+     * Only to be called by the one recording thread
+     */
+    public void record(long value) {
+        final long v = Math.max(0, value);
+        final int bucket = 64 - Long.numberOfLeadingZeros(v);
+        m_slots.set(bucket, m_slots.get(bucket) + 1);
+        m_slots.set(SUM, m_slots.get(SUM) + v);
+        if (v > m_slots.get(MAX)) {
+            m_slots.set(MAX, v);
+        }
+        m_slots.set(COUNT, m_slots.get(COUNT) + 1);
+    }
+
+    public long getCount() {
+        return m_slots.get(COUNT);
+    }
+
+    public void snapshot(Snapshot into) {
+        into.m_count = m_slots.get(COUNT);
+        into.m_sum = m_slots.get(SUM);
+        into.m_max = m_slots.get(MAX);
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            into.m_buckets[ii] = m_slots.get(ii);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a raw recording from disk by memory mapping it and handing out slices of the mapping.
+ * <p>
+ * The file is mapped a window at a time, so recordings bigger than a single mapping can hold are fine. Windows are
+ * a whole number of slices long and slices never straddle two windows. A slice is the mapping with its position and
+ * limit moved, the same buffer object every time until the next window is mapped, so nothing is copied or allocated
+ * per slice and the decoder's view of the buffer is reused. Replay runs as fast as the page cache allows, or paced
+ * at a multiple of real time against the detector's sample clock.
+ * <p>
+ * Mappings are released when they are garbage collected, there's no way to unmap them sooner.
+ */
+public final class MappedReplaySource {
+
+    public static final int DEFAULT_SLICE_BYTES = 4096;
+
+    public static final int DEFAULT_WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final RandomAccessFile m_file;
+
+    private final FileChannel m_channel;
+
+    private final long m_length;
+
+    private final int m_sliceBytes;
+
+    private final int m_windowBytes;
+
+    /**
+     * Currently mapped window, and where it starts in the file
+     */
+    private MappedByteBuffer m_window = null;
+    private long m_windowStart = 0;
+
+    /**
+     * File offset of the next slice
+     */
+    private long m_position = 0;
+
+    public MappedReplaySource(File file) throws IOException {
+        this(file, DEFAULT_SLICE_BYTES, DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * @param sliceBytes Size of the slices handed out, should be a whole number of frames
+     * @param windowBytes Roughly how much of the file to map at once, rounded down to a whole number of slices
+     */
+    public MappedReplaySource(File file, int sliceBytes, int windowBytes) throws IOException {
+        if (sliceBytes < 1) {
+            throw new IllegalArgumentException("Slice size must be positive, got " + sliceBytes);
+        }
+        m_sliceBytes = sliceBytes;
+        m_windowBytes = Math.max(1, windowBytes / sliceBytes) * sliceBytes;
+        m_file = new RandomAccessFile(file, "r");
+        m_channel = m_file.getChannel();
+        m_length = m_channel.size();
+    }
+
+    public long getLength() {
+        return m_length;
+    }
+
+    /**
+     * File offset of the next slice
+     */
+    public long getPosition() {
+        return m_position;
+    }
+
+    /**
+     * Next slice of the recording, or null at the end. Only valid until the next call.
+     */
+    public ByteBuffer next() throws IOException {
+        if (m_position >= m_length) {
+            return null;
+        }
+        if (m_window == null || m_position >= m_windowStart + m_window.capacity()) {
+            m_windowStart = m_position;
+            m_window = m_channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    m_windowStart,
+                    Math.min(m_windowBytes, m_length - m_windowStart));
+        }
+        final int offset = (int)(m_position - m_windowStart);
+        final int length = Math.min(m_sliceBytes, m_window.capacity() - offset);
+        m_window.limit(offset + length);
+        m_window.position(offset);
+        m_position += length;
+        return m_window;
+    }
+
+    /**
+     * Start again from the beginning of the recording
+     */
+    public void rewind() {
+        m_position = 0;
+    }
+
+    /**
+     * Feed the rest of the recording to the detector and flush it
+     * @param speed Multiple of real time to replay at, 0 for as fast as possible
+     * @return Number of bytes replayed
+     */
+    public long replay(ShotDetector detector, ShotEventBuffer events, double speed)
+            throws IOException, InterruptedException {
+        final int frameSize = detector.getFormat().m_bytesPerFrame;
+        final SampleClock clock = detector.getClock();
+        final long from = m_position;
+        final long startNanos = System.nanoTime();
+        ByteBuffer slice;
+        while ((slice = next()) != null) {
+            detector.processAudio(slice, events);
+            if (speed > 0) {
+                final long audioMicros = clock.toMicros((m_position - from) / frameSize);
+                final long dueNanos = startNanos + (long)(audioMicros * 1000 / speed);
+                final long aheadNanos = dueNanos - System.nanoTime();
+                if (aheadNanos > 0) {
+                    Thread.sleep(aheadNanos / 1000000, (int)(aheadNanos % 1000000));
+                }
+            }
+        }
+        detector.flush(events);
+        return m_position - from;
+    }
+
+    public void close() throws IOException {
+        m_window = null;
+        m_channel.close();
+        m_file.close();
+    }
+}
@@ -0,0 +1,279 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a separate detector on each channel of multi-channel audio and fuses what they find into one stream of shots.
+ * <p>
+ * Each buffer is de-interleaved once by the decoder. The first channel is processed on the calling thread and the rest
+ * are handed to the executor, and the call returns once every channel has been processed, so the per-channel
+ * detectors each see their channel in order and are never run concurrently with themselves. The tasks are
+ * allocated up front and reused for every buffer.
+ * <p>
+ * Shots from all channels are merged in timeline order. A shot within the coincidence window after the last shot
+ * reported is the same shot heard by another microphone and is dropped, so the reported time is that of the
+ * microphone that heard it first. The fused shots are numbered and timed on this detector's timeline.
+ * Channels are expected to report shots with the same latency, a shot that arrives on one channel after a later
+ * shot has already been reported from another is dropped rather than reported out of order.
+ * <p>
+ * Audio that is already mixed down, handed to {@link #processSamples(short[], int, int, ShotEventBuffer)}, goes to
+ * every channel's detector as if each microphone heard the same thing, and what they find is fused the same way.
+ */
+public class MultiChannelShotDetector extends ShotDetector {
+
+    /**
+     * Sound travels about 17 metres in this time, further apart than two microphones on one range
+     */
+    public static final int DEFAULT_COINCIDENCE_MILLIS = 50;
+
+    private final class ChannelTask implements Runnable {
+        private final int m_channel;
+        private short m_samples[];
+        private int m_offset;
+        private int m_frames;
+
+        private ChannelTask(int channel) {
+            m_channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                m_detectors[m_channel].processSamples(m_samples, m_offset, m_frames, m_channelEvents[m_channel]);
+            } catch (Throwable t) {
+                synchronized (m_lock) {
+                    m_failure = t;
+                }
+            } finally {
+                synchronized (m_lock) {
+                    if (--m_pendingTasks == 0) {
+                        m_lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private final ShotDetector m_detectors[];
+
+    /**
+     * Shots found on each channel in the current buffer
+     */
+    private final ShotEventBuffer m_channelEvents[];
+
+    /**
+     * Runs channels other than the first, null to run every channel on the calling thread
+     */
+    private final Executor m_executor;
+
+    private final ChannelTask m_tasks[];
+
+    /**
+     * Guards m_pendingTasks and m_failure, and orders the workers' writes before the fusion that reads them
+     */
+    private final Object m_lock = new Object();
+    private int m_pendingTasks = 0;
+    private Throwable m_failure = null;
+
+    /**
+     * Next event of each channel to merge
+     */
+    private final int m_nextEvent[];
+
+    private final long m_coincidenceSamples;
+
+    /**
+     * Timeline index of the last shot reported, Long.MIN_VALUE before the first
+     */
+    private long m_lastFusedSample = Long.MIN_VALUE;
+
+    public MultiChannelShotDetector(int sampleRate, PcmFormat format, ShotDetector detectors[], Executor executor) {
+        this(sampleRate, format, detectors, executor, DEFAULT_COINCIDENCE_MILLIS);
+    }
+
+    /**
+     * @param format Format of the interleaved audio
+     * @param detectors One detector per channel, at the same sample rate. They are fed decoded samples so their
+     * own format doesn't matter.
+     * @param executor Runs the detectors for all but the first channel, null to run them on the calling thread
+     * @param coincidenceMillis Shots on different channels this close together are the same shot
+     */
+    public MultiChannelShotDetector(
+            int sampleRate,
+            PcmFormat format,
+            ShotDetector detectors[],
+            Executor executor,
+            int coincidenceMillis) {
+        super(sampleRate, format, true);
+        if (detectors.length != format.m_channels) {
+            throw new IllegalArgumentException(
+                    "Need a detector for each of the " + format.m_channels + " channels, got " + detectors.length);
+        }
+        for (ShotDetector detector : detectors) {
+            if (detector.getClock().getSampleRate() != sampleRate) {
+                throw new IllegalArgumentException(
+                        "Channel detector runs at " + detector.getClock().getSampleRate() + " Hz, not " + sampleRate);
+            }
+        }
+        m_detectors = detectors.clone();
+        m_executor = executor;
+        m_channelEvents = new ShotEventBuffer[detectors.length];
+        m_tasks = new ChannelTask[detectors.length];
+        for (int channel = 0; channel < detectors.length; channel++) {
+            m_channelEvents[channel] = new ShotEventBuffer();
+            m_tasks[channel] = new ChannelTask(channel);
+        }
+        m_nextEvent = new int[detectors.length];
+        m_coincidenceSamples = m_clock.millisToSamples(coincidenceMillis);
+    }
+
+    public ShotDetector getChannelDetector(int channel) {
+        return m_detectors[channel];
+    }
+
+    @Override
+    protected int processDecoded(final PcmDecoder decoder, final int frames, final ShotEventBuffer events) {
+        final int count = detect(decoder, null, 0, frames, events);
+        m_currentSample += frames;
+        return count;
+    }
+
+    /**
+     * Every channel's detector looks at the same mixed down samples
+     */
+    @Override
+    protected void p_processSamples(short samples[], int offset, int length, ShotEventBuffer events) {
+        detect(null, samples, offset, length, events);
+    }
+
+    /**
+     * Flush every channel's detector and fuse what they were still waiting on
+     */
+    @Override
+    protected void p_flush(ShotEventBuffer events) {
+        for (int channel = 0; channel < m_detectors.length; channel++) {
+            m_channelEvents[channel].clear();
+            m_detectors[channel].flush(m_channelEvents[channel]);
+        }
+        fuse(events);
+    }
+
+    /**
+     * Run every channel's detector and fuse what they find
+     * @param decoder Decoder holding each channel's samples, or null to give every channel <tt>mono</tt>
+     */
+    private int detect(
+            final PcmDecoder decoder,
+            final short mono[],
+            final int offset,
+            final int frames,
+            final ShotEventBuffer events) {
+        final int channels = m_detectors.length;
+        for (int channel = 0; channel < channels; channel++) {
+            m_channelEvents[channel].clear();
+        }
+
+        if (m_executor == null) {
+            for (int channel = 0; channel < channels; channel++) {
+                m_detectors[channel].processSamples(
+                        decoder == null ? mono : decoder.getChannelSamples(channel),
+                        offset,
+                        frames,
+                        m_channelEvents[channel]);
+            }
+        } else {
+            synchronized (m_lock) {
+                m_pendingTasks = channels - 1;
+                m_failure = null;
+            }
+            for (int channel = 1; channel < channels; channel++) {
+                final ChannelTask task = m_tasks[channel];
+                task.m_samples = decoder == null ? mono : decoder.getChannelSamples(channel);
+                task.m_offset = offset;
+                task.m_frames = frames;
+                m_executor.execute(task);
+            }
+            m_detectors[0].processSamples(
+                    decoder == null ? mono : decoder.getChannelSamples(0), offset, frames, m_channelEvents[0]);
+            awaitTasks();
+        }
+
+        return fuse(events);
+    }
+
+    /**
+     * Wait for the other channels even if interrupted, the next buffer can't start while they still hold this one
+     */
+    private void awaitTasks() {
+        boolean interrupted = false;
+        final Throwable failure;
+        synchronized (m_lock) {
+            while (m_pendingTasks > 0) {
+                try {
+                    m_lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            failure = m_failure;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new RuntimeException("Channel detector failed", failure);
+        }
+    }
+
+    /**
+     * Merge the channels' shots in timeline order, dropping the ones that coincide with the last shot reported
+     */
+    private int fuse(final ShotEventBuffer events) {
+        final int sizeBefore = events.size();
+        final int channels = m_channelEvents.length;
+        for (int channel = 0; channel < channels; channel++) {
+            m_nextEvent[channel] = 0;
+        }
+        while (true) {
+            int earliestChannel = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int channel = 0; channel < channels; channel++) {
+                final ShotEventBuffer channelEvents = m_channelEvents[channel];
+                if (m_nextEvent[channel] < channelEvents.size()) {
+                    final long sample = channelEvents.getSample(m_nextEvent[channel]);
+                    if (sample < earliest) {
+                        earliest = sample;
+                        earliestChannel = channel;
+                    }
+                }
+            }
+            if (earliestChannel < 0) {
+                break;
+            }
+            m_nextEvent[earliestChannel]++;
+            if (m_lastFusedSample != Long.MIN_VALUE && earliest <= m_lastFusedSample + m_coincidenceSamples) {
+                continue;
+            }
+            addShot(events, earliest);
+            m_lastFusedSample = earliest;
+        }
+        return events.size() - sizeBefore;
+    }
+}
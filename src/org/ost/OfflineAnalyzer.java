@@ -0,0 +1,242 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Detects the shots in a whole recording by splitting it into chunks that are analysed in parallel, with results
+ * that are identical to feeding the recording through a single detector from start to finish.
+ * <p>
+ * Every chunk but the first is analysed by a fresh detector that starts an overlap's worth of audio before the chunk.
+ * The chunks are then stitched together in order. A detector's state depends on everything it has seen, so the
+ * shots of a chunk are only taken as they are if the detector is {@link ShotDetector#isResetByShot() reset by shots}
+ * and it reports a shot in the overlap that is also in the results so far. From that shot on it is in the same state
+ * the sequential detector would have been in. Otherwise the detector that finished the previous chunk, which is
+ * in the sequential state, carries on through the chunk on the stitching thread. Either way the shots are the
+ * sequential shots, and they are numbered and timed on the timeline of the whole recording.
+ * <p>
+ * Chunks only save time when they can be stitched, so the overlap should be longer than the one second detectors
+ * ignore at start up plus the usual gap between shots. Chunks that had to be redone are counted by
+ * {@link #getResumedChunks()}.
+ */
+public final class OfflineAnalyzer {
+
+    /**
+     * Creates the detectors, which must all be configured the same way
+     */
+    public interface DetectorFactory {
+        public ShotDetector create();
+    }
+
+    public static final int DEFAULT_CHUNK_MILLIS = 60000;
+
+    public static final int DEFAULT_OVERLAP_MILLIS = 5000;
+
+    /**
+     * Frames handed to a detector at a time, so the decoded samples stay a reasonable size
+     */
+    private static final int FEED_FRAMES = 65536;
+
+    /**
+     * Shots found by one detector, relative to the point on the recording it started at
+     */
+    private static final class Chunk {
+        private final long m_base;
+        private final long m_start;
+        private final long m_end;
+        private final ShotDetector m_detector;
+        private final ShotEventBuffer m_events;
+
+        private Chunk(long base, long start, long end, ShotDetector detector, ShotEventBuffer events) {
+            m_base = base;
+            m_start = start;
+            m_end = end;
+            m_detector = detector;
+            m_events = events;
+        }
+    }
+
+    private final DetectorFactory m_factory;
+
+    private final ExecutorService m_executor;
+
+    private final int m_chunkMillis;
+
+    private final int m_overlapMillis;
+
+    private int m_resumedChunks = 0;
+
+    public OfflineAnalyzer(DetectorFactory factory, ExecutorService executor) {
+        this(factory, executor, DEFAULT_CHUNK_MILLIS, DEFAULT_OVERLAP_MILLIS);
+    }
+
+    public OfflineAnalyzer(DetectorFactory factory, ExecutorService executor, int chunkMillis, int overlapMillis) {
+        if (overlapMillis < 0 || overlapMillis >= chunkMillis) {
+            throw new IllegalArgumentException(
+                    "Overlap of " + overlapMillis + " ms must be shorter than the chunks of " + chunkMillis + " ms");
+        }
+        m_factory = factory;
+        m_executor = executor;
+        m_chunkMillis = chunkMillis;
+        m_overlapMillis = overlapMillis;
+    }
+
+    /**
+     * Number of chunks in the last analysis that couldn't be stitched and were run again sequentially
+     */
+    public int getResumedChunks() {
+        return m_resumedChunks;
+    }
+
+    /**
+     * Find all the shots in the remaining audio of the recording. The recording isn't consumed
+     * and must not be modified until this returns.
+     */
+    public ShotEventBuffer analyze(final ByteBuffer recording) throws InterruptedException, ExecutionException {
+        final ShotDetector first = m_factory.create();
+        final PcmFormat format = first.getFormat();
+        final SampleClock clock = first.getClock();
+        final long frames = recording.remaining() / format.m_bytesPerFrame;
+        final long chunkFrames = clock.millisToSamples(m_chunkMillis);
+        final long overlapFrames = clock.millisToSamples(m_overlapMillis);
+
+        final ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+        try {
+            for (long start = 0; start < frames; start += chunkFrames) {
+                final long base = Math.max(0, start - overlapFrames);
+                final long chunkStart = start;
+                final long end = Math.min(frames, start + chunkFrames);
+                final ShotDetector detector = start == 0 ? first : m_factory.create();
+                futures.add(m_executor.submit(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() {
+                        final ShotEventBuffer events = new ShotEventBuffer();
+                        feed(recording, format, detector, base, end, events);
+                        return new Chunk(base, chunkStart, end, detector, events);
+                    }
+                }));
+            }
+
+            final ShotEventBuffer shots = new ShotEventBuffer();
+            m_resumedChunks = 0;
+            // Detector whose state at the end of the last stitched chunk is the sequential state, and where it started
+            ShotDetector exactDetector = null;
+            long exactBase = 0;
+            for (Future<Chunk> future : futures) {
+                final Chunk chunk = future.get();
+                if (exactDetector == null || synchronises(shots, chunk)) {
+                    append(shots, clock, chunk.m_events, chunk.m_base, chunk.m_start);
+                    exactDetector = chunk.m_detector;
+                    exactBase = chunk.m_base;
+                } else {
+                    final ShotEventBuffer events = new ShotEventBuffer();
+                    feed(recording, format, exactDetector, chunk.m_start, chunk.m_end, events);
+                    append(shots, clock, events, exactBase, chunk.m_start);
+                    m_resumedChunks++;
+                }
+            }
+            if (exactDetector != null) {
+                final ShotEventBuffer events = new ShotEventBuffer();
+                exactDetector.flush(events);
+                append(shots, clock, events, exactBase, exactBase);
+            }
+            return shots;
+        } finally {
+            for (Future<Chunk> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Whether the chunk's detector reports a shot in its overlap that was also found by the sequential detector
+     */
+    private static boolean synchronises(final ShotEventBuffer shots, final Chunk chunk) {
+        if (!chunk.m_detector.isResetByShot()) {
+            return false;
+        }
+        final ShotEventBuffer events = chunk.m_events;
+        // Walk both lists from the end of the overlap backwards looking for a shot in both
+        int shot = shots.size() - 1;
+        for (int ii = events.size() - 1; ii >= 0; ii--) {
+            final long sample = chunk.m_base + events.getSample(ii);
+            if (sample >= chunk.m_start) {
+                continue;
+            }
+            while (shot >= 0 && shots.getSample(shot) > sample) {
+                shot--;
+            }
+            if (shot < 0 || shots.getSample(shot) < chunk.m_base) {
+                return false;
+            }
+            if (shots.getSample(shot) == sample) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append the events at or after <tt>from</tt> on the recording's timeline, numbered and timed globally
+     */
+    private static void append(
+            final ShotEventBuffer shots,
+            final SampleClock clock,
+            final ShotEventBuffer events,
+            final long base,
+            final long from) {
+        for (int ii = 0; ii < events.size(); ii++) {
+            final long sample = base + events.getSample(ii);
+            if (sample < from) {
+                continue;
+            }
+            final long lastSample = shots.isEmpty() ? 0 : shots.getSample(shots.size() - 1);
+            final long timeMicros = clock.toMicros(sample);
+            shots.add(shots.size() + 1, sample, timeMicros, timeMicros - clock.toMicros(lastSample));
+        }
+    }
+
+    /**
+     * Feed frames <tt>[from, to)</tt> of the recording to the detector a slice at a time
+     */
+    private static void feed(
+            final ByteBuffer recording,
+            final PcmFormat format,
+            final ShotDetector detector,
+            final long from,
+            final long to,
+            final ShotEventBuffer events) {
+        final ByteBuffer slice = recording.duplicate();
+        final int origin = recording.position();
+        final int frameSize = format.m_bytesPerFrame;
+        long frame = from;
+        while (frame < to) {
+            final long next = Math.min(to, frame + FEED_FRAMES);
+            slice.limit(origin + (int)(next * frameSize));
+            slice.position(origin + (int)(frame * frameSize));
+            detector.processAudio(slice, events);
+            frame = next;
+        }
+    }
+}
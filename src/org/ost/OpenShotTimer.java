@@ -21,6 +21,7 @@ import android.app.Activity;
 import android.content.SharedPreferences;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View.OnClickListener;
 import android.view.View;
 import android.view.ViewGroup;
@@ -30,6 +31,7 @@ import android.widget.TextView;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.app.AlertDialog;
 import android.media.AudioManager;
 import android.content.DialogInterface;
@@ -41,46 +43,94 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
 
     private ShotString m_string; 
 
-    private final ArrayList<View> m_shotEventViews = new ArrayList<View>();
+    /**
+     * A row of the shot table and the text it shows, kept for reuse when the table is cleared
+     */
+    private final class ShotRow {
+        private final TableRow m_row = new TableRow(OpenShotTimer.this);
+        private final TextView m_numberView = new TextView(OpenShotTimer.this);
+        private final TextView m_timeView = new TextView(OpenShotTimer.this);
+        private final TextView m_splitView = new TextView(OpenShotTimer.this);
+        
+        /**
+         * TextView keeps a reference to the chars it's given, so each row has its own
+         */
+        private final char m_number[] = new char[FixedPointFormatter.MAX_LENGTH];
+        private final char m_time[] = new char[FixedPointFormatter.MAX_LENGTH];
+        private final char m_split[] = new char[FixedPointFormatter.MAX_LENGTH];
+        
+        private ShotRow() {
+            m_row.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT));
+            m_row.addView(m_numberView);
+            m_row.addView(m_timeView);
+            m_row.addView(m_splitView);
+        }
+        
+        private void bind(int shotNum, long timeMicros, long splitMicros) {
+            m_numberView.setText(m_number, 0, FixedPointFormatter.formatInteger(shotNum, m_number, 0));
+            m_timeView.setText(m_time, 0, FixedPointFormatter.formatSeconds(timeMicros, m_time, 0));
+            m_splitView.setText(m_split, 0, FixedPointFormatter.formatSeconds(splitMicros, m_split, 0));
+        }
+    }
     
-    public static final String PREFS_NAME = "OST";
+    /**
+     * Rows in the table, and rows taken out of it waiting to be reused
+     */
+    private final ArrayList<ShotRow> m_shotRows = new ArrayList<ShotRow>();
+    private final ArrayList<ShotRow> m_freeRows = new ArrayList<ShotRow>();
     
-    private SharedPreferences m_settings;
+    /**
+     * Shots from the processing thread not yet in the table, and whether an update to add them is posted.
+     * Guarded by m_pendingShots.
+     */
+    private final ShotEventBuffer m_pendingShots = new ShotEventBuffer();
+    private boolean m_shotTableUpdateScheduled = false;
+    
+    /**
+     * Copy of the pending shots taken by the UI thread, so the lock isn't held while the table is updated
+     */
+    private final ShotEventBuffer m_shotsToShow = new ShotEventBuffer();
     
-    private long startTime = -1;
+    /**
+     * Shots are added to the table at most once a display frame, however fast they come in
+     */
+    private static final int FRAME_MILLIS = 16;
     
-    private final long maxStringTime = 600000;
+    private final Handler m_handler = new Handler();
+    
+    private final Runnable m_updateShotTable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                updateShotTable();
+            } catch (Throwable t) {
+                handleException(t);
+            }
+        }
+    };
+    
+    public static final String PREFS_NAME = "OST";
+    
+    private SharedPreferences m_settings;
     
     enum Preferences {
         RANDOM_START,
         SENSITIVITY,
         BUZZER_VOLUME,
         BUZZER_DELAY,
+        CHANNELS,
+        ADAPTIVE_READ,
+        READ_SIZE_FRAMES,
+        PROBE_BUILD,
+        PROBE_SAMPLE_RATE,
+        PROBE_MIN_BUFFER_SIZE,
+        LATENCY_BUILD,
+        OUTPUT_LATENCY_MICROS,
+        RECORD_STRINGS,
+        DRILL,
+        ADAPTIVE_THRESHOLD,
     };
     
-    private final Thread stringKiller = new Thread() {
-        @Override
-        public void run() {
-            while(true) {
-                try {
-                    Thread.sleep(20000);
-                } catch (InterruptedException e) {
-                    handleException(e);
-                }
-                if (startTime == -1) {
-                    continue;
-                }
-                if (System.currentTimeMillis() - startTime > maxStringTime) {
-                    try {
-                        m_string.end();
-                    } catch (Throwable t) {
-                        handleException(t);
-                    }
-                }
-            }
-        }
-    };
-
     private void constructShotString() throws Exception {
         m_string = new ShotString(
                 this,
@@ -92,61 +142,57 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
             @Override
             public void shotDetected(final ShotDetector detector,
                     final ShotEvent event) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            handleShotDetected(event);
-                        } catch (Throwable t) {
-                            handleException(t);
-                        }
+                synchronized (m_pendingShots) {
+                    m_pendingShots.add(event.m_shotNum, event.m_sample, event.m_timeMicros, event.m_splitMicros);
+                    if (!m_shotTableUpdateScheduled) {
+                        m_shotTableUpdateScheduled = true;
+                        m_handler.postDelayed(m_updateShotTable, FRAME_MILLIS);
                     }
+                }
+            }
+        });
+    }
 
-                    private void handleShotDetected(final ShotEvent event) {
-                        System.out.println("Recieved shot " + event.m_shotNum
-                                + " at " + event.m_time + " with split "
-                                + event.m_split);
-                        final TableRow r = new TableRow(OpenShotTimer.this);
-                        r.setLayoutParams(new LayoutParams(
-                                LayoutParams.FILL_PARENT,
-                                LayoutParams.WRAP_CONTENT));
-
-                        final TextView shotNumberView = new TextView(
-                                OpenShotTimer.this);
-                        shotNumberView.setText(Integer
-                                .toString(event.m_shotNum));
-                        r.addView(shotNumberView);
-
-                        final TextView shotTimeView = new TextView(
-                                OpenShotTimer.this);
-                        final StringWriter shotTimeSW = new StringWriter();
-                        final PrintWriter shotTimePW = new PrintWriter(
-                                shotTimeSW);
-                        shotTimePW.printf("%.2f", event.m_time / 1000.0)
-                                .flush();
-                        final String shotTime = shotTimeSW.toString();
-                        shotTimeView.setText(shotTime);
-                        r.addView(shotTimeView);
-
-                        final TextView shotSplitView = new TextView(
-                                OpenShotTimer.this);
-                        final StringWriter shotSplitSW = new StringWriter();
-                        final PrintWriter shotSplitPW = new PrintWriter(
-                                shotSplitSW);
-                        shotSplitPW.printf("%.2f", event.m_split / 1000.0)
-                                .flush();
-                        final String shotSplit = shotSplitSW.toString();
-                        shotSplitView.setText(shotSplit);
-                        r.addView(shotSplitView);
+    /**
+     * Add the shots detected since the last update to the table, reusing rows from earlier strings
+     */
+    private void updateShotTable() {
+        synchronized (m_pendingShots) {
+            m_shotsToShow.clear();
+            for (int ii = 0; ii < m_pendingShots.size(); ii++) {
+                m_shotsToShow.add(
+                        m_pendingShots.getShotNum(ii),
+                        m_pendingShots.getSample(ii),
+                        m_pendingShots.getTimeMicros(ii),
+                        m_pendingShots.getSplitMicros(ii));
+            }
+            m_pendingShots.clear();
+            m_shotTableUpdateScheduled = false;
+        }
 
-                        m_shotEventViews.add(r);
+        final ViewGroup shotTable = (ViewGroup) findViewById(R.id.ShotTable);
+        for (int ii = 0; ii < m_shotsToShow.size(); ii++) {
+            final ShotRow row = m_freeRows.isEmpty() ? new ShotRow() : m_freeRows.remove(m_freeRows.size() - 1);
+            row.bind(m_shotsToShow.getShotNum(ii), m_shotsToShow.getTimeMicros(ii), m_shotsToShow.getSplitMicros(ii));
+            m_shotRows.add(row);
+            shotTable.addView(row.m_row);
+        }
+    }
 
-                        final ViewGroup shotTable = (ViewGroup) findViewById(R.id.ShotTable);
-                        shotTable.addView(r);
-                    }
-                });
-            }
-        });
+    /**
+     * Take the rows of the last string out of the table and keep them for the next one, and forget
+     * any shots of the last string that haven't been shown yet
+     */
+    private void clearShotTable() {
+        synchronized (m_pendingShots) {
+            m_pendingShots.clear();
+        }
+        final ViewGroup shotTable = (ViewGroup) findViewById(R.id.ShotTable);
+        for (int ii = 0; ii < m_shotRows.size(); ii++) {
+            shotTable.removeView(m_shotRows.get(ii).m_row);
+            m_freeRows.add(m_shotRows.get(ii));
+        }
+        m_shotRows.clear();
     }
 
     public void handleException(final Throwable t) {
@@ -191,18 +237,25 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
             constructEndButton();
             
             constructOptionsMenu();
-            stringKiller.start();
         } catch (Throwable t) {
             handleException(t);
         }
     }
+    
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Settings are written behind, don't leave them unwritten if the app is killed in the background
+        if (m_string != null) {
+            m_string.saveSettings();
+        }
+    }
 
     private void constructEndButton() {
         findViewById(R.id.EndButton).setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
                 try {
-                    startTime = -1;
                     m_string.end();
                 } catch (Throwable t) {
                     handleException(t);
@@ -216,13 +269,14 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
             @Override
             public void onClick(View v) {
                 try {
-                    startTime = System.currentTimeMillis();
-                    final ViewGroup shotTable = (ViewGroup) findViewById(R.id.ShotTable);
-                    for (final View shotEventView : m_shotEventViews) {
-                        shotTable.removeView(shotEventView);
+                    final String drill = ((EditText)findViewById(R.id.DrillName)).getText().toString().trim();
+                    if (drill.length() > 0) {
+                        m_string.setDrill(drill);
                     }
-                    m_shotEventViews.clear();
-                    if (!m_string.start()) {
+                    final boolean started = m_string.start();
+                    // After start so that no more shots of the last string can arrive
+                    clearShotTable();
+                    if (!started) {
                         final AlertDialog.Builder b = new AlertDialog.Builder(
                                 OpenShotTimer.this);
                         b
@@ -248,7 +302,6 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
             @Override
             public void onClick(View v) {
                 try {
-                    startTime = -1;
                     m_string.close();
                     finish();
                 } catch (Throwable t) {
@@ -382,5 +435,76 @@ public class OpenShotTimer extends Activity implements ExceptionHandler {
         } else {
             randomStartBox.setEnabled(false);
         }
+        
+        ((EditText)findViewById(R.id.DrillName)).setText(m_string.getDrill());
+        
+        final CheckBox recordStringsBox = (CheckBox)findViewById(R.id.RecordStrings);
+        recordStringsBox.setChecked(m_string.getRecordStrings());
+        recordStringsBox.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                m_string.setRecordStrings(recordStringsBox.isChecked());
+            }
+        });
+        
+        final CheckBox adaptiveThresholdBox = (CheckBox)findViewById(R.id.AdaptiveThreshold);
+        adaptiveThresholdBox.setChecked(m_string.getAdaptiveThreshold());
+        adaptiveThresholdBox.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                m_string.setAdaptiveThreshold(adaptiveThresholdBox.isChecked());
+            }
+        });
+        
+        final CheckBox stereoBox = (CheckBox)findViewById(R.id.Stereo);
+        stereoBox.setChecked(m_string.getChannels() == 2);
+        stereoBox.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                m_string.setChannels(stereoBox.isChecked() ? 2 : 1);
+            }
+        });
+        
+        final CheckBox adaptiveReadBox = (CheckBox)findViewById(R.id.AdaptiveRead);
+        adaptiveReadBox.setChecked(m_string.getAdaptiveRead());
+        adaptiveReadBox.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                m_string.setAdaptiveRead(adaptiveReadBox.isChecked());
+            }
+        });
+        
+        final TextView lv = (TextView)findViewById(R.id.LatencyValue);
+        lv.setText(formatLatency(m_string.getOutputLatencyMicros()));
+        
+        findViewById(R.id.CalibrateButton).setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                try {
+                    v.setEnabled(false);
+                    lv.setText("Listening for the buzzer...");
+                    m_string.calibrate(new ShotString.CalibrationListener() {
+                        @Override
+                        public void calibrated(final boolean success, final long latencyMicros) {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    v.setEnabled(true);
+                                    lv.setText(success ?
+                                            formatLatency(latencyMicros) :
+                                            "Didn't hear the buzzer, still " + formatLatency(latencyMicros));
+                                }
+                            });
+                        }
+                    });
+                } catch (Throwable t) {
+                    handleException(t);
+                }
+            }
+        });
+    }
+    
+    private static String formatLatency(long micros) {
+        return (micros / 1000) + " ms";
     }
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes raw PCM in any {@link PcmFormat} into 16-bit mono samples in a reusable array, one pass per buffer.
+ * <p>
+ * Audio is decoded straight from the backing array of a heap buffer. 16-bit audio in a direct buffer, which is what
+ * AudioRecord fills, is read in place with absolute gets, so a capture loop cycling through a ring of buffers doesn't
+ * allocate a view of each one. Other direct buffers are decoded from one bulk copy.
+ * <p>
+ * Wider samples are truncated to their top 16 bits, 8-bit samples are shifted up, and floats are scaled so that 1.0 is
+ * full scale. Multi-channel frames are mixed down by keeping the channel with the largest magnitude so a spike on one
+ * microphone isn't halved by a quiet one, unless the decoder was asked to split channels, in which case each
+ * channel is de-interleaved into its own array. Bytes left over from a partial frame at the end of a buffer are
+ * held until the next buffer completes the frame.
+ */
+public final class PcmDecoder {
+
+    private final PcmFormat m_format;
+
+    /**
+     * Decoded mono samples from the last call to decode
+     */
+    private short m_samples[] = new short[0];
+
+    /**
+     * Decoded samples with channels still interleaved, only used for multi-channel formats
+     */
+    private short m_interleaved[] = new short[0];
+
+    /**
+     * Whether multi-channel frames are de-interleaved into m_channelSamples instead of mixed down
+     */
+    private final boolean m_splitChannels;
+
+    /**
+     * Decoded samples of each channel from the last call to decode, only used when splitting channels
+     */
+    private final short m_channelSamples[][];
+
+    /**
+     * Bulk copy of a direct buffer for formats that aren't read in place
+     */
+    private byte m_bytes[] = new byte[0];
+
+    /**
+     * Start of a frame that was split across buffers
+     */
+    private final byte m_pending[];
+    private int m_pendingCount = 0;
+
+    public PcmDecoder(PcmFormat format) {
+        this(format, false);
+    }
+
+    /**
+     * @param splitChannels De-interleave each channel into {@link #getChannelSamples(int)} instead of mixing them
+     * down into {@link #getSamples()}
+     */
+    public PcmDecoder(PcmFormat format, boolean splitChannels) {
+        m_format = format;
+        m_pending = new byte[format.m_bytesPerFrame];
+        m_splitChannels = splitChannels && format.m_channels > 1;
+        m_channelSamples = new short[format.m_channels][];
+        for (int channel = 0; channel < format.m_channels; channel++) {
+            m_channelSamples[channel] = new short[0];
+        }
+        if (!m_splitChannels) {
+            m_channelSamples[0] = m_samples;
+        }
+    }
+
+    public PcmFormat getFormat() {
+        return m_format;
+    }
+
+    /**
+     * Samples decoded by the last call to {@link #decode(ByteBuffer)}. Reused on the next call.
+     * Not filled in for multi-channel audio when splitting channels.
+     */
+    public short[] getSamples() {
+        return m_samples;
+    }
+
+    /**
+     * Samples of one channel decoded by the last call to {@link #decode(ByteBuffer)}. Reused on the next call.
+     * Channel 0 is the same as {@link #getSamples()} unless splitting channels.
+     */
+    public short[] getChannelSamples(int channel) {
+        return m_channelSamples[channel];
+    }
+
+    /**
+     * Decode all the audio remaining in the buffer. Consumes the buffer.
+     * @return Number of frames decoded into {@link #getSamples()}
+     */
+    public int decode(final ByteBuffer buffer) {
+        final int frameSize = m_format.m_bytesPerFrame;
+        final int maxFrames = (m_pendingCount + buffer.remaining()) / frameSize;
+        if (m_splitChannels) {
+            for (int channel = 0; channel < m_channelSamples.length; channel++) {
+                if (m_channelSamples[channel].length < maxFrames) {
+                    m_channelSamples[channel] = new short[maxFrames];
+                }
+            }
+        } else if (m_samples.length < maxFrames) {
+            m_samples = new short[maxFrames];
+            m_channelSamples[0] = m_samples;
+        }
+
+        int frames = 0;
+        if (m_pendingCount > 0) {
+            final int needed = Math.min(frameSize - m_pendingCount, buffer.remaining());
+            buffer.get(m_pending, m_pendingCount, needed);
+            m_pendingCount += needed;
+            if (m_pendingCount < frameSize) {
+                return 0;
+            }
+            decodeBytes(m_pending, 0, 1, 0);
+            m_pendingCount = 0;
+            frames = 1;
+        }
+
+        final int wholeFrames = buffer.remaining() / frameSize;
+        if (wholeFrames > 0) {
+            final int position = buffer.position();
+            final int length = wholeFrames * frameSize;
+            if (buffer.hasArray()) {
+                decodeBytes(buffer.array(), buffer.arrayOffset() + position, wholeFrames, frames);
+                buffer.position(position + length);
+            } else if (m_format.m_encoding == PcmFormat.Encoding.PCM_16BIT) {
+                decodeShorts(buffer, position, wholeFrames, frames);
+                buffer.position(position + length);
+            } else {
+                if (m_bytes.length < length) {
+                    m_bytes = new byte[length];
+                }
+                buffer.get(m_bytes, 0, length);
+                decodeBytes(m_bytes, 0, wholeFrames, frames);
+            }
+            frames += wholeFrames;
+        }
+
+        m_pendingCount = buffer.remaining();
+        buffer.get(m_pending, 0, m_pendingCount);
+        return frames;
+    }
+
+    /**
+     * Drop any partial frame held over from the last buffer
+     */
+    public void reset() {
+        m_pendingCount = 0;
+    }
+
+    /**
+     * Read 16-bit samples in place, swapping their bytes if the buffer's order isn't the format's. The buffer's
+     * position and order are left alone.
+     */
+    private void decodeShorts(final ByteBuffer buffer, final int position, final int frames, final int firstFrame) {
+        final int count = frames * m_format.m_channels;
+        final short out[];
+        final int outOffset;
+        if (m_format.m_channels == 1) {
+            out = m_samples;
+            outOffset = firstFrame;
+        } else {
+            ensureInterleaved(count);
+            out = m_interleaved;
+            outOffset = 0;
+        }
+
+        int in = position;
+        if (buffer.order() == m_format.m_byteOrder) {
+            for (int ii = 0; ii < count; ii++, in += 2) {
+                out[outOffset + ii] = buffer.getShort(in);
+            }
+        } else {
+            for (int ii = 0; ii < count; ii++, in += 2) {
+                out[outOffset + ii] = Short.reverseBytes(buffer.getShort(in));
+            }
+        }
+
+        if (m_format.m_channels > 1) {
+            mixDown(frames, firstFrame);
+        }
+    }
+
+    private void decodeBytes(final byte bytes[], final int offset, final int frames, final int firstFrame) {
+        final int count = frames * m_format.m_channels;
+        final short out[];
+        final int outOffset;
+        if (m_format.m_channels == 1) {
+            out = m_samples;
+            outOffset = firstFrame;
+        } else {
+            ensureInterleaved(count);
+            out = m_interleaved;
+            outOffset = 0;
+        }
+
+        final boolean bigEndian = m_format.m_byteOrder == ByteOrder.BIG_ENDIAN;
+        int in = offset;
+        switch (m_format.m_encoding) {
+        case PCM_8BIT:
+            for (int ii = 0; ii < count; ii++) {
+                out[outOffset + ii] = (short)(((bytes[in++] & 0xff) - 128) << 8);
+            }
+            break;
+        case PCM_16BIT:
+            if (bigEndian) {
+                for (int ii = 0; ii < count; ii++, in += 2) {
+                    out[outOffset + ii] = (short)((bytes[in] << 8) | (bytes[in + 1] & 0xff));
+                }
+            } else {
+                for (int ii = 0; ii < count; ii++, in += 2) {
+                    out[outOffset + ii] = (short)((bytes[in] & 0xff) | (bytes[in + 1] << 8));
+                }
+            }
+            break;
+        case PCM_24BIT:
+            if (bigEndian) {
+                for (int ii = 0; ii < count; ii++, in += 3) {
+                    out[outOffset + ii] = (short)((bytes[in] << 8) | (bytes[in + 1] & 0xff));
+                }
+            } else {
+                for (int ii = 0; ii < count; ii++, in += 3) {
+                    out[outOffset + ii] = (short)((bytes[in + 1] & 0xff) | (bytes[in + 2] << 8));
+                }
+            }
+            break;
+        case PCM_FLOAT:
+            for (int ii = 0; ii < count; ii++, in += 4) {
+                final int bits;
+                if (bigEndian) {
+                    bits = (bytes[in] << 24) | ((bytes[in + 1] & 0xff) << 16) |
+                        ((bytes[in + 2] & 0xff) << 8) | (bytes[in + 3] & 0xff);
+                } else {
+                    bits = (bytes[in] & 0xff) | ((bytes[in + 1] & 0xff) << 8) |
+                        ((bytes[in + 2] & 0xff) << 16) | (bytes[in + 3] << 24);
+                }
+                final int sample = (int)(Float.intBitsToFloat(bits) * 32768.0f);
+                out[outOffset + ii] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            break;
+        }
+
+        if (m_format.m_channels > 1) {
+            mixDown(frames, firstFrame);
+        }
+    }
+
+    /**
+     * Mix m_interleaved down into m_samples keeping the loudest channel of each frame,
+     * or de-interleave it into m_channelSamples
+     */
+    private void mixDown(final int frames, final int firstFrame) {
+        final int channels = m_format.m_channels;
+        if (m_splitChannels) {
+            for (int channel = 0; channel < channels; channel++) {
+                final short in[] = m_interleaved;
+                final short out[] = m_channelSamples[channel];
+                int index = channel;
+                for (int ii = 0; ii < frames; ii++) {
+                    out[firstFrame + ii] = in[index];
+                    index += channels;
+                }
+            }
+            return;
+        }
+
+        final short in[] = m_interleaved;
+        final short out[] = m_samples;
+        int index = 0;
+        for (int ii = 0; ii < frames; ii++) {
+            int loudest = in[index];
+            int loudestMagnitude = ThresholdScanner.magnitude(loudest);
+            for (int channel = 1; channel < channels; channel++) {
+                final int sample = in[index + channel];
+                final int magnitude = ThresholdScanner.magnitude(sample);
+                if (magnitude > loudestMagnitude) {
+                    loudest = sample;
+                    loudestMagnitude = magnitude;
+                }
+            }
+            out[firstFrame + ii] = (short)loudest;
+            index += channels;
+        }
+    }
+
+    private void ensureInterleaved(final int count) {
+        if (m_interleaved.length < count) {
+            m_interleaved = new short[count];
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the raw PCM audio handed to a detector. Sample rate is passed separately.
+ */
+public final class PcmFormat {
+
+    public enum Encoding {
+        /**
+         * 8 bit unsigned integer, the only 8 bit encoding Android and WAV use
+         */
+        PCM_8BIT(1),
+        PCM_16BIT(2),
+        PCM_24BIT(3),
+        /**
+         * 32 bit IEEE float, full scale is -1.0 to 1.0
+         */
+        PCM_FLOAT(4);
+
+        public final int m_bytesPerSample;
+
+        private Encoding(int bytesPerSample) {
+            m_bytesPerSample = bytesPerSample;
+        }
+    }
+
+    /**
+     * What AudioRecord produces with ENCODING_PCM_16BIT and CHANNEL_CONFIGURATION_MONO
+     */
+    public static final PcmFormat PCM_16BIT_MONO = new PcmFormat(Encoding.PCM_16BIT, ByteOrder.LITTLE_ENDIAN, 1);
+
+    public final Encoding m_encoding;
+
+    public final ByteOrder m_byteOrder;
+
+    /**
+     * Number of interleaved channels in a frame
+     */
+    public final int m_channels;
+
+    /**
+     * Size of one sample of one channel in bytes
+     */
+    public final int m_bytesPerSample;
+
+    /**
+     * Size of one sample of every channel in bytes
+     */
+    public final int m_bytesPerFrame;
+
+    public PcmFormat(Encoding encoding, ByteOrder byteOrder, int channels) {
+        if (encoding == null || byteOrder == null) {
+            throw new IllegalArgumentException("Encoding and byte order are required");
+        }
+        if (channels < 1) {
+            throw new IllegalArgumentException("Need at least one channel, got " + channels);
+        }
+        m_encoding = encoding;
+        m_byteOrder = byteOrder;
+        m_channels = channels;
+        m_bytesPerSample = encoding.m_bytesPerSample;
+        m_bytesPerFrame = m_bytesPerSample * channels;
+    }
+
+    /**
+     * Little endian mono format for a sample size in bits, 32 bits being float.
+     */
+    public static PcmFormat forSampleSize(int sampleSizeInBits) {
+        switch (sampleSizeInBits) {
+        case 8:
+            return new PcmFormat(Encoding.PCM_8BIT, ByteOrder.LITTLE_ENDIAN, 1);
+        case 16:
+            return PCM_16BIT_MONO;
+        case 24:
+            return new PcmFormat(Encoding.PCM_24BIT, ByteOrder.LITTLE_ENDIAN, 1);
+        case 32:
+            return new PcmFormat(Encoding.PCM_FLOAT, ByteOrder.LITTLE_ENDIAN, 1);
+        default:
+            throw new IllegalArgumentException("Unsupported sample size " + sampleSizeInBits);
+        }
+    }
+
+    /**
+     * Mono format from an ALSA style name as taken by arecord -f: U8, S16_LE, S16_BE, S24_3LE, S24_3BE,
+     * FLOAT_LE or FLOAT_BE
+     */
+    public static PcmFormat forName(String name) {
+        final String upper = name.toUpperCase();
+        final ByteOrder order = upper.endsWith("BE") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        if (upper.equals("U8")) {
+            return new PcmFormat(Encoding.PCM_8BIT, ByteOrder.LITTLE_ENDIAN, 1);
+        } else if (upper.equals("S16_LE") || upper.equals("S16_BE")) {
+            return new PcmFormat(Encoding.PCM_16BIT, order, 1);
+        } else if (upper.equals("S24_3LE") || upper.equals("S24_3BE")) {
+            return new PcmFormat(Encoding.PCM_24BIT, order, 1);
+        } else if (upper.equals("FLOAT_LE") || upper.equals("FLOAT_BE")) {
+            return new PcmFormat(Encoding.PCM_FLOAT, order, 1);
+        }
+        throw new IllegalArgumentException("Unsupported format " + name);
+    }
+
+    public PcmFormat withByteOrder(ByteOrder byteOrder) {
+        return new PcmFormat(m_encoding, byteOrder, m_channels);
+    }
+
+    public PcmFormat withChannels(int channels) {
+        return new PcmFormat(m_encoding, m_byteOrder, channels);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PcmFormat)) {
+            return false;
+        }
+        final PcmFormat other = (PcmFormat)o;
+        return m_encoding == other.m_encoding &&
+            m_byteOrder.equals(other.m_byteOrder) &&
+            m_channels == other.m_channels;
+    }
+
+    @Override
+    public int hashCode() {
+        return (m_encoding.hashCode() * 31 + m_byteOrder.hashCode()) * 31 + m_channels;
+    }
+
+    @Override
+    public String toString() {
+        return m_encoding + " " + m_byteOrder + " " + m_channels + " channel(s)";
+    }
+}
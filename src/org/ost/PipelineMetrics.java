@@ -0,0 +1,180 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for the capture and detection pipeline, showing how close a device is to falling behind.
+ * <p>
+ * The capture side records each read from the hardware and any audio dropped because processing was too far
+ * behind. The processing side records how long each buffer took to detect and how long the listeners took.
+ * Each kind of record must only ever come from one thread, the capture records from one and the processing
+ * records from one, and recording doesn't allocate or lock. Any thread can take a {@link Snapshot} at any time.
+ */
+public final class PipelineMetrics {
+
+    private static final int READS = 0;
+    private static final int SHORT_READS = 1;
+    private static final int DROPPED_BUFFERS = 2;
+    private static final int DROPPED_BYTES = 3;
+    private static final int BUFFERS_PROCESSED = 4;
+    private static final int SAMPLES_PROCESSED = 5;
+    private static final int PROCESS_NANOS = 6;
+    private static final int AUDIO_NANOS = 7;
+    private static final int SHOTS = 8;
+    private static final int COUNTERS = 9;
+
+    /**
+     * Each counter has a single writer, see the record methods
+     */
+    private final AtomicLongArray m_counters = new AtomicLongArray(COUNTERS);
+
+    private final LogHistogram m_readNanos = new LogHistogram();
+    private final LogHistogram m_readBytes = new LogHistogram();
+    private final LogHistogram m_processNanos = new LogHistogram();
+    private final LogHistogram m_dispatchNanos = new LogHistogram();
+
+    /**
+     * Copy of the metrics at some point, reusable so that polling needn't allocate
+     */
+    public static final class Snapshot {
+        public long m_reads;
+        public long m_shortReads;
+        public long m_droppedBuffers;
+        public long m_droppedBytes;
+        public long m_buffersProcessed;
+        public long m_samplesProcessed;
+        public long m_shots;
+
+        /**
+         * Total time spent detecting and the length of the audio it was spent on
+         */
+        public long m_processNanos;
+        public long m_audioNanos;
+
+        /**
+         * Time blocked in each read from the hardware, and bytes returned by each
+         */
+        public final LogHistogram.Snapshot m_readNanosHistogram = new LogHistogram.Snapshot();
+        public final LogHistogram.Snapshot m_readBytesHistogram = new LogHistogram.Snapshot();
+
+        /**
+         * Time to detect shots in each buffer
+         */
+        public final LogHistogram.Snapshot m_processNanosHistogram = new LogHistogram.Snapshot();
+
+        /**
+         * Time the listeners took over each buffer that had shots
+         */
+        public final LogHistogram.Snapshot m_dispatchNanosHistogram = new LogHistogram.Snapshot();
+
+        /**
+         * Time spent detecting as a fraction of the length of the audio, falling behind once it nears 1
+         */
+        public double getLoad() {
+            return m_audioNanos == 0 ? 0 : m_processNanos / (double)m_audioNanos;
+        }
+
+        /**
+         * Append everything as a JSON object, times in nanoseconds
+         */
+        public StringBuilder toJson(StringBuilder sb) {
+            sb.append("{\"reads\":").append(m_reads)
+                .append(",\"short_reads\":").append(m_shortReads)
+                .append(",\"dropped_buffers\":").append(m_droppedBuffers)
+                .append(",\"dropped_bytes\":").append(m_droppedBytes)
+                .append(",\"buffers\":").append(m_buffersProcessed)
+                .append(",\"samples\":").append(m_samplesProcessed)
+                .append(",\"shots\":").append(m_shots)
+                .append(",\"load\":").append(getLoad())
+                .append(",\"read_ns\":");
+            m_readNanosHistogram.toJson(sb).append(",\"read_bytes\":");
+            m_readBytesHistogram.toJson(sb).append(",\"process_ns\":");
+            m_processNanosHistogram.toJson(sb).append(",\"dispatch_ns\":");
+            return m_dispatchNanosHistogram.toJson(sb).append('}');
+        }
+    }
+
+    /**
+     * Capture thread only. A read from the hardware that took <tt>nanos</tt> and returned <tt>bytes</tt>
+     * of the <tt>requestedBytes</tt> asked for.
+     */
+    public void recordRead(long nanos, int requestedBytes, int bytes) {
+        m_readNanos.record(nanos);
+        m_readBytes.record(bytes);
+        if (bytes < requestedBytes) {
+            increment(SHORT_READS, 1);
+        }
+        increment(READS, 1);
+    }
+
+    /**
+     * Capture thread only. Audio that was read and thrown away because processing was too far behind.
+     */
+    public void recordDropped(int bytes) {
+        increment(DROPPED_BYTES, bytes);
+        increment(DROPPED_BUFFERS, 1);
+    }
+
+    /**
+     * Processing thread only. Detection over <tt>frames</tt> frames of audio lasting <tt>audioNanos</tt> took
+     * <tt>nanos</tt> and found <tt>shots</tt> shots.
+     */
+    public void recordProcess(long nanos, int frames, long audioNanos, int shots) {
+        m_processNanos.record(nanos);
+        increment(PROCESS_NANOS, nanos);
+        increment(AUDIO_NANOS, audioNanos);
+        increment(SAMPLES_PROCESSED, frames);
+        increment(SHOTS, shots);
+        increment(BUFFERS_PROCESSED, 1);
+    }
+
+    /**
+     * Processing thread only. Handing a buffer's shots to the listeners took <tt>nanos</tt>.
+     */
+    public void recordDispatch(long nanos) {
+        m_dispatchNanos.record(nanos);
+    }
+
+    public void snapshot(Snapshot into) {
+        into.m_reads = m_counters.get(READS);
+        into.m_shortReads = m_counters.get(SHORT_READS);
+        into.m_droppedBuffers = m_counters.get(DROPPED_BUFFERS);
+        into.m_droppedBytes = m_counters.get(DROPPED_BYTES);
+        into.m_buffersProcessed = m_counters.get(BUFFERS_PROCESSED);
+        into.m_samplesProcessed = m_counters.get(SAMPLES_PROCESSED);
+        into.m_processNanos = m_counters.get(PROCESS_NANOS);
+        into.m_audioNanos = m_counters.get(AUDIO_NANOS);
+        into.m_shots = m_counters.get(SHOTS);
+        m_readNanos.snapshot(into.m_readNanosHistogram);
+        m_readBytes.snapshot(into.m_readBytesHistogram);
+        m_processNanos.snapshot(into.m_processNanosHistogram);
+        m_dispatchNanos.snapshot(into.m_dispatchNanosHistogram);
+    }
+
+    public Snapshot snapshot() {
+        final Snapshot snapshot = new Snapshot();
+        snapshot(snapshot);
+        return snapshot;
+    }
+
+    private void increment(int counter, long delta) {
+        m_counters.set(counter, m_counters.get(counter) + delta);
+    }
+}
@@ -0,0 +1,107 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Fixed size circular buffer of the most recent decoded samples, addressed by their index on the detector's timeline.
+ * <p>
+ * The samples live in a direct buffer so keeping a few hundred milliseconds of history doesn't add to the
+ * heap the garbage collector has to walk. Writes and reads are bulk copies of at most two runs, one on each side of
+ * the wrap, and nothing is allocated after construction.
+ */
+public final class PreTriggerBuffer {
+
+    private final ShortBuffer m_ring;
+
+    private final int m_capacity;
+
+    /**
+     * Timeline index one past the newest sample written
+     */
+    private long m_end = 0;
+
+    public PreTriggerBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        m_capacity = capacity;
+        m_ring = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    /**
+     * Timeline index of the oldest sample still held
+     */
+    public long getStart() {
+        return Math.max(0, m_end - m_capacity);
+    }
+
+    /**
+     * Timeline index one past the newest sample
+     */
+    public long getEnd() {
+        return m_end;
+    }
+
+    /**
+     * Append samples that directly follow the ones already written, overwriting the oldest
+     */
+    public void write(short samples[], int offset, int length) {
+        if (length > m_capacity) {
+            offset += length - m_capacity;
+            m_end += length - m_capacity;
+            length = m_capacity;
+        }
+        final int index = (int)(m_end % m_capacity);
+        final int firstRun = Math.min(length, m_capacity - index);
+        m_ring.position(index);
+        m_ring.put(samples, offset, firstRun);
+        if (firstRun < length) {
+            m_ring.position(0);
+            m_ring.put(samples, offset + firstRun, length - firstRun);
+        }
+        m_end += length;
+    }
+
+    /**
+     * Copy the samples at timeline indexes <tt>[fromSample, fromSample + length)</tt> into <tt>out</tt>
+     * @throws IllegalArgumentException if any of them aren't held
+     */
+    public void read(long fromSample, short out[], int outOffset, int length) {
+        if (fromSample < getStart() || fromSample + length > m_end) {
+            throw new IllegalArgumentException(
+                    "Samples " + fromSample + " - " + (fromSample + length) +
+                    " aren't in the buffer, it holds " + getStart() + " - " + m_end);
+        }
+        final int index = (int)(fromSample % m_capacity);
+        final int firstRun = Math.min(length, m_capacity - index);
+        m_ring.position(index);
+        m_ring.get(out, outOffset, firstRun);
+        if (firstRun < length) {
+            m_ring.position(0);
+            m_ring.get(out, outOffset + firstRun, length - firstRun);
+        }
+    }
+}
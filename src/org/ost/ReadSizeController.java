@@ -0,0 +1,218 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Picks how much audio to read from the hardware at a time while capture is running. Every read and every buffer
+ * processed costs a fixed overhead, so bigger reads use less CPU, but a shot isn't reported until the read it is in
+ * has filled and been processed, so bigger reads also report shots later.
+ * <p>
+ * The capture thread reports how long each read blocked and the processing thread reports how long each buffer took
+ * and how many were waiting behind it. From those the latency of reporting a shot is estimated as the longer of the
+ * read size and the slowest recent read, which is how long the audio waits to be delivered, plus processing the
+ * buffer and everything queued ahead of it. Every so often the read size is halved if that is over the target, or
+ * doubled if twice the read size would still be under it. Reads are not made smaller once they block for twice as
+ * long as their audio lasts, because the hardware is only delivering audio that often anyway. Processing more than
+ * half the audio's duration means the processor is close to falling behind, so the read size is then doubled whatever
+ * the latency, and never halved into it. The size settles on the largest read that meets the target, which is the one
+ * with the least overhead.
+ * <p>
+ * The capture thread is the only caller of {@link #recordRead(long, int)} and the processing thread the only caller
+ * of {@link #recordProcess(int, long, int)}. Each only writes its own fields, and the chosen size is read by the
+ * capture thread from {@link #getReadBytes()} before every read.
+ */
+public final class ReadSizeController {
+
+    /**
+     * Largest fraction of the audio's duration that processing may take
+     */
+    static final double MAX_LOAD = 0.5;
+
+    /**
+     * Audio to process at one read size before deciding whether to change it
+     */
+    private static final long ADJUST_MILLIS = 500;
+
+    /**
+     * Buffers to process at one read size before deciding whether to change it
+     */
+    private static final int ADJUST_BUFFERS = 8;
+
+    /**
+     * Processing time is averaged with an exponential weight of 1/2^EWMA_SHIFT, and the peak read time decays by the
+     * same fraction per read
+     */
+    private static final int EWMA_SHIFT = 3;
+
+    private final SampleClock m_clock;
+
+    private final int m_frameBytes;
+
+    private final int m_minBytes;
+
+    private final int m_maxBytes;
+
+    private final long m_targetNanos;
+
+    /**
+     * Written by the processing thread
+     */
+    private volatile int m_readBytes;
+
+    /**
+     * Peak time a read of the current size blocked, written by the capture thread. The size it was measured at is
+     * written after it so the processing thread can ignore reads of a previous size.
+     */
+    private volatile long m_readPeakNanos = 0;
+    private volatile int m_readPeakBytes = 0;
+
+    /**
+     * Processing thread's state since the read size last changed
+     */
+    private long m_processNanos = 0;
+    private int m_buffers = 0;
+    private long m_audioNanos = 0;
+
+    private volatile long m_adjustments = 0;
+
+    /**
+     * @param frameBytes Read sizes are kept to a whole number of frames of this size
+     * @param minBytes Smallest read to make
+     * @param maxBytes Largest read to make
+     * @param initialBytes Read size to start with, for example the one chosen last time
+     * @param targetLatencyMillis Longest the audio of a shot should take to be read and processed
+     */
+    public ReadSizeController(
+            SampleClock clock,
+            int frameBytes,
+            int minBytes,
+            int maxBytes,
+            int initialBytes,
+            int targetLatencyMillis) {
+        if (frameBytes < 1 || minBytes < frameBytes || maxBytes < minBytes) {
+            throw new IllegalArgumentException("Bad read sizes, frame " + frameBytes + " bytes, min " +
+                    minBytes + " bytes, max " + maxBytes + " bytes");
+        }
+        m_clock = clock;
+        m_frameBytes = frameBytes;
+        m_minBytes = minBytes - minBytes % frameBytes;
+        m_maxBytes = maxBytes - maxBytes % frameBytes;
+        m_targetNanos = targetLatencyMillis * 1000000L;
+        m_readBytes = clamp(initialBytes);
+    }
+
+    /**
+     * Bytes to read next, a whole number of frames
+     */
+    public int getReadBytes() {
+        return m_readBytes;
+    }
+
+    public int getMinBytes() {
+        return m_minBytes;
+    }
+
+    public int getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    /**
+     * Number of times the read size has changed
+     */
+    public long getAdjustments() {
+        return m_adjustments;
+    }
+
+    /**
+     * Called by the capture thread after each read
+     * @param nanos How long the read blocked
+     * @param bytes Bytes it returned
+     */
+    public void recordRead(long nanos, int bytes) {
+        final int readBytes = m_readBytes;
+        if (bytes != readBytes) {
+            // Short reads and reads from before the size changed say nothing about the current size
+            return;
+        }
+        if (m_readPeakBytes != readBytes) {
+            m_readPeakNanos = nanos;
+            m_readPeakBytes = readBytes;
+        } else {
+            final long peak = m_readPeakNanos;
+            m_readPeakNanos = Math.max(nanos, peak - (peak >> EWMA_SHIFT));
+        }
+    }
+
+    /**
+     * Called by the processing thread after each buffer
+     * @param bytes Bytes in the buffer
+     * @param nanos How long processing it took
+     * @param backlog Buffers still waiting to be processed
+     */
+    public void recordProcess(int bytes, long nanos, int backlog) {
+        final int readBytes = m_readBytes;
+        if (bytes != readBytes) {
+            return;
+        }
+        if (m_buffers == 0) {
+            m_processNanos = nanos;
+        } else {
+            m_processNanos += (nanos - m_processNanos) >> EWMA_SHIFT;
+        }
+        m_buffers++;
+        final long readNanos = bytesToNanos(readBytes);
+        m_audioNanos += readNanos;
+        if (m_buffers < ADJUST_BUFFERS || m_audioNanos < ADJUST_MILLIS * 1000000L) {
+            return;
+        }
+
+        final long readPeakNanos = m_readPeakBytes == readBytes ? m_readPeakNanos : 0;
+        final double load = m_processNanos / (double)readNanos;
+        final long latency = Math.max(readNanos, readPeakNanos) + m_processNanos * (1 + backlog);
+        // Processing a buffer half the size takes at least half as long, doubling it takes at most twice as long
+        final long doubledLatency = Math.max(readNanos * 2, readPeakNanos) + m_processNanos * 2 * (1 + backlog);
+        int next = readBytes;
+        if (load > MAX_LOAD) {
+            next = clamp(readBytes * 2);
+        } else if (latency > m_targetNanos) {
+            // Reads that block for much longer than their audio lasts are waiting on the hardware, smaller reads
+            // would wait just as long
+            if (load * 2 <= MAX_LOAD && readPeakNanos < readNanos * 2) {
+                next = clamp(readBytes / 2);
+            }
+        } else if (doubledLatency <= m_targetNanos) {
+            next = clamp(readBytes * 2);
+        }
+
+        m_buffers = 0;
+        m_audioNanos = 0;
+        if (next != readBytes) {
+            m_adjustments++;
+            m_readBytes = next;
+        }
+    }
+
+    private long bytesToNanos(int bytes) {
+        return m_clock.toMicros(bytes / m_frameBytes) * 1000;
+    }
+
+    private int clamp(int bytes) {
+        final int aligned = bytes - bytes % m_frameBytes;
+        return Math.max(m_minBytes, Math.min(m_maxBytes, aligned));
+    }
+}
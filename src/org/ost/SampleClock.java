@@ -0,0 +1,78 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Converts between sample indexes on the capture timeline and time, exactly, for any sample rate.
+ * <p>
+ * Sample indexes are split into whole seconds and a remainder of less than one second worth of samples.
+ * The remainder is converted with a 24.40 fixed point microseconds-per-sample reciprocal that is
+ * rounded up, which is precise enough that truncating the product gives exactly
+ * <tt>floor(sample * 1000000 / sampleRate)</tt> for sample rates up to 1 MHz without overflowing a long.
+ */
+public final class SampleClock {
+
+    private static final int FRACTION_BITS = 40;
+
+    private static final long MICROS_PER_SECOND = 1000000;
+
+    private final int m_sampleRate;
+
+    /**
+     * Microseconds per sample in fixed point with FRACTION_BITS of fraction
+     */
+    private final long m_microsPerSample;
+
+    public SampleClock(int sampleRate) {
+        if (sampleRate <= 0 || sampleRate > MICROS_PER_SECOND) {
+            throw new IllegalArgumentException("Unsupported sample rate " + sampleRate);
+        }
+        m_sampleRate = sampleRate;
+        final long numerator = MICROS_PER_SECOND << FRACTION_BITS;
+        m_microsPerSample = (numerator + sampleRate - 1) / sampleRate;
+    }
+
+    public int getSampleRate() {
+        return m_sampleRate;
+    }
+
+    /**
+     * Time of a sample in microseconds since sample 0, rounded down.
+     */
+    public long toMicros(long sample) {
+        final long seconds = sample / m_sampleRate;
+        final long remainder = sample - seconds * m_sampleRate;
+        return seconds * MICROS_PER_SECOND + ((remainder * m_microsPerSample) >>> FRACTION_BITS);
+    }
+
+    /**
+     * Index of the first sample at or after the specified number of milliseconds.
+     */
+    public long millisToSamples(long millis) {
+        return microsToSamples(millis * 1000);
+    }
+
+    /**
+     * Index of the first sample at or after the specified number of microseconds.
+     */
+    public long microsToSamples(long micros) {
+        final long seconds = micros / MICROS_PER_SECOND;
+        final long remainder = micros - seconds * MICROS_PER_SECOND;
+        return seconds * m_sampleRate + (remainder * m_sampleRate + MICROS_PER_SECOND - 1) / MICROS_PER_SECOND;
+    }
+}
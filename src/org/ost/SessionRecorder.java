@@ -0,0 +1,441 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the audio of a string to a file as it is captured, losslessly compressed, along with where each shot was
+ * detected so review can seek straight to it. Read back with {@link SessionRecording}.
+ * <p>
+ * The recorder is the ring's trailing reader, so it runs on its own thread reading the same direct buffers the
+ * detector does and is never waited for. If it falls a whole ring behind, or a buffer is overwritten while it is
+ * encoding it, the audio it missed is recorded as a gap and the timeline of the recording stays in step with the
+ * detector's. Shots are handed over through a queue, so the processing thread never waits on the file.
+ * <p>
+ * The file is a header followed by records, appended as they are made so a recording cut short is still readable up
+ * to its last whole record. Audio is in chunks of up to {@link #CHUNK_FRAMES} frames that each decode on their own.
+ * Every sample is predicted by the previous one on its channel and the difference Rice coded, with the Rice
+ * parameter adapted to a running mean of the recent differences so quiet and loud passages both code tightly. The
+ * last record is an index of the chunks and shots, found from a fixed size trailer.
+ * <pre>
+ * header  int magic, short version, short channels, int sampleRate
+ * chunk   'C', long firstFrame, int frames, int bytes, bytes of coded samples
+ * gap     'G', long firstFrame, long frames
+ * shot    'S', long frame
+ * index   'I', long frames, int chunks, chunks * (long firstFrame, int frames, long offset),
+ *         int shots, shots * long frame
+ * trailer long indexOffset, int indexMagic
+ * </pre>
+ */
+public final class SessionRecorder implements Runnable {
+
+    static final int MAGIC = 0x4f535452;
+    static final int INDEX_MAGIC = 0x4f535449;
+    static final short VERSION = 1;
+
+    static final int HEADER_BYTES = 12;
+    static final int CHUNK_HEADER_BYTES = 17;
+    static final int TRAILER_BYTES = 12;
+
+    static final byte CHUNK = 'C';
+    static final byte GAP = 'G';
+    static final byte SHOT = 'S';
+    static final byte INDEX = 'I';
+
+    /**
+     * Most frames in a chunk, which is as much as has to be decoded to start reading anywhere
+     */
+    static final int CHUNK_FRAMES = 4096;
+
+    /**
+     * A coded difference whose quotient would take this many bits or more is written as this many ones
+     * followed by the zigzagged difference in full
+     */
+    static final int ESCAPE = 24;
+    static final int RAW_BITS = 17;
+
+    /**
+     * The running mean of zigzagged differences is kept scaled up by 2^MEAN_SHIFT and decays by 1/2^MEAN_SHIFT
+     * of itself per sample
+     */
+    static final int MEAN_SHIFT = 4;
+
+    /**
+     * How long to wait for audio before checking for shots and whether the recording is finished
+     */
+    private static final long TRAIL_TIMEOUT_NANOS = 50000000L;
+
+    private final AudioRing m_ring;
+
+    private final FileChannel m_file;
+
+    private final int m_channels;
+
+    private final int m_frameBytes;
+
+    /**
+     * The chunk being coded, written out in one go when it is full
+     */
+    private final ByteBuffer m_chunk;
+
+    /**
+     * Gap and shot records
+     */
+    private final ByteBuffer m_record = ByteBuffer.allocateDirect(32);
+
+    /**
+     * Frames of shots detected and not yet written, handed over by the processing thread
+     */
+    private final ConcurrentLinkedQueue<Long> m_pendingShots = new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * Index of the chunks and shots written so far
+     */
+    private long m_chunkFirstFrames[] = new long[64];
+    private int m_chunkFrameCounts[] = new int[64];
+    private long m_chunkOffsets[] = new long[64];
+    private int m_chunkCount = 0;
+    private long m_shotFrames[] = new long[16];
+    private int m_shotCount = 0;
+
+    /**
+     * Offset in the file of the next record
+     */
+    private long m_position = 0;
+
+    /**
+     * First frame of the chunk being coded, and frames in it so far
+     */
+    private long m_chunkStart = 0;
+    private int m_chunkLength = 0;
+
+    /**
+     * Coder state for each channel, reset at the start of each chunk
+     */
+    private final int m_previous[];
+    private final int m_means[];
+
+    /**
+     * Bits coded and not yet put in the chunk, from the most significant end
+     */
+    private long m_bits = 0;
+    private int m_bitCount = 0;
+
+    private volatile boolean m_finishing = false;
+
+    /**
+     * Set if writing the file failed, after which nothing more is recorded
+     */
+    private volatile IOException m_failure = null;
+
+    private volatile long m_gapFrames = 0;
+
+    /**
+     * Create the recorder before capture starts, it records from the next buffer published to the ring. The file
+     * header is written straight away.
+     * @param file Empty file to record to, closed by {@link #finish()}
+     */
+    public SessionRecorder(AudioRing ring, FileChannel file, int sampleRate, int channels) throws IOException {
+        if (channels < 1) {
+            throw new IllegalArgumentException("Can't record " + channels + " channels");
+        }
+        m_ring = ring;
+        m_file = file;
+        m_channels = channels;
+        m_frameBytes = 2 * channels;
+        m_previous = new int[channels];
+        m_means = new int[channels];
+        m_chunk = ByteBuffer.allocateDirect(CHUNK_HEADER_BYTES + (CHUNK_FRAMES * channels * (ESCAPE + RAW_BITS) + 7) / 8);
+        ring.startTrailing();
+
+        m_record.clear();
+        m_record.putInt(MAGIC);
+        m_record.putShort(VERSION);
+        m_record.putShort((short)channels);
+        m_record.putInt(sampleRate);
+        m_record.flip();
+        write(m_record);
+        beginChunk(0);
+    }
+
+    /**
+     * Called by the processing thread when a shot is detected
+     * @param frame Frame of the capture the shot was detected at
+     */
+    public void shotDetected(long frame) {
+        m_pendingShots.offer(frame);
+    }
+
+    /**
+     * Frames recorded as gaps because the recorder fell behind or capture overflowed
+     */
+    public long getGapFrames() {
+        return m_gapFrames;
+    }
+
+    /**
+     * Bytes written to the file so far
+     */
+    public long getBytes() {
+        return m_position;
+    }
+
+    /**
+     * Why recording stopped early, or null if it hasn't
+     */
+    public IOException getFailure() {
+        return m_failure;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final ByteBuffer b = m_ring.trail(TRAIL_TIMEOUT_NANOS);
+                if (b == null) {
+                    writeShots();
+                    if (m_finishing) {
+                        break;
+                    }
+                    continue;
+                }
+                final long gap = m_ring.getTrailGap();
+                if (gap > 0) {
+                    writeGap(gap / m_frameBytes);
+                }
+                final long bufferEnd = m_chunkStart + m_chunkLength + b.limit() / m_frameBytes;
+                if (!code(b) || !m_ring.trailIntact()) {
+                    // What was coded since the last chunk written may have been overwritten as it was read,
+                    // so it and the rest of the buffer are recorded as a gap
+                    final long chunkStart = m_chunkStart;
+                    beginChunk(chunkStart);
+                    skip(bufferEnd - chunkStart);
+                }
+                m_ring.trailRelease();
+                writeShots();
+            }
+            endChunk();
+            writeShots();
+            writeIndex();
+        } catch (IOException e) {
+            m_failure = e;
+            System.out.println("Stopped recording the string, " + e);
+        }
+    }
+
+    /**
+     * Called once capture has stopped and the processing thread has finished, waits for the recorder thread to
+     * record the rest of the audio and closes the file
+     */
+    public void finish(Thread recorderThread) throws IOException {
+        m_finishing = true;
+        boolean interrupted = false;
+        while (recorderThread.isAlive()) {
+            try {
+                recorderThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        m_file.close();
+    }
+
+    /**
+     * Code the audio in the buffer, writing each chunk as it fills
+     * @return False if the ring reported the buffer overwritten before a chunk was written, leaving the chunk
+     * being coded untrustworthy
+     */
+    private boolean code(ByteBuffer b) throws IOException {
+        final int end = b.limit() - b.limit() % m_frameBytes;
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        for (int position = b.position(); position < end; ) {
+            for (int ii = 0; ii < m_channels; ii++) {
+                final int sample = b.getShort(position);
+                position += 2;
+                final int difference = sample - m_previous[ii];
+                m_previous[ii] = sample;
+                final int zigzag = (difference << 1) ^ (difference >> 31);
+                final int k = riceParameter(m_means[ii]);
+                final int quotient = zigzag >>> k;
+                if (quotient < ESCAPE) {
+                    // quotient ones, a zero, then the low k bits
+                    putBits(((1L << quotient) - 1) << 1, quotient + 1);
+                    putBits(zigzag & ((1 << k) - 1), k);
+                } else {
+                    putBits((1L << ESCAPE) - 1, ESCAPE);
+                    putBits(zigzag, RAW_BITS);
+                }
+                m_means[ii] += zigzag - (m_means[ii] >> MEAN_SHIFT);
+            }
+            if (++m_chunkLength == CHUNK_FRAMES) {
+                if (!m_ring.trailIntact()) {
+                    return false;
+                }
+                endChunk();
+                beginChunk(m_chunkStart + CHUNK_FRAMES);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rice parameter for a scaled running mean, shared with the decoder
+     */
+    static int riceParameter(int mean) {
+        return 32 - Integer.numberOfLeadingZeros(mean >> (MEAN_SHIFT + 1));
+    }
+
+    private void putBits(long value, int count) {
+        m_bits |= value << (64 - m_bitCount - count);
+        m_bitCount += count;
+        while (m_bitCount >= 8) {
+            m_chunk.put((byte)(m_bits >>> 56));
+            m_bits <<= 8;
+            m_bitCount -= 8;
+        }
+    }
+
+    private void beginChunk(long firstFrame) {
+        m_chunkStart = firstFrame;
+        m_chunkLength = 0;
+        m_bits = 0;
+        m_bitCount = 0;
+        for (int ii = 0; ii < m_channels; ii++) {
+            m_previous[ii] = 0;
+            m_means[ii] = 0;
+        }
+        m_chunk.clear();
+        m_chunk.position(CHUNK_HEADER_BYTES);
+    }
+
+    /**
+     * Write the chunk being coded, if it has any frames
+     */
+    private void endChunk() throws IOException {
+        if (m_chunkLength == 0) {
+            return;
+        }
+        if (m_bitCount > 0) {
+            putBits(0, 8 - m_bitCount);
+        }
+        m_chunk.put(0, CHUNK);
+        m_chunk.putLong(1, m_chunkStart);
+        m_chunk.putInt(9, m_chunkLength);
+        m_chunk.putInt(13, m_chunk.position() - CHUNK_HEADER_BYTES);
+        m_chunk.flip();
+
+        if (m_chunkCount == m_chunkOffsets.length) {
+            m_chunkFirstFrames = grow(m_chunkFirstFrames);
+            m_chunkOffsets = grow(m_chunkOffsets);
+            final int counts[] = new int[m_chunkFrameCounts.length * 2];
+            System.arraycopy(m_chunkFrameCounts, 0, counts, 0, m_chunkCount);
+            m_chunkFrameCounts = counts;
+        }
+        m_chunkFirstFrames[m_chunkCount] = m_chunkStart;
+        m_chunkFrameCounts[m_chunkCount] = m_chunkLength;
+        m_chunkOffsets[m_chunkCount] = m_position;
+        m_chunkCount++;
+        write(m_chunk);
+    }
+
+    /**
+     * Write any audio coded so far and record frames that weren't captured
+     */
+    private void writeGap(long frames) throws IOException {
+        endChunk();
+        beginChunk(m_chunkStart + m_chunkLength);
+        skip(frames);
+    }
+
+    /**
+     * Record frames as a gap, starting at the chunk being coded which must be empty
+     */
+    private void skip(long frames) throws IOException {
+        if (frames <= 0) {
+            return;
+        }
+        m_record.clear();
+        m_record.put(GAP);
+        m_record.putLong(m_chunkStart);
+        m_record.putLong(frames);
+        m_record.flip();
+        write(m_record);
+        m_gapFrames += frames;
+        beginChunk(m_chunkStart + frames);
+    }
+
+    private void writeShots() throws IOException {
+        Long frame;
+        while ((frame = m_pendingShots.poll()) != null) {
+            m_record.clear();
+            m_record.put(SHOT);
+            m_record.putLong(frame);
+            m_record.flip();
+            write(m_record);
+            if (m_shotCount == m_shotFrames.length) {
+                m_shotFrames = grow(m_shotFrames);
+            }
+            m_shotFrames[m_shotCount++] = frame;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final ByteBuffer index = ByteBuffer.allocateDirect(
+                1 + 8 + 4 + m_chunkCount * 20 + 4 + m_shotCount * 8 + TRAILER_BYTES);
+        final long indexOffset = m_position;
+        index.put(INDEX);
+        index.putLong(m_chunkStart + m_chunkLength);
+        index.putInt(m_chunkCount);
+        for (int ii = 0; ii < m_chunkCount; ii++) {
+            index.putLong(m_chunkFirstFrames[ii]);
+            index.putInt(m_chunkFrameCounts[ii]);
+            index.putLong(m_chunkOffsets[ii]);
+        }
+        index.putInt(m_shotCount);
+        for (int ii = 0; ii < m_shotCount; ii++) {
+            index.putLong(m_shotFrames[ii]);
+        }
+        index.putLong(indexOffset);
+        index.putInt(INDEX_MAGIC);
+        index.flip();
+        write(index);
+    }
+
+    /**
+     * Append a flipped record to the file straight from its direct buffer
+     */
+    private void write(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            m_position += m_file.write(b);
+        }
+    }
+
+    private static long[] grow(long values[]) {
+        final long grown[] = new long[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+}
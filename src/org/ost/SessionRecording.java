@@ -0,0 +1,328 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back the audio and shots of a string recorded by {@link SessionRecorder}. The index at the end of the file
+ * is read when it is opened, so seeking to a shot only decodes the chunk it is in. A recording that was cut short
+ * has no index and is scanned instead, up to its last whole record. Frames that weren't recorded read as silence.
+ */
+public final class SessionRecording {
+
+    private final FileChannel m_file;
+
+    private final int m_sampleRate;
+
+    private final int m_channels;
+
+    private long m_frames = 0;
+
+    private long m_chunkFirstFrames[] = new long[64];
+    private int m_chunkFrameCounts[] = new int[64];
+    private long m_chunkOffsets[] = new long[64];
+    private int m_chunkCount = 0;
+
+    private long m_shotFrames[] = new long[16];
+    private int m_shotCount = 0;
+
+    /**
+     * Samples of the chunk decoded last, interleaved
+     */
+    private final short m_decoded[];
+    private int m_decodedChunk = -1;
+
+    private ByteBuffer m_coded = ByteBuffer.allocate(8192);
+
+    private SessionRecording(FileChannel file) throws IOException {
+        m_file = file;
+        final ByteBuffer header = read(0, SessionRecorder.HEADER_BYTES);
+        if (header.getInt() != SessionRecorder.MAGIC) {
+            throw new IOException("Not a recorded string");
+        }
+        final short version = header.getShort();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("Can't read version " + version + " recordings");
+        }
+        m_channels = header.getShort();
+        m_sampleRate = header.getInt();
+        m_decoded = new short[SessionRecorder.CHUNK_FRAMES * m_channels];
+        if (!readIndex()) {
+            scan();
+        }
+    }
+
+    public static SessionRecording open(File file) throws IOException {
+        final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return new SessionRecording(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        m_file.close();
+    }
+
+    public int getSampleRate() {
+        return m_sampleRate;
+    }
+
+    public int getChannels() {
+        return m_channels;
+    }
+
+    /**
+     * Length of the recording, gaps included
+     */
+    public long getFrames() {
+        return m_frames;
+    }
+
+    public int getShotCount() {
+        return m_shotCount;
+    }
+
+    /**
+     * Frame the shot was detected at
+     */
+    public long getShotFrame(int shot) {
+        if (shot < 0 || shot >= m_shotCount) {
+            throw new IndexOutOfBoundsException("Shot " + shot + " of " + m_shotCount);
+        }
+        return m_shotFrames[shot];
+    }
+
+    /**
+     * Read interleaved samples starting at a frame
+     * @param frames Most frames to read
+     * @return Frames read, fewer than asked for at the end of the recording
+     */
+    public int read(long frame, short out[], int offset, int frames) throws IOException {
+        int done = 0;
+        while (done < frames && frame + done < m_frames) {
+            final long at = frame + done;
+            final int chunk = findChunk(at);
+            final int n;
+            if (chunk >= 0 && at < m_chunkFirstFrames[chunk] + m_chunkFrameCounts[chunk]) {
+                decode(chunk);
+                final int from = (int)(at - m_chunkFirstFrames[chunk]);
+                n = Math.min(frames - done, m_chunkFrameCounts[chunk] - from);
+                System.arraycopy(m_decoded, from * m_channels, out, offset + done * m_channels, n * m_channels);
+            } else {
+                final long next = chunk + 1 < m_chunkCount ? m_chunkFirstFrames[chunk + 1] : m_frames;
+                n = (int)Math.min(frames - done, next - at);
+                Arrays.fill(out, offset + done * m_channels, offset + (done + n) * m_channels, (short)0);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Last chunk starting at or before the frame, or -1 if there isn't one
+     */
+    private int findChunk(long frame) {
+        int low = 0;
+        int high = m_chunkCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (m_chunkFirstFrames[middle] <= frame) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private void decode(int chunk) throws IOException {
+        if (chunk == m_decodedChunk) {
+            return;
+        }
+        final ByteBuffer header = read(m_chunkOffsets[chunk], SessionRecorder.CHUNK_HEADER_BYTES);
+        if (header.get() != SessionRecorder.CHUNK || header.getLong() != m_chunkFirstFrames[chunk]) {
+            throw new IOException("Index doesn't match the chunk at " + m_chunkOffsets[chunk]);
+        }
+        final int frames = header.getInt();
+        final int bytes = header.getInt();
+        final ByteBuffer coded = read(m_chunkOffsets[chunk] + SessionRecorder.CHUNK_HEADER_BYTES, bytes);
+        final byte data[] = coded.array();
+
+        final int previous[] = new int[m_channels];
+        final int means[] = new int[m_channels];
+        int bit = 0;
+        final int samples = frames * m_channels;
+        for (int ii = 0; ii < samples; ii++) {
+            final int channel = ii % m_channels;
+            final int k = SessionRecorder.riceParameter(means[channel]);
+            int quotient = 0;
+            while (quotient < SessionRecorder.ESCAPE && bit(data, bit++) == 1) {
+                quotient++;
+            }
+            final int zigzag;
+            if (quotient == SessionRecorder.ESCAPE) {
+                zigzag = bits(data, bit, SessionRecorder.RAW_BITS);
+                bit += SessionRecorder.RAW_BITS;
+            } else {
+                zigzag = (quotient << k) | bits(data, bit, k);
+                bit += k;
+            }
+            if (bit > bytes * 8) {
+                throw new IOException("Chunk at " + m_chunkOffsets[chunk] + " is shorter than its frames");
+            }
+            final int sample = previous[channel] + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previous[channel] = sample;
+            means[channel] += zigzag - (means[channel] >> SessionRecorder.MEAN_SHIFT);
+            m_decoded[ii] = (short)sample;
+        }
+        m_decodedChunk = chunk;
+    }
+
+    private static int bit(byte data[], int bit) {
+        final int index = bit >> 3;
+        return index < data.length ? (data[index] >> (7 - (bit & 7))) & 1 : 0;
+    }
+
+    private static int bits(byte data[], int bit, int count) {
+        int value = 0;
+        for (int ii = 0; ii < count; ii++) {
+            value = (value << 1) | bit(data, bit + ii);
+        }
+        return value;
+    }
+
+    /**
+     * Read the index written when the recording finished
+     * @return False if there isn't one
+     */
+    private boolean readIndex() throws IOException {
+        final long size = m_file.size();
+        if (size < SessionRecorder.HEADER_BYTES + SessionRecorder.TRAILER_BYTES) {
+            return false;
+        }
+        final ByteBuffer trailer = read(size - SessionRecorder.TRAILER_BYTES, SessionRecorder.TRAILER_BYTES);
+        final long indexOffset = trailer.getLong();
+        if (trailer.getInt() != SessionRecorder.INDEX_MAGIC ||
+                indexOffset < SessionRecorder.HEADER_BYTES ||
+                indexOffset > size - SessionRecorder.TRAILER_BYTES) {
+            return false;
+        }
+        final ByteBuffer index = read(indexOffset, (int)(size - SessionRecorder.TRAILER_BYTES - indexOffset));
+        if (index.get() != SessionRecorder.INDEX) {
+            return false;
+        }
+        m_frames = index.getLong();
+        final int chunks = index.getInt();
+        for (int ii = 0; ii < chunks; ii++) {
+            addChunk(index.getLong(), index.getInt(), index.getLong());
+        }
+        final int shots = index.getInt();
+        for (int ii = 0; ii < shots; ii++) {
+            addShot(index.getLong());
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the index from the records of a recording that wasn't finished
+     */
+    private void scan() throws IOException {
+        final long size = m_file.size();
+        long position = SessionRecorder.HEADER_BYTES;
+        while (position < size) {
+            final ByteBuffer record = read(position, (int)Math.min(SessionRecorder.CHUNK_HEADER_BYTES, size - position));
+            final byte type = record.get();
+            if (type == SessionRecorder.CHUNK && record.remaining() >= 16) {
+                final long firstFrame = record.getLong();
+                final int frames = record.getInt();
+                final long end = position + SessionRecorder.CHUNK_HEADER_BYTES + record.getInt();
+                if (end > size) {
+                    break;
+                }
+                addChunk(firstFrame, frames, position);
+                m_frames = Math.max(m_frames, firstFrame + frames);
+                position = end;
+            } else if (type == SessionRecorder.GAP && record.remaining() >= 16) {
+                m_frames = Math.max(m_frames, record.getLong() + record.getLong());
+                position += 17;
+            } else if (type == SessionRecorder.SHOT && record.remaining() >= 8) {
+                addShot(record.getLong());
+                position += 9;
+            } else {
+                // Cut short part way through a record, or at the index
+                break;
+            }
+        }
+    }
+
+    private void addChunk(long firstFrame, int frames, long offset) {
+        if (m_chunkCount == m_chunkOffsets.length) {
+            m_chunkFirstFrames = grow(m_chunkFirstFrames);
+            m_chunkOffsets = grow(m_chunkOffsets);
+            final int counts[] = new int[m_chunkFrameCounts.length * 2];
+            System.arraycopy(m_chunkFrameCounts, 0, counts, 0, m_chunkCount);
+            m_chunkFrameCounts = counts;
+        }
+        m_chunkFirstFrames[m_chunkCount] = firstFrame;
+        m_chunkFrameCounts[m_chunkCount] = frames;
+        m_chunkOffsets[m_chunkCount] = offset;
+        m_chunkCount++;
+    }
+
+    private void addShot(long frame) {
+        if (m_shotCount == m_shotFrames.length) {
+            m_shotFrames = grow(m_shotFrames);
+        }
+        m_shotFrames[m_shotCount++] = frame;
+    }
+
+    /**
+     * Read bytes from the file into a reused buffer, flipped for reading
+     */
+    private ByteBuffer read(long position, int bytes) throws IOException {
+        if (m_coded.capacity() < bytes) {
+            m_coded = ByteBuffer.allocate(Math.max(bytes, m_coded.capacity() * 2));
+        }
+        final ByteBuffer b = m_coded;
+        b.clear();
+        b.limit(bytes);
+        while (b.hasRemaining()) {
+            if (m_file.read(b, position + b.position()) < 0) {
+                throw new EOFException("Recording ends before " + (position + bytes));
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static long[] grow(long values[]) {
+        final long grown[] = new long[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+}
@@ -0,0 +1,195 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.SharedPreferences;
+
+/**
+ * Holds the current {@link ShotSettings} and writes them to SharedPreferences behind the caller's back, so
+ * dragging a seek bar doesn't commit to disk on the UI thread for every step.
+ * <p>
+ * A change replaces the snapshot straight away and schedules a write a short delay later on the writer. Changes
+ * made before the write runs are coalesced into it, and the write always saves the latest snapshot, so there is at
+ * most one write per delay however fast the settings change. Any thread can read the snapshot without locking.
+ * Changes based on the current snapshot go through {@link #update(Change)}, which applies them atomically, so a
+ * setting saved by a background thread isn't lost to one the user changes at the same time.
+ */
+public final class SettingsStore {
+
+    /**
+     * How long after a change the settings are written
+     */
+    static final long WRITE_DELAY_MILLIS = 500;
+
+    private final SharedPreferences m_preferences;
+
+    private final ScheduledExecutorService m_writer;
+
+    private final AtomicReference<ShotSettings> m_current = new AtomicReference<ShotSettings>();
+
+    /**
+     * Last snapshot written, only used by the writer
+     */
+    private ShotSettings m_written;
+
+    private final AtomicBoolean m_writeScheduled = new AtomicBoolean(false);
+
+    private volatile long m_writes = 0;
+
+    /**
+     * Set by {@link #close()}, after which changes are kept in the snapshot but not written
+     */
+    private volatile boolean m_closed = false;
+
+    private final Runnable m_write = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before reading the snapshot so a change made during the write schedules another
+            m_writeScheduled.set(false);
+            write();
+        }
+    };
+
+    /**
+     * @param writer Runs the writes, should be single threaded so writes land in order
+     */
+    public SettingsStore(SharedPreferences preferences, ScheduledExecutorService writer) {
+        m_preferences = preferences;
+        m_writer = writer;
+        m_written = ShotSettings.load(preferences);
+        m_current.set(m_written);
+    }
+
+    /**
+     * Current settings
+     */
+    public ShotSettings get() {
+        return m_current.get();
+    }
+
+    /**
+     * Replace the current settings, losing any change made at the same time, and write them soon
+     */
+    public void set(ShotSettings settings) {
+        if (settings == null) {
+            throw new IllegalArgumentException("Settings are required");
+        }
+        m_current.set(settings);
+        scheduleWrite();
+    }
+
+    /**
+     * Change made to the current settings by {@link SettingsStore#update(Change)}
+     */
+    public interface Change {
+        /**
+         * @return The changed settings, may be called more than once if another thread changes the settings at
+         * the same time so shouldn't have side effects
+         */
+        ShotSettings apply(ShotSettings settings);
+    }
+
+    /**
+     * Apply a change to the current settings atomically and write them soon. Safe to call from any thread.
+     */
+    public void update(Change change) {
+        while (true) {
+            final ShotSettings current = m_current.get();
+            final ShotSettings changed = change.apply(current);
+            if (changed == null) {
+                throw new IllegalArgumentException("Settings are required");
+            }
+            if (m_current.compareAndSet(current, changed)) {
+                break;
+            }
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!m_closed && m_writeScheduled.compareAndSet(false, true)) {
+            m_writer.schedule(m_write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Number of times the settings have been written
+     */
+    public long getWrites() {
+        return m_writes;
+    }
+
+    /**
+     * Start writing any change now instead of after the delay, for when the app may be about to be killed.
+     * Does nothing once closed, when everything has already been written.
+     */
+    public void flush() {
+        if (m_closed) {
+            return;
+        }
+        m_writer.execute(m_write);
+    }
+
+    /**
+     * Write any change, wait for it to be written and shut down the writer. Closing again does nothing.
+     */
+    public void close() {
+        if (m_closed) {
+            return;
+        }
+        m_closed = true;
+        final Future<?> written = m_writer.submit(m_write);
+        m_writer.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                written.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        final ShotSettings settings = m_current.get();
+        if (settings == m_written) {
+            return;
+        }
+        final SharedPreferences.Editor editor = m_preferences.edit();
+        settings.save(editor);
+        if (!editor.commit()) {
+            System.out.println("Failed to save settings");
+            return;
+        }
+        m_written = settings;
+        m_writes++;
+    }
+}
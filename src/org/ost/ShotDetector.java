@@ -31,44 +31,213 @@ public abstract class ShotDetector {
     protected final int m_sampleRate;
     
     /**
-     * Size of the audio samples in bits
+     * Format of the raw audio handed to processAudio
      */
-    protected final int m_sampleSizeInBits;
+    protected final PcmFormat m_format;
     
     /**
-     * Size of the audio samples in bytes
+     * Turns the raw audio into the 16-bit mono samples the detection algorithms work on
      */
-    protected final int m_sampleSizeInBytes;
+    private final PcmDecoder m_decoder;
     
     /**
-     * Number of audio samples per millisecond at the current sample rate
+     * Converts sample indexes on the timeline to and from time at the current sample rate
      */
-    protected final double m_samplesPerMillisecond;
+    protected final SampleClock m_clock;
     
     /**
      * Current sample in the timeline that was last received from the capturer.
      */
     protected long m_currentSample = 0;
+    
+    /**
+     * {@link #setStartSample(long) Start sample} of a string whose start signal hasn't gone off yet
+     */
+    public static final long NOT_STARTED = Long.MAX_VALUE;
+    
+    /**
+     * Sample of the start signal, shot times are from here and shots before it are ignored. Volatile so it can be
+     * set from the thread firing the start signal.
+     */
+    private volatile long m_startSample = 0;
+    
+    /**
+     * Number of shots detected so far
+     */
+    private int m_shotCount = 0;
+    
+    /**
+     * Sample index of the last shot detected
+     */
+    private long m_lastShotSample = 0;
+    
+    /**
+     * Where processing times are recorded, if anywhere. Volatile so it can be set from another thread.
+     */
+    private volatile PipelineMetrics m_metrics = null;
+    
+    /**
+     * Detector for little endian mono audio
+     * @param sampleRate Number of samples per second
+     * @param sampleSizeInBits 8, 16, 24 or 32 (float)
+     */
+    public ShotDetector(int sampleRate, int sampleSizeInBits) {
+        this(sampleRate, PcmFormat.forSampleSize(sampleSizeInBits));
+    }
+    
     /**
      * 
+     * @param sampleRate Number of frames per second
      * @param format Format of the audio that will be provided to this detector
-     * @param configProperties Application config properties
      */
+    public ShotDetector(int sampleRate, PcmFormat format) {
+        this(sampleRate, format, false);
+    }
     
-    public ShotDetector(int sampleRate, int sampleSizeInBits) {
+    /**
+     * @param splitChannels Decode each channel separately for {@link #processDecoded(PcmDecoder, int, ShotEventBuffer)}
+     * instead of mixing them down
+     */
+    protected ShotDetector(int sampleRate, PcmFormat format, boolean splitChannels) {
         m_sampleRate = sampleRate;
-        m_sampleSizeInBits = sampleSizeInBits;
-        m_sampleSizeInBytes = m_sampleSizeInBits / 8;
-        m_samplesPerMillisecond = (m_sampleRate / 1000);
+        m_format = format;
+        m_decoder = new PcmDecoder(format, splitChannels);
+        m_clock = new SampleClock(sampleRate);
+    }
+    
+    /**
+     * Record the time taken by every call to {@link #processAudio(ByteBuffer, ShotEventBuffer)} from now on,
+     * which must all be made by the same thread. Null to stop recording.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        m_metrics = metrics;
     }
     
+    /**
+     * Time shots from the start signal at this sample instead of from the start of the timeline, and ignore
+     * any before it. {@link #NOT_STARTED} ignores every shot until the start is known. Can be set from any thread,
+     * before the audio the start is in has been processed.
+     */
+    public void setStartSample(long sample) {
+        m_startSample = sample;
+    }
+    
+    public long getStartSample() {
+        return m_startSample;
+    }
+    
+    public PcmFormat getFormat() {
+        return m_format;
+    }
+    
+    public SampleClock getClock() {
+        return m_clock;
+    }
+    
+    /**
+     * Whether, once this detector reports a shot, what it detects afterwards depends only on that shot and
+     * the audio from shortly before it on. Two detectors that both report a shot at the same sample are then
+     * in the same state however differently they got there, which is what lets {@link OfflineAnalyzer}
+     * stitch independently started detectors together. False unless a detector knows better.
+     */
+    public boolean isResetByShot() {
+        return false;
+    }
+    
+    /**
+     * Process a buffer of audio and return any shots detected in it. Allocates the returned
+     * array on every call, use {@link #processAudio(ByteBuffer, ShotEventBuffer)} from the
+     * capture loop.
+     */
     public final ShotEvent[] processAudio(final ByteBuffer b) {
-        final int length = b.remaining();
-        final ShotEvent events[] = p_processAudio(b);
-        m_currentSample += (length / m_sampleSizeInBytes);
-        return events;
+        final ShotEventBuffer events = new ShotEventBuffer(1);
+        processAudio(b, events);
+        return events.toArray();
     }
     
-    abstract protected ShotEvent[] p_processAudio(final ByteBuffer b);
+    /**
+     * Process a buffer of audio and append any shots detected in it to the caller's buffer.
+     * Does not allocate.
+     * @return Number of events appended to <tt>events</tt>
+     */
+    public final int processAudio(final ByteBuffer b, final ShotEventBuffer events) {
+        final PipelineMetrics metrics = m_metrics;
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final int frames = m_decoder.decode(b);
+        final int shots = processDecoded(m_decoder, frames, events);
+        if (metrics != null) {
+            metrics.recordProcess(System.nanoTime() - start, frames, frames * 1000000000L / m_sampleRate, shots);
+        }
+        return shots;
+    }
+    
+    /**
+     * Process the frames just decoded from the audio handed to processAudio. By default the mixed
+     * down samples go to {@link #processSamples(short[], int, int, ShotEventBuffer)}. Detectors that
+     * split channels override this and have to advance m_currentSample themselves.
+     * @return Number of events appended to <tt>events</tt>
+     */
+    protected int processDecoded(final PcmDecoder decoder, final int frames, final ShotEventBuffer events) {
+        return processSamples(decoder.getSamples(), 0, frames, events);
+    }
+    
+    /**
+     * Process audio that has already been decoded to 16-bit mono samples and append any shots
+     * detected in it to the caller's buffer. Does not allocate.
+     * @return Number of events appended to <tt>events</tt>
+     */
+    public final int processSamples(
+            final short samples[],
+            final int offset,
+            final int length,
+            final ShotEventBuffer events) {
+        final int sizeBefore = events.size();
+        p_processSamples(samples, offset, length, events);
+        m_currentSample += length;
+        return events.size() - sizeBefore;
+    }
+    
+    /**
+     * Look for shots in <tt>samples[offset, offset + length)</tt>. The sample at <tt>offset</tt>
+     * is at m_currentSample on the timeline.
+     */
+    abstract protected void p_processSamples(
+            final short samples[],
+            final int offset,
+            final int length,
+            final ShotEventBuffer events);
+    
+    /**
+     * The audio has ended, append any shots still waiting on audio after them to the caller's buffer.
+     * Call once after the last buffer of a recording or string.
+     * @return Number of events appended to <tt>events</tt>
+     */
+    public final int flush(final ShotEventBuffer events) {
+        final int sizeBefore = events.size();
+        p_flush(events);
+        return events.size() - sizeBefore;
+    }
+    
+    /**
+     * Report shots that are waiting on audio that is never going to come. Nothing waits by default.
+     */
+    protected void p_flush(final ShotEventBuffer events) {
+    }
+    
+    /**
+     * Record a shot at the specified sample index. Numbers the shot and computes its time
+     * and split from the sample timeline and the start sample, unless it is before the start.
+     */
+    protected final void addShot(final ShotEventBuffer events, final long sample) {
+        final long startSample = m_startSample;
+        if (sample < startSample) {
+            return;
+        }
+        final long lastShotSample = m_shotCount == 0 ? startSample : m_lastShotSample;
+        final long timeMicros = m_clock.toMicros(sample - startSample);
+        final long splitMicros = timeMicros - m_clock.toMicros(lastShotSample - startSample);
+        m_lastShotSample = sample;
+        events.add(++m_shotCount, sample, timeMicros, splitMicros);
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a detector over raw PCM from stdin, a FIFO or a file without any of the Android app, for example
+ * <pre>arecord -f S16_LE -r 44100 -c 1 -t raw | java -cp &lt;classes&gt; org.ost.ShotDetectorCli -d verified -</pre>
+ * <p>
+ * Each shot is written to stdout as a line of JSON and flushed straight away. Audio is processed as soon as a read
+ * returns rather than when the buffer fills, so a shot is written as soon as the detector has seen enough audio
+ * after it. When the input ends a summary of throughput and latency is written to stderr as a line of JSON.
+ * Latency is measured from the read that completed a shot to its line being flushed. Detection delay is how much
+ * audio after the shot the detector needed before it reported it. The summary also carries the
+ * {@link PipelineMetrics} of the run.
+ */
+public final class ShotDetectorCli {
+
+    private static final String USAGE =
+        "usage: ShotDetectorCli [-d amplitude|verified|adaptive|envelope|spectral] [-r rate] [-f format]\n" +
+        "                       [-c channels] [-s sensitivity] [-b bufferBytes] [file|-]\n" +
+        "  format is U8, S16_LE, S16_BE, S24_3LE, S24_3BE, FLOAT_LE or FLOAT_BE, default S16_LE\n";
+
+    private ShotDetectorCli() {}
+
+    /**
+     * Create a detector by the name used on the command line
+     * @param format Mono format of the audio each detector sees
+     */
+    static ShotDetector createDetector(String name, int sampleRate, PcmFormat format, int sensitivity) {
+        if (name.equals("amplitude")) {
+            return new AmplitudeSpikeShotDetector(sampleRate, format, sensitivity);
+        } else if (name.equals("verified")) {
+            return new AmplitudeSpikeShotDetector(
+                    sampleRate, format, sensitivity, false, new ImpulseShotVerifier(sampleRate));
+        } else if (name.equals("adaptive")) {
+            return new AmplitudeSpikeShotDetector(sampleRate, format, sensitivity, true);
+        } else if (name.equals("envelope")) {
+            return new EnvelopeShotDetector(sampleRate, format);
+        } else if (name.equals("spectral")) {
+            return new SpectralShotDetector(sampleRate, format);
+        }
+        throw new IllegalArgumentException("Unknown detector " + name);
+    }
+
+    public static void main(String args[]) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    /**
+     * @return Process exit status
+     */
+    static int run(String args[], InputStream stdin, PrintStream stdout, PrintStream stderr) {
+        String detectorName = "amplitude";
+        int sampleRate = 44100;
+        String formatName = "S16_LE";
+        int channels = 1;
+        int sensitivity = 5;
+        int bufferBytes = 4096;
+        String input = "-";
+        try {
+            for (int ii = 0; ii < args.length; ii++) {
+                final String arg = args[ii];
+                if (arg.equals("-d")) {
+                    detectorName = args[++ii];
+                } else if (arg.equals("-r")) {
+                    sampleRate = Integer.parseInt(args[++ii]);
+                } else if (arg.equals("-f")) {
+                    formatName = args[++ii];
+                } else if (arg.equals("-c")) {
+                    channels = Integer.parseInt(args[++ii]);
+                } else if (arg.equals("-s")) {
+                    sensitivity = Integer.parseInt(args[++ii]);
+                } else if (arg.equals("-b")) {
+                    bufferBytes = Integer.parseInt(args[++ii]);
+                } else if (arg.startsWith("-") && arg.length() > 1) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    input = arg;
+                }
+            }
+        } catch (RuntimeException e) {
+            stderr.println(e.getMessage() == null ? e.toString() : e.getMessage());
+            stderr.print(USAGE);
+            return 2;
+        }
+
+        ExecutorService executor = null;
+        try {
+            final PcmFormat mono = PcmFormat.forName(formatName);
+            final ShotDetector detector;
+            if (channels == 1) {
+                detector = createDetector(detectorName, sampleRate, mono, sensitivity);
+            } else {
+                final ShotDetector channelDetectors[] = new ShotDetector[channels];
+                for (int ii = 0; ii < channels; ii++) {
+                    channelDetectors[ii] = createDetector(detectorName, sampleRate, mono, sensitivity);
+                }
+                executor = Executors.newFixedThreadPool(channels - 1);
+                detector = new MultiChannelShotDetector(
+                        sampleRate, mono.withChannels(channels), channelDetectors, executor);
+            }
+
+            final ReadableByteChannel in = input.equals("-") ?
+                    Channels.newChannel(stdin) : new FileInputStream(input).getChannel();
+            try {
+                detect(detector, in, bufferBytes, stdout, stderr);
+            } finally {
+                in.close();
+            }
+            return 0;
+        } catch (IllegalArgumentException e) {
+            stderr.println(e.getMessage());
+            stderr.print(USAGE);
+            return 2;
+        } catch (IOException e) {
+            stderr.println("Failed reading " + input + ": " + e);
+            return 1;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void detect(
+            final ShotDetector detector,
+            final ReadableByteChannel in,
+            final int bufferBytes,
+            final PrintStream stdout,
+            final PrintStream stderr) throws IOException {
+        final PrintStream out = new PrintStream(new BufferedOutputStream(stdout, 8192), false);
+        final ShotEventBuffer events = new ShotEventBuffer();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferBytes);
+        final StringBuilder line = new StringBuilder(128);
+        final int frameSize = detector.getFormat().m_bytesPerFrame;
+        final SampleClock clock = detector.getClock();
+
+        long latencies[] = new long[64];
+        long delays[] = new long[64];
+        int shots = 0;
+        long bytes = 0;
+        final long startNanos = System.nanoTime();
+
+        final PipelineMetrics metrics = new PipelineMetrics();
+        detector.setMetrics(metrics);
+        while (true) {
+            final long readStartNanos = System.nanoTime();
+            final int requested = buffer.remaining();
+            final int read = in.read(buffer);
+            final long readNanos = System.nanoTime();
+            if (read == -1) {
+                // Shots still waiting on audio after them are reported when the input ends
+                detector.flush(events);
+            } else {
+                metrics.recordRead(readNanos - readStartNanos, requested, read);
+                buffer.flip();
+                bytes += buffer.remaining();
+                detector.processAudio(buffer, events);
+                buffer.clear();
+            }
+
+            final long framesSoFar = bytes / frameSize;
+            for (int ii = 0; ii < events.size(); ii++) {
+                line.setLength(0);
+                line.append("{\"shot\":").append(events.getShotNum(ii))
+                    .append(",\"sample\":").append(events.getSample(ii))
+                    .append(",\"time_us\":").append(events.getTimeMicros(ii))
+                    .append(",\"split_us\":").append(events.getSplitMicros(ii))
+                    .append('}');
+                out.println(line);
+                out.flush();
+                if (shots == latencies.length) {
+                    latencies = grow(latencies);
+                    delays = grow(delays);
+                }
+                latencies[shots] = (System.nanoTime() - readNanos) / 1000;
+                delays[shots] = clock.toMicros(framesSoFar) - events.getTimeMicros(ii);
+                shots++;
+            }
+            events.clear();
+            if (read == -1) {
+                break;
+            }
+        }
+        out.flush();
+
+        final double wallSeconds = (System.nanoTime() - startNanos) / 1000000000.0;
+        final long frames = bytes / frameSize;
+        final double audioSeconds = clock.toMicros(frames) / 1000000.0;
+        // JSON numbers whatever the user's locale, which could otherwise write 1,234 for 1.234
+        stderr.printf(
+                Locale.ROOT,
+                "{\"frames\":%d,\"audio_s\":%.3f,\"wall_s\":%.3f,\"frames_per_s\":%.0f,\"realtime\":%.1f,\"shots\":%d," +
+                "\"latency_us\":%s,\"detection_delay_us\":%s,\"metrics\":%s}%n",
+                frames,
+                audioSeconds,
+                wallSeconds,
+                frames / wallSeconds,
+                audioSeconds / wallSeconds,
+                shots,
+                percentiles(latencies, shots),
+                percentiles(delays, shots),
+                metrics.snapshot().toJson(new StringBuilder()));
+    }
+
+    private static long[] grow(long values[]) {
+        final long grown[] = new long[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+
+    private static String percentiles(long values[], int count) {
+        if (count == 0) {
+            return "null";
+        }
+        final long sorted[] = new long[count];
+        System.arraycopy(values, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        return "{\"p50\":" + sorted[(count - 1) / 2] +
+            ",\"p99\":" + sorted[(int)((count - 1) * 99L / 100)] +
+            ",\"max\":" + sorted[count - 1] + "}";
+    }
+}
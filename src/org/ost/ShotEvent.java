@@ -24,6 +24,22 @@ public class ShotEvent {
      */
     public final int m_shotNum;
     
+    /**
+     * Index of the sample the shot was detected at, counting from the first sample of the timeline
+     */
+    public final long m_sample;
+    
+    /**
+     * Time the shot occured in microseconds since the beginning of the timeline
+     */
+    public final long m_timeMicros;
+    
+    /**
+     * Time between this shot and the last shot (or the beginning of the timeline for the first shot)
+     * in microseconds
+     */
+    public final long m_splitMicros;
+    
     /**
      * Time the shot occured in milliseconds since the beginning of the timeline
      */
@@ -36,9 +52,12 @@ public class ShotEvent {
     public final long m_split;
     
     
-    public ShotEvent(int shotNum, long time, long prevTime) {
+    public ShotEvent(int shotNum, long sample, long timeMicros, long splitMicros) {
         m_shotNum = shotNum;
-        m_time = time;
-        m_split = prevTime;
+        m_sample = sample;
+        m_timeMicros = timeMicros;
+        m_splitMicros = splitMicros;
+        m_time = timeMicros / 1000;
+        m_split = splitMicros / 1000;
     }
 }
\ No newline at end of file
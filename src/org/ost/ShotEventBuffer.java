@@ -0,0 +1,148 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Caller owned, reusable buffer that shot detectors write events into. Events are stored
+ * in parallel primitive arrays so that filling and clearing the buffer on the audio thread
+ * does not allocate. The arrays only grow if more events arrive in one buffer than
+ * there is room for, which in practice never happens after the first few reads.
+ */
+public final class ShotEventBuffer {
+
+    private int m_shotNums[];
+    private long m_samples[];
+    private long m_timesMicros[];
+    private long m_splitsMicros[];
+
+    private int m_size = 0;
+
+    public ShotEventBuffer() {
+        this(8);
+    }
+
+    public ShotEventBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        m_shotNums = new int[capacity];
+        m_samples = new long[capacity];
+        m_timesMicros = new long[capacity];
+        m_splitsMicros = new long[capacity];
+    }
+
+    /**
+     * Append an event. Same arguments as {@link ShotEvent#ShotEvent(int, long, long, long)}
+     */
+    public void add(int shotNum, long sample, long timeMicros, long splitMicros) {
+        if (m_size == m_shotNums.length) {
+            grow();
+        }
+        m_shotNums[m_size] = shotNum;
+        m_samples[m_size] = sample;
+        m_timesMicros[m_size] = timeMicros;
+        m_splitsMicros[m_size] = splitMicros;
+        m_size++;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public void clear() {
+        m_size = 0;
+    }
+
+    public int getShotNum(int index) {
+        checkIndex(index);
+        return m_shotNums[index];
+    }
+
+    public long getSample(int index) {
+        checkIndex(index);
+        return m_samples[index];
+    }
+
+    public long getTimeMicros(int index) {
+        checkIndex(index);
+        return m_timesMicros[index];
+    }
+
+    public long getSplitMicros(int index) {
+        checkIndex(index);
+        return m_splitsMicros[index];
+    }
+
+    /**
+     * Time of the event in milliseconds, see {@link ShotEvent#m_time}
+     */
+    public long getTime(int index) {
+        return getTimeMicros(index) / 1000;
+    }
+
+    /**
+     * Split of the event in milliseconds, see {@link ShotEvent#m_split}
+     */
+    public long getSplit(int index) {
+        return getSplitMicros(index) / 1000;
+    }
+
+    /**
+     * Materialize one event as an object, for handing off to listeners.
+     * This is the only place the buffer allocates in steady state and it is only
+     * called when a shot was actually detected.
+     */
+    public ShotEvent get(int index) {
+        checkIndex(index);
+        return new ShotEvent(m_shotNums[index], m_samples[index], m_timesMicros[index], m_splitsMicros[index]);
+    }
+
+    public ShotEvent[] toArray() {
+        final ShotEvent events[] = new ShotEvent[m_size];
+        for (int ii = 0; ii < m_size; ii++) {
+            events[ii] = get(ii);
+        }
+        return events;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= m_size) {
+            throw new IndexOutOfBoundsException("Index " + index + " size " + m_size);
+        }
+    }
+
+    private void grow() {
+        final int capacity = m_shotNums.length * 2;
+        final int shotNums[] = new int[capacity];
+        final long samples[] = new long[capacity];
+        final long timesMicros[] = new long[capacity];
+        final long splitsMicros[] = new long[capacity];
+        System.arraycopy(m_shotNums, 0, shotNums, 0, m_size);
+        System.arraycopy(m_samples, 0, samples, 0, m_size);
+        System.arraycopy(m_timesMicros, 0, timesMicros, 0, m_size);
+        System.arraycopy(m_splitsMicros, 0, splitsMicros, 0, m_size);
+        m_shotNums = shotNums;
+        m_samples = samples;
+        m_timesMicros = timesMicros;
+        m_splitsMicros = splitsMicros;
+    }
+}
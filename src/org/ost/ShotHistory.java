@@ -0,0 +1,595 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Every string shot, kept on disk so they outlive the shot table. Strings are appended to a log, each as one record
+ * written in one go, holding when the string started, the drill and the split of every shot.
+ * <p>
+ * An index of fixed size entries, one per string, holds what most questions need, the start, drill, number of shots,
+ * first shot and total time, and where the string is in the log. It is loaded whole when the history is opened, a
+ * few tens of bytes a string, and searched by date within each drill, so finding the best first shot or the trend
+ * over some weeks never reads the log. Only split distributions read the records of the strings they cover. Index
+ * entries are written in batches. If the app dies before a batch is written, the strings after the last indexed one
+ * are found by reading the log from there when the history is next opened.
+ * <p>
+ * Drill names are given ids in the order they are first used, kept in a small file of their own.
+ * <pre>
+ * log     int magic, int version, then per string
+ *         int recordBytes, long startMillis, int drill, int shots, shots * int splitMicros
+ * index   int magic, int version, then per string
+ *         long logOffset, long startMillis, int drill, int shots, int firstShotMicros, long totalMicros
+ * </pre>
+ * The first shot's split is its time from the start signal. Methods are synchronized, so strings can be appended
+ * on one thread while another queries.
+ */
+public final class ShotHistory {
+
+    static final int LOG_MAGIC = 0x4f53484c;
+    static final int INDEX_MAGIC = 0x4f534849;
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_BYTES = 8;
+    static final int RECORD_HEADER_BYTES = 20;
+    static final int ENTRY_BYTES = 36;
+
+    /**
+     * Strings appended before their index entries are written
+     */
+    static final int INDEX_BATCH = 16;
+
+    public static final long WEEK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * What the index says about the strings of one week
+     */
+    public static final class Week {
+        public final long m_startMillis;
+        public final int m_strings;
+        public final int m_shots;
+
+        /**
+         * Best and mean first shot, -1 with no strings
+         */
+        public final long m_bestFirstShotMicros;
+        public final long m_meanFirstShotMicros;
+
+        /**
+         * Mean split after the first shot, -1 with no splits
+         */
+        public final long m_meanSplitMicros;
+
+        public Week(
+                long startMillis,
+                int strings,
+                int shots,
+                long bestFirstShotMicros,
+                long meanFirstShotMicros,
+                long meanSplitMicros) {
+            m_startMillis = startMillis;
+            m_strings = strings;
+            m_shots = shots;
+            m_bestFirstShotMicros = bestFirstShotMicros;
+            m_meanFirstShotMicros = meanFirstShotMicros;
+            m_meanSplitMicros = meanSplitMicros;
+        }
+    }
+
+    /**
+     * The entries of one drill in the order they were appended, which is by start
+     */
+    private static final class Drill {
+        private int m_entries[] = new int[64];
+        private int m_count = 0;
+
+        private void add(int entry) {
+            if (m_count == m_entries.length) {
+                final int grown[] = new int[m_entries.length * 2];
+                System.arraycopy(m_entries, 0, grown, 0, m_count);
+                m_entries = grown;
+            }
+            m_entries[m_count++] = entry;
+        }
+    }
+
+    private final FileChannel m_log;
+
+    private final FileChannel m_index;
+
+    private final File m_drillsFile;
+
+    private final ArrayList<String> m_drillNames = new ArrayList<String>();
+
+    private final ArrayList<Drill> m_drills = new ArrayList<Drill>();
+
+    /**
+     * The index, one element per string
+     */
+    private long m_offsets[] = new long[256];
+    private long m_starts[] = new long[256];
+    private int m_drillIds[] = new int[256];
+    private int m_shotCounts[] = new int[256];
+    private int m_firstShots[] = new int[256];
+    private long m_totals[] = new long[256];
+    private int m_count = 0;
+
+    /**
+     * Entries already in the index file
+     */
+    private int m_indexed = 0;
+
+    private long m_logEnd;
+
+    /**
+     * Reused for records and index entries, grown for strings with a lot of shots
+     */
+    private ByteBuffer m_buffer = ByteBuffer.allocate(4096);
+
+    private ShotHistory(File dir) throws IOException {
+        m_drillsFile = new File(dir, "drills");
+        m_log = new RandomAccessFile(new File(dir, "history.log"), "rw").getChannel();
+        m_index = new RandomAccessFile(new File(dir, "history.idx"), "rw").getChannel();
+        readDrills();
+        m_logEnd = openFile(m_log, LOG_MAGIC);
+        final long indexEnd = openFile(m_index, INDEX_MAGIC);
+        readIndex(indexEnd);
+        catchUp();
+    }
+
+    /**
+     * Open the history kept in a directory, creating it if there isn't one
+     */
+    public static ShotHistory open(File dir) throws IOException {
+        dir.mkdirs();
+        return new ShotHistory(dir);
+    }
+
+    /**
+     * Write any index entries not yet written and close the files
+     */
+    public synchronized void close() throws IOException {
+        try {
+            writeIndex();
+        } finally {
+            m_log.close();
+            m_index.close();
+        }
+    }
+
+    /**
+     * Number of strings in the history
+     */
+    public synchronized int size() {
+        return m_count;
+    }
+
+    /**
+     * Append a string as one write to the end of the log
+     * @param startMillis Wall clock time of the start signal. A string started while the clock was set back is
+     * filed at the start of the string before it, so the index stays in order.
+     * @param splitsMicros Split of each shot, the first being the time of the first shot
+     */
+    public synchronized void append(long startMillis, String drill, int splitsMicros[], int shots) throws IOException {
+        if (shots < 1) {
+            throw new IllegalArgumentException("A string needs at least one shot, got " + shots);
+        }
+        final int drillId = drillId(drill);
+        final long start = m_count == 0 ? startMillis : Math.max(startMillis, m_starts[m_count - 1]);
+        final int recordBytes = RECORD_HEADER_BYTES + shots * 4;
+        final ByteBuffer b = buffer(recordBytes);
+        b.putInt(recordBytes);
+        b.putLong(start);
+        b.putInt(drillId);
+        b.putInt(shots);
+        long total = 0;
+        for (int ii = 0; ii < shots; ii++) {
+            b.putInt(splitsMicros[ii]);
+            total += splitsMicros[ii];
+        }
+        b.flip();
+        final long offset = m_logEnd;
+        write(m_log, b, offset);
+        m_logEnd += recordBytes;
+        addEntry(offset, start, drillId, shots, splitsMicros[0], total);
+        if (m_count - m_indexed >= INDEX_BATCH) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Names of the drills in the history, in the order they were first used
+     */
+    public synchronized String[] getDrills() {
+        return m_drillNames.toArray(new String[m_drillNames.size()]);
+    }
+
+    /**
+     * Number of strings started in [fromMillis, toMillis)
+     * @param drill Only strings of this drill, or null for every drill
+     */
+    public synchronized int countStrings(String drill, long fromMillis, long toMillis) {
+        final int drillId = lookup(drill);
+        if (drillId == -2) {
+            return 0;
+        }
+        return Math.max(0, first(drillId, toMillis) - first(drillId, fromMillis));
+    }
+
+    /**
+     * Fastest first shot of the strings started in [fromMillis, toMillis), -1 if there are none
+     * @param drill Only strings of this drill, or null for every drill
+     */
+    public synchronized long bestFirstShotMicros(String drill, long fromMillis, long toMillis) {
+        final int drillId = lookup(drill);
+        if (drillId == -2) {
+            return -1;
+        }
+        long best = -1;
+        for (int pos = first(drillId, fromMillis), end = first(drillId, toMillis); pos < end; pos++) {
+            final int first = m_firstShots[entry(drillId, pos)];
+            if (best < 0 || first < best) {
+                best = first;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Every split after the first shot of the strings started in [fromMillis, toMillis), sorted, read from the
+     * records of just those strings
+     * @param drill Only strings of this drill, or null for every drill
+     */
+    public synchronized int[] splits(String drill, long fromMillis, long toMillis) throws IOException {
+        final int drillId = lookup(drill);
+        if (drillId == -2) {
+            return new int[0];
+        }
+        final int firstPos = first(drillId, fromMillis);
+        final int endPos = first(drillId, toMillis);
+        int count = 0;
+        for (int pos = firstPos; pos < endPos; pos++) {
+            count += m_shotCounts[entry(drillId, pos)] - 1;
+        }
+        final int splits[] = new int[count];
+        int next = 0;
+        for (int pos = firstPos; pos < endPos; pos++) {
+            final int entry = entry(drillId, pos);
+            final int shots = m_shotCounts[entry];
+            if (shots < 2) {
+                continue;
+            }
+            // Skip the header and the first shot
+            final ByteBuffer b = buffer((shots - 1) * 4);
+            b.limit((shots - 1) * 4);
+            read(m_log, b, m_offsets[entry] + RECORD_HEADER_BYTES + 4);
+            for (int ii = 1; ii < shots; ii++) {
+                splits[next++] = b.getInt();
+            }
+        }
+        Arrays.sort(splits);
+        return splits;
+    }
+
+    /**
+     * What the index says about each of a number of weeks, oldest first, the last ending at toMillis
+     * @param drill Only strings of this drill, or null for every drill
+     */
+    public synchronized Week[] weeks(String drill, long toMillis, int weeks) {
+        final Week result[] = new Week[weeks];
+        final int drillId = lookup(drill);
+        for (int ii = 0; ii < weeks; ii++) {
+            final long start = toMillis - (weeks - ii) * WEEK_MILLIS;
+            int strings = 0;
+            int shots = 0;
+            long best = -1;
+            long firstSum = 0;
+            long splitSum = 0;
+            if (drillId != -2) {
+                for (int pos = first(drillId, start), end = first(drillId, start + WEEK_MILLIS); pos < end; pos++) {
+                    final int entry = entry(drillId, pos);
+                    final int first = m_firstShots[entry];
+                    strings++;
+                    shots += m_shotCounts[entry];
+                    firstSum += first;
+                    splitSum += m_totals[entry] - first;
+                    if (best < 0 || first < best) {
+                        best = first;
+                    }
+                }
+            }
+            result[ii] = new Week(
+                    start,
+                    strings,
+                    shots,
+                    best,
+                    strings == 0 ? -1 : firstSum / strings,
+                    shots == strings ? -1 : splitSum / (shots - strings));
+        }
+        return result;
+    }
+
+    /**
+     * Id of a drill for a query, -1 for every drill or -2 for a drill never used
+     */
+    private int lookup(String drill) {
+        if (drill == null) {
+            return -1;
+        }
+        final int id = m_drillNames.indexOf(drill);
+        return id < 0 ? -2 : id;
+    }
+
+    /**
+     * Index entry at a position among the strings of a drill, or of every drill
+     */
+    private int entry(int drillId, int pos) {
+        return drillId < 0 ? pos : m_drills.get(drillId).m_entries[pos];
+    }
+
+    /**
+     * Position of the first string of the drill, or of every drill, started at or after a time
+     */
+    private int first(int drillId, long millis) {
+        int low = 0;
+        int high = drillId < 0 ? m_count : m_drills.get(drillId).m_count;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (m_starts[entry(drillId, middle)] < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int drillId(String drill) throws IOException {
+        final int id = m_drillNames.indexOf(drill);
+        if (id >= 0) {
+            return id;
+        }
+        addDrill(drill);
+        return m_drillNames.size() - 1;
+    }
+
+    /**
+     * Written before any string uses it
+     */
+    private void addDrill(String drill) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(m_drillsFile, true));
+        try {
+            out.writeUTF(drill);
+        } finally {
+            out.close();
+        }
+        m_drillNames.add(drill);
+        m_drills.add(new Drill());
+    }
+
+    /**
+     * Name any drill used by a string whose name was lost, rather than lose its strings
+     */
+    private void ensureDrill(int drillId) throws IOException {
+        while (m_drills.size() <= drillId) {
+            addDrill("Drill " + (m_drills.size() + 1));
+        }
+    }
+
+    private void readDrills() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(m_drillsFile, "rw");
+        try {
+            long valid = 0;
+            try {
+                while (valid < file.length()) {
+                    m_drillNames.add(file.readUTF());
+                    m_drills.add(new Drill());
+                    valid = file.getFilePointer();
+                }
+            } catch (EOFException e) {
+                // A name cut short by the app dying, dropped so the next is appended in its place
+            }
+            file.setLength(valid);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Write the header of a new file, or check the header of an existing one
+     * @return Size of the file
+     */
+    private long openFile(FileChannel file, int magic) throws IOException {
+        final ByteBuffer b = buffer(FILE_HEADER_BYTES);
+        if (file.size() < FILE_HEADER_BYTES) {
+            b.putInt(magic);
+            b.putInt(VERSION);
+            b.flip();
+            file.truncate(0);
+            write(file, b, 0);
+            return FILE_HEADER_BYTES;
+        }
+        b.limit(FILE_HEADER_BYTES);
+        read(file, b, 0);
+        if (b.getInt() != magic) {
+            throw new IOException("Not a shot history");
+        }
+        final int version = b.getInt();
+        if (version != VERSION) {
+            throw new IOException("Can't read version " + version + " shot histories");
+        }
+        return file.size();
+    }
+
+    /**
+     * Load the index in one read, dropping a last entry cut short and any entries past the end of the log
+     */
+    private void readIndex(long indexEnd) throws IOException {
+        final int entries = (int)((indexEnd - FILE_HEADER_BYTES) / ENTRY_BYTES);
+        final ByteBuffer b = buffer(entries * ENTRY_BYTES);
+        b.limit(entries * ENTRY_BYTES);
+        read(m_index, b, FILE_HEADER_BYTES);
+        for (int ii = 0; ii < entries; ii++) {
+            final long offset = b.getLong();
+            final long start = b.getLong();
+            final int drillId = b.getInt();
+            final int shots = b.getInt();
+            final int firstShot = b.getInt();
+            final long total = b.getLong();
+            if (offset + RECORD_HEADER_BYTES + shots * 4 > m_logEnd) {
+                break;
+            }
+            ensureDrill(drillId);
+            addEntry(offset, start, drillId, shots, firstShot, total);
+        }
+        m_indexed = m_count;
+        m_index.truncate(FILE_HEADER_BYTES + (long)m_indexed * ENTRY_BYTES);
+    }
+
+    /**
+     * Index the strings appended to the log after the last indexed one, and drop a last string cut short
+     */
+    private void catchUp() throws IOException {
+        long offset = m_count == 0 ?
+                FILE_HEADER_BYTES : m_offsets[m_count - 1] + RECORD_HEADER_BYTES + m_shotCounts[m_count - 1] * 4;
+        while (offset + RECORD_HEADER_BYTES <= m_logEnd) {
+            ByteBuffer b = buffer(RECORD_HEADER_BYTES);
+            b.limit(RECORD_HEADER_BYTES);
+            read(m_log, b, offset);
+            final int recordBytes = b.getInt();
+            final long start = b.getLong();
+            final int drillId = b.getInt();
+            final int shots = b.getInt();
+            if (shots < 1 || drillId < 0 || recordBytes != RECORD_HEADER_BYTES + shots * 4 ||
+                    offset + recordBytes > m_logEnd) {
+                break;
+            }
+            ensureDrill(drillId);
+            b = buffer(shots * 4);
+            b.limit(shots * 4);
+            read(m_log, b, offset + RECORD_HEADER_BYTES);
+            final int firstShot = b.getInt(0);
+            long total = 0;
+            for (int ii = 0; ii < shots; ii++) {
+                total += b.getInt();
+            }
+            addEntry(offset, start, drillId, shots, firstShot, total);
+            offset += recordBytes;
+        }
+        if (offset != m_logEnd) {
+            System.out.println("Dropping " + (m_logEnd - offset) + " bytes at the end of the shot history");
+            m_log.truncate(offset);
+            m_logEnd = offset;
+        }
+        writeIndex();
+    }
+
+    private void addEntry(long offset, long start, int drillId, int shots, int firstShot, long total) {
+        if (m_count == m_offsets.length) {
+            final int capacity = m_count * 2;
+            m_offsets = grow(m_offsets, capacity);
+            m_starts = grow(m_starts, capacity);
+            m_totals = grow(m_totals, capacity);
+            m_drillIds = grow(m_drillIds, capacity);
+            m_shotCounts = grow(m_shotCounts, capacity);
+            m_firstShots = grow(m_firstShots, capacity);
+        }
+        m_offsets[m_count] = offset;
+        m_starts[m_count] = start;
+        m_drillIds[m_count] = drillId;
+        m_shotCounts[m_count] = shots;
+        m_firstShots[m_count] = firstShot;
+        m_totals[m_count] = total;
+        m_drills.get(drillId).add(m_count);
+        m_count++;
+    }
+
+    /**
+     * Append the entries not yet in the index file in one write
+     */
+    private void writeIndex() throws IOException {
+        if (m_indexed == m_count) {
+            return;
+        }
+        final ByteBuffer b = buffer((m_count - m_indexed) * ENTRY_BYTES);
+        for (int ii = m_indexed; ii < m_count; ii++) {
+            b.putLong(m_offsets[ii]);
+            b.putLong(m_starts[ii]);
+            b.putInt(m_drillIds[ii]);
+            b.putInt(m_shotCounts[ii]);
+            b.putInt(m_firstShots[ii]);
+            b.putLong(m_totals[ii]);
+        }
+        b.flip();
+        write(m_index, b, FILE_HEADER_BYTES + (long)m_indexed * ENTRY_BYTES);
+        m_indexed = m_count;
+    }
+
+    /**
+     * The reused buffer, cleared and big enough for the bytes
+     */
+    private ByteBuffer buffer(int bytes) {
+        if (m_buffer.capacity() < bytes) {
+            m_buffer = ByteBuffer.allocate(Math.max(bytes, m_buffer.capacity() * 2));
+        }
+        m_buffer.clear();
+        return m_buffer;
+    }
+
+    private static void write(FileChannel file, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            position += file.write(b, position);
+        }
+    }
+
+    /**
+     * Fill the buffer to its limit and flip it
+     */
+    private static void read(FileChannel file, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            final int read = file.read(b, position);
+            if (read < 0) {
+                throw new EOFException("Shot history ends before " + (position + b.remaining()));
+            }
+            position += read;
+        }
+        b.flip();
+    }
+
+    private static long[] grow(long values[], int capacity) {
+        final long grown[] = new long[capacity];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+
+    private static int[] grow(int values[], int capacity) {
+        final int grown[] = new int[capacity];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+}
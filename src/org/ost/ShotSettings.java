@@ -0,0 +1,230 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import android.content.SharedPreferences;
+import org.ost.OpenShotTimer.Preferences;
+
+/**
+ * Immutable snapshot of the user's settings. Changing a setting makes a new snapshot, so a thread holding one
+ * sees a consistent set of values however the settings change under it.
+ */
+public final class ShotSettings {
+
+    public static final ShotSettings DEFAULTS =
+            new ShotSettings(100, 0, 4, false, 1, true, false, "Default", false, null, 0, -1);
+
+    /**
+     * Percent of the stream volume
+     */
+    public final int m_buzzerVolume;
+
+    /**
+     * Seconds before the buzzer
+     */
+    public final int m_buzzerDelay;
+
+    public final int m_sensitivity;
+
+    /**
+     * Whether the delay is randomised, starting somewhere between 2 seconds and the delay
+     */
+    public final boolean m_randomStart;
+
+    /**
+     * Number of channels to capture, each gets its own detector
+     */
+    public final int m_channels;
+
+    /**
+     * Whether to adapt the read size to the device while capturing, or always read the hardware's minimum buffer size
+     */
+    public final boolean m_adaptiveRead;
+
+    /**
+     * Whether to keep the audio of every string, see {@link SessionRecorder}
+     */
+    public final boolean m_recordStrings;
+
+    /**
+     * Drill the strings are filed under in the {@link ShotHistory}
+     */
+    public final String m_drill;
+
+    /**
+     * Whether the threshold follows the level of the range instead of staying fixed, see
+     * {@link AmplitudeSpikeShotDetector#AmplitudeSpikeShotDetector(int, PcmFormat, int, boolean)}
+     */
+    public final boolean m_adaptiveThreshold;
+
+    /**
+     * {@link android.os.Build#FINGERPRINT} of the build {@link #m_outputLatencyMicros} was measured on, null if it
+     * hasn't been
+     */
+    public final String m_latencyBuild;
+
+    /**
+     * Measured delay between writing the buzzer and it leaving the speaker
+     */
+    public final int m_outputLatencyMicros;
+
+    /**
+     * Read size the last capture adapted to, in frames so it carries across channel counts, -1 if none has
+     */
+    public final int m_readSizeFrames;
+
+    public ShotSettings(
+            int buzzerVolume,
+            int buzzerDelay,
+            int sensitivity,
+            boolean randomStart,
+            int channels,
+            boolean adaptiveRead,
+            boolean recordStrings,
+            String drill,
+            boolean adaptiveThreshold,
+            String latencyBuild,
+            int outputLatencyMicros,
+            int readSizeFrames) {
+        if (channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("AudioRecord captures mono or stereo, not " + channels + " channels");
+        }
+        m_buzzerVolume = buzzerVolume;
+        m_buzzerDelay = buzzerDelay;
+        m_sensitivity = sensitivity;
+        m_randomStart = randomStart;
+        m_channels = channels;
+        m_adaptiveRead = adaptiveRead;
+        m_recordStrings = recordStrings;
+        m_drill = drill;
+        m_adaptiveThreshold = adaptiveThreshold;
+        m_latencyBuild = latencyBuild;
+        m_outputLatencyMicros = outputLatencyMicros;
+        m_readSizeFrames = readSizeFrames;
+    }
+
+    public ShotSettings withBuzzerVolume(int buzzerVolume) {
+        return new ShotSettings(
+                buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withBuzzerDelay(int buzzerDelay) {
+        return new ShotSettings(
+                m_buzzerVolume, buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withSensitivity(int sensitivity) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, sensitivity, m_randomStart, m_channels, m_adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withRandomStart(boolean randomStart) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, randomStart, m_channels, m_adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withChannels(int channels) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, channels, m_adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withAdaptiveRead(boolean adaptiveRead) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, adaptiveRead, m_recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withRecordStrings(boolean recordStrings) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead, recordStrings,
+                m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withDrill(String drill) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead,
+                m_recordStrings, drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withAdaptiveThreshold(boolean adaptiveThreshold) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead,
+                m_recordStrings, m_drill, adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withLatencyBuild(String latencyBuild) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead,
+                m_recordStrings, m_drill, m_adaptiveThreshold, latencyBuild, m_outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withOutputLatencyMicros(int outputLatencyMicros) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead,
+                m_recordStrings, m_drill, m_adaptiveThreshold, m_latencyBuild, outputLatencyMicros, m_readSizeFrames);
+    }
+
+    public ShotSettings withReadSizeFrames(int readSizeFrames) {
+        return new ShotSettings(
+                m_buzzerVolume, m_buzzerDelay, m_sensitivity, m_randomStart, m_channels, m_adaptiveRead,
+                m_recordStrings, m_drill, m_adaptiveThreshold, m_latencyBuild, m_outputLatencyMicros, readSizeFrames);
+    }
+
+    /**
+     * Read the settings saved by {@link #save(SharedPreferences.Editor)}, defaulting any that weren't
+     */
+    public static ShotSettings load(SharedPreferences preferences) {
+        final int channels = preferences.getInt(Preferences.CHANNELS.name(), DEFAULTS.m_channels);
+        return new ShotSettings(
+                preferences.getInt(Preferences.BUZZER_VOLUME.name(), DEFAULTS.m_buzzerVolume),
+                preferences.getInt(Preferences.BUZZER_DELAY.name(), DEFAULTS.m_buzzerDelay),
+                preferences.getInt(Preferences.SENSITIVITY.name(), DEFAULTS.m_sensitivity),
+                preferences.getBoolean(Preferences.RANDOM_START.name(), DEFAULTS.m_randomStart),
+                channels < 1 || channels > 2 ? DEFAULTS.m_channels : channels,
+                preferences.getBoolean(Preferences.ADAPTIVE_READ.name(), DEFAULTS.m_adaptiveRead),
+                preferences.getBoolean(Preferences.RECORD_STRINGS.name(), DEFAULTS.m_recordStrings),
+                preferences.getString(Preferences.DRILL.name(), DEFAULTS.m_drill),
+                preferences.getBoolean(Preferences.ADAPTIVE_THRESHOLD.name(), DEFAULTS.m_adaptiveThreshold),
+                preferences.getString(Preferences.LATENCY_BUILD.name(), DEFAULTS.m_latencyBuild),
+                preferences.getInt(Preferences.OUTPUT_LATENCY_MICROS.name(), DEFAULTS.m_outputLatencyMicros),
+                preferences.getInt(Preferences.READ_SIZE_FRAMES.name(), DEFAULTS.m_readSizeFrames));
+    }
+
+    /**
+     * Put every setting in the editor, committing it is up to the caller
+     */
+    public void save(SharedPreferences.Editor editor) {
+        editor.putInt(Preferences.BUZZER_VOLUME.name(), m_buzzerVolume);
+        editor.putInt(Preferences.BUZZER_DELAY.name(), m_buzzerDelay);
+        editor.putInt(Preferences.SENSITIVITY.name(), m_sensitivity);
+        editor.putBoolean(Preferences.RANDOM_START.name(), m_randomStart);
+        editor.putInt(Preferences.CHANNELS.name(), m_channels);
+        editor.putBoolean(Preferences.ADAPTIVE_READ.name(), m_adaptiveRead);
+        editor.putBoolean(Preferences.RECORD_STRINGS.name(), m_recordStrings);
+        editor.putString(Preferences.DRILL.name(), m_drill);
+        editor.putBoolean(Preferences.ADAPTIVE_THRESHOLD.name(), m_adaptiveThreshold);
+        editor.putString(Preferences.LATENCY_BUILD.name(), m_latencyBuild);
+        editor.putInt(Preferences.OUTPUT_LATENCY_MICROS.name(), m_outputLatencyMicros);
+        editor.putInt(Preferences.READ_SIZE_FRAMES.name(), m_readSizeFrames);
+    }
+}
@@ -19,7 +19,17 @@ package org.ost;
 
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -28,6 +38,7 @@ import android.media.MediaRecorder.AudioSource;
 import android.media.AudioManager;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import org.ost.OpenShotTimer.Preferences;
 
 public class ShotString {
@@ -43,7 +54,103 @@ public class ShotString {
     
     private final Random m_random = new Random(System.currentTimeMillis());
     
-    private ByteBuffer m_readBuffer = ByteBuffer.allocateDirect(4096);
+    /**
+     * Carries captured audio from the AudioPuller to the ShotProcessor, recreated when the read sizes change
+     */
+    private AudioRing m_ring = null;
+    
+    /**
+     * Audio the ring holds at the smallest read size before capture overflows it, up to MAX_RING_SLOTS
+     */
+    private static final int RING_MILLIS = 1000;
+    
+    /**
+     * Most slots in the ring, which bounds its memory when reads are small
+     */
+    private static final int MAX_RING_SLOTS = 64;
+    
+    /**
+     * Bounds on the read size when it is adapted, and the shot notification latency it is adapted to meet
+     */
+    private static final int MIN_READ_MILLIS = 5;
+    private static final int MAX_READ_MILLIS = 60;
+    private static final int READ_LATENCY_MILLIS = 30;
+    
+    /**
+     * Chooses the size of each read, fixed at the hardware's minimum buffer size unless adapting reads
+     */
+    private ReadSizeController m_readSize = null;
+    
+    /**
+     * Longest a string runs before it is ended
+     */
+    private static final long MAX_STRING_MILLIS = 600000;
+    
+    /**
+     * With a random start, the start signal is never sooner than this
+     */
+    private static final int MIN_RANDOM_START_MILLIS = 2000;
+    
+    /**
+     * Fires the start signal and ends strings that run too long
+     */
+    private final StringScheduler m_scheduler = new StringScheduler(Executors.newSingleThreadScheduledExecutor());
+    
+    /**
+     * Start signal and deadline of the string being shot, cancelled when it ends
+     */
+    private ScheduledFuture<?> m_startSignal = null;
+    private ScheduledFuture<?> m_deadline = null;
+    
+    /**
+     * Places the start signal on the capture timeline of the string being shot
+     */
+    private CaptureTimeline m_timeline = null;
+    
+    /**
+     * How long the buzzer takes from being played to reaching the capture timeline on this device, measured by
+     * {@link #calibrate(CalibrationListener)}. The start signal is placed this much later on the timeline.
+     */
+    private volatile long m_outputLatencyMicros = 0;
+    
+    /**
+     * Audio captured by a calibration, the buzzer is played after the pre-roll and searched for from a little before
+     * it was played to the longest latency expected
+     */
+    private static final int CALIBRATION_MILLIS = 1500;
+    private static final int CALIBRATION_PRE_ROLL_MILLIS = 300;
+    private static final int MIN_OUTPUT_LATENCY_MILLIS = -50;
+    private static final int MAX_OUTPUT_LATENCY_MILLIS = 500;
+    
+    /**
+     * Matches the buzzer in captured audio, loaded on the first calibration at each sample rate
+     */
+    private LatencyCalibrator m_calibrator = null;
+    
+    /**
+     * Running calibration, joined before anything else uses the microphone
+     */
+    private Thread m_calibrationThread = null;
+    
+    /**
+     * Told how a calibration went, on the thread that ran it
+     */
+    public interface CalibrationListener {
+        /**
+         * @param latencyMicros Latency in use now, unchanged if the calibration failed
+         */
+        void calibrated(boolean success, long latencyMicros);
+    }
+    
+    /**
+     * How long the ShotProcessor waits for audio before checking whether capture has finished
+     */
+    private static final long TAKE_TIMEOUT_NANOS = 100000000L;
+    
+    /**
+     * Capture and detection metrics across every string shot with this ShotString
+     */
+    private final PipelineMetrics m_metrics = new PipelineMetrics();
     
     private final AudioManager m_audioManager;
     
@@ -70,37 +177,149 @@ public class ShotString {
     
     private final SoundPool m_pool = new SoundPool(1, AudioManager.STREAM_ALARM, 0);
     
-    private int m_buzzerVolume = 100;
+    /**
+     * The user's settings, written to SharedPreferences in the background
+     */
+    private final SettingsStore m_store;
+    
+    /**
+     * Settings of the string being shot, taken when it was started
+     */
+    private ShotSettings m_session = ShotSettings.DEFAULTS;
+    
+    public ShotSettings getSettings() { return m_store.get(); }
     
-    public int getBuzzerVolume() { return m_buzzerVolume; }
-    public void setBuzzerVolume(int volume) { 
-        m_buzzerVolume = volume;
-        m_settings.edit().putInt(Preferences.BUZZER_VOLUME.name(), volume).commit();
+    public int getBuzzerVolume() { return m_store.get().m_buzzerVolume; }
+    public void setBuzzerVolume(final int volume) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withBuzzerVolume(volume);
+            }
+        });
     }
     
-    private int m_buzzerDelay = 0;
+    public int getBuzzerDelay() { return m_store.get().m_buzzerDelay; }
+    public void setBuzzerDelay(final int delay) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withBuzzerDelay(delay);
+            }
+        });
+    }
     
-    public int getBuzzerDelay() { return m_buzzerDelay; }
-    public void setBuzzerDelay(int delay) { 
-        m_buzzerDelay = delay;
-        m_settings.edit().putInt(Preferences.BUZZER_DELAY.name(), delay).commit();
+    public int getSensitivity() { return m_store.get().m_sensitivity; }
+    public void setSensitivity(final int sensitivity) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withSensitivity(sensitivity);
+            }
+        });
     }
     
-    private int m_sensitivity = 4;
+    public boolean getRandomStart() { return m_store.get().m_randomStart; }
+    public void setRandomStart(final boolean randomStart) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withRandomStart(randomStart);
+            }
+        });
+    }
     
-    public int getSensitivity() { return m_sensitivity; }
-    public void setSensitivity(int sensitivity) { 
-        m_sensitivity = sensitivity;
-        m_settings.edit().putInt(Preferences.SENSITIVITY.name(), sensitivity).commit();
+    public int getChannels() { return m_store.get().m_channels; }
+    public void setChannels(final int channels) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withChannels(channels);
+            }
+        });
     }
     
-    private boolean m_randomStart = false;
-    public boolean getRandomStart() { return m_randomStart; }
-    public void setRandomStart(boolean randomStart) { 
-        m_randomStart = randomStart;
-        m_settings.edit().putBoolean(Preferences.RANDOM_START.name(), randomStart).commit();
+    public boolean getAdaptiveRead() { return m_store.get().m_adaptiveRead; }
+    public void setAdaptiveRead(final boolean adaptiveRead) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withAdaptiveRead(adaptiveRead);
+            }
+        });
+    }
+    
+    public boolean getRecordStrings() { return m_store.get().m_recordStrings; }
+    public void setRecordStrings(final boolean recordStrings) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withRecordStrings(recordStrings);
+            }
+        });
     }
     
+    public boolean getAdaptiveThreshold() { return m_store.get().m_adaptiveThreshold; }
+    public void setAdaptiveThreshold(final boolean adaptiveThreshold) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withAdaptiveThreshold(adaptiveThreshold);
+            }
+        });
+    }
+    
+    public String getDrill() { return m_store.get().m_drill; }
+    public void setDrill(final String drill) {
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withDrill(drill);
+            }
+        });
+    }
+    
+    /**
+     * Every string shot with real audio, opened the first time it is needed
+     */
+    private ShotHistory m_history = null;
+    private final Object m_historyLock = new Object();
+    
+    /**
+     * Files each string in the history once it ends, off the capture thread which is interrupted to end it
+     */
+    private final ExecutorService m_historyExecutor = Executors.newSingleThreadExecutor();
+    
+    /**
+     * Longest close waits for strings to be filed
+     */
+    private static final long HISTORY_CLOSE_MILLIS = 2000;
+    
+    /**
+     * The history of every string, opened on first use, which reads its index so is best done off the UI thread
+     */
+    public ShotHistory getHistory() throws IOException {
+        synchronized (m_historyLock) {
+            if (m_history == null) {
+                m_history = ShotHistory.open(new File(m_context.getFilesDir(), "history"));
+            }
+            return m_history;
+        }
+    }
+    
+    /**
+     * Directory the audio of each string is kept in when recording strings. App private storage, which needs no
+     * permission and is there on every API level, unlike external storage.
+     */
+    public File getRecordingDirectory() {
+        return new File(m_context.getFilesDir(), "strings");
+    }
+    
+    /**
+     * Runs the detectors of the extra channels, created when first needed
+     */
+    private ExecutorService m_channelExecutor = null;
+    
     /**
      * List of parties interested in new ShotEvents
      */
@@ -109,6 +328,17 @@ public class ShotString {
     private int m_sampleRate = 8000;
     
     private int m_minBufferSize = -1;
+    
+    /**
+     * Whether the sample rate and buffer size came from the probe of a previous launch rather than probing this time
+     */
+    private boolean m_probeCached = false;
+    
+    /**
+     * Probes the hardware, or checks the probe cached by a previous launch still holds, while the app starts.
+     * Joined before the probed values are used, which also keeps it from recording at the same time as capture.
+     */
+    private Thread m_probeThread = null;
 
     private ShotDetector m_shotDetector = null;
     
@@ -124,24 +354,41 @@ public class ShotString {
     
     private final SharedPreferences m_settings;
     
+    private final Context m_context;
+    
+    /**
+     * Captures audio into the ring and does nothing else, so nothing done with the audio can hold up the next read
+     */
     private class AudioPuller implements Runnable {
         private volatile boolean m_shouldContinue = true;
         private volatile boolean m_fakeIt = false;
         
+        /**
+         * Frames captured so far, including any lost to overflow
+         */
+        private long m_frames = 0;
+        
+        /**
+         * Bytes in a frame of the audio captured, the synthetic audio of {@link #fakeAudioLoop()} is always mono
+         */
+        private int m_frameBytes = 2 * m_session.m_channels;
+        
+        /**
+         * Wall clock time the start signal fired, 0 until it has
+         */
+        private volatile long m_startMillis = 0;
+        
         @Override
         public void run() {
             try {
-                if (m_fakeIt) {
-                    if (doBuzz()) {
-                        fakeAudioLoop();
-                    }
-                } else {
-                    if (doBuzz()) {
-                        realAudioLoop();
-                    } else {
-                        m_record.release();
-                        m_record = null;
-                    }
+                final long overflowsBefore = m_ring.getOverflows();
+                process(m_fakeIt);
+                if (!m_fakeIt) {
+                    saveReadSize();
+                }
+                final long overflows = m_ring.getOverflows() - overflowsBefore;
+                if (overflows > 0) {
+                    System.out.println("Processing fell behind capture, dropped " + overflows + " buffers");
                 }
                 
                 synchronized (ShotString.this) {
@@ -154,43 +401,143 @@ public class ShotString {
             }
         }
         
-        private final boolean doBuzz() {
-            final float buzzerVolume = m_buzzerVolume / (float)100.0;
-            if (m_buzzerDelay > 0) {
-                long sleepQuantity = m_buzzerDelay * 1000;
+        /**
+         * Capture until told to stop with a ShotProcessor consuming the audio, and wait for it to finish
+         * with what was captured
+         */
+        private void process(boolean fake) {
+            m_ring.restart();
+            final SessionRecorder recorder = fake ? null : openRecorder();
+            Thread recorderThread = null;
+            if (recorder != null) {
+                recorderThread = new Thread(recorder);
+                recorderThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable ex) {
+                        m_exceptionHandler.handleException(ex);
+                    }
                 
-                if (m_randomStart && m_buzzerDelay > 2) {
-                    int delay = m_random.nextInt((m_buzzerDelay - 2) * 1000);
-                    sleepQuantity = 2000 + delay;
+                });
+                // Recording only has to keep up on average, detection comes first
+                recorderThread.setPriority(Thread.MIN_PRIORITY);
+                recorderThread.start();
+            }
+            final ShotProcessor processor = new ShotProcessor(recorder);
+            final Thread processorThread = new Thread(processor);
+            processorThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+                @Override
+                public void uncaughtException(Thread thread, Throwable ex) {
+                    m_exceptionHandler.handleException(ex);
                 }
-                
+            
+            });
+            processorThread.start();
+            try {
+                if (fake) {
+                    fakeAudioLoop();
+                } else {
+                    realAudioLoop();
+                }
+            } finally {
+                processor.m_captureDone = true;
+                boolean interrupted = false;
+                while (processorThread.isAlive()) {
+                    try {
+                        processorThread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (recorder != null) {
+                    finishRecording(recorder, recorderThread);
+                }
+            }
+            if (!fake) {
+                fileString(processor);
+            }
+        }
+        
+        /**
+         * Append the string to the history, if it started and anything was shot
+         */
+        private void fileString(ShotProcessor processor) {
+            final long startMillis = m_startMillis;
+            final int shots = processor.m_shots;
+            if (startMillis == 0 || shots == 0) {
+                return;
+            }
+            final int splits[] = processor.m_splits;
+            final String drill = m_session.m_drill;
+            m_historyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getHistory().append(startMillis, drill, splits, shots);
+                    } catch (IOException e) {
+                        System.out.println("Failed to add the string to the history, " + e);
+                    } catch (Throwable t) {
+                        m_exceptionHandler.handleException(t);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Create a file for the audio of this string and a recorder trailing the ring into it, if strings are
+         * being recorded. Failing to record never stops the string being shot.
+         */
+        private SessionRecorder openRecorder() {
+            if (!m_session.m_recordStrings) {
+                return null;
+            }
+            final File dir = getRecordingDirectory();
+            dir.mkdirs();
+            final File file = new File(dir, "string-" + System.currentTimeMillis() + ".osr");
+            try {
+                final FileChannel channel = new FileOutputStream(file).getChannel();
                 try {
-                    Thread.sleep(sleepQuantity);
-                } catch (InterruptedException e) {
-                    return false;
+                    return new SessionRecorder(m_ring, channel, m_sampleRate, m_session.m_channels);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
                 }
+            } catch (IOException e) {
+                System.out.println("Not recording the string to " + file + ", " + e);
+                return null;
+            }
+        }
+        
+        private void finishRecording(SessionRecorder recorder, Thread recorderThread) {
+            try {
+                recorder.finish(recorderThread);
+            } catch (IOException e) {
+                System.out.println("Failed to close the recording of the string, " + e);
+            }
+            if (recorder.getGapFrames() > 0) {
+                System.out.println("Recording fell behind capture, missed " + recorder.getGapFrames() + " frames");
             }
-            m_pool.play(m_buzzerId, buzzerVolume, buzzerVolume, 1, 3, (float)1.0);
-            return true;
         }
         
         private void realAudioLoop() {
+            m_timeline.update(0, System.nanoTime());
             m_record.startRecording();
             while (m_shouldContinue) {
-                m_readBuffer.clear();
-                final int read = m_record.read(m_readBuffer, m_readBuffer.remaining());
+                final ByteBuffer b = m_ring.claim();
+                final int requested = m_readSize.getReadBytes();
+                final long start = System.nanoTime();
+                final int read = m_record.read(b, requested);
+                final long end = System.nanoTime();
                 if (read < 0) {
                     throw new RuntimeException("AudioRecord returned and error on read");
                 }
-                m_readBuffer.position(0);
-                m_readBuffer.limit(read);
-                ShotEvent events[] = m_shotDetector.processAudio(m_readBuffer);
-                for (ShotEvent e : events) {
-                    for (ShotEventListener l : m_shotEventListeners) {
-                        l.shotDetected(m_shotDetector, e);
-                    }
-                }
-                m_readBuffer.clear();
+                m_metrics.recordRead(end - start, requested, read);
+                m_readSize.recordRead(end - start, read);
+                publish(read, end);
             }
             
             m_record.stop();
@@ -198,26 +545,153 @@ public class ShotString {
             m_record = null;
         }
         
+        /**
+         * Capture synthetic shots, publishing each buffer when it would have been recorded
+         */
         private void fakeAudioLoop() {
-            final double samplesPerMillisecond = (m_sampleRate / 1000.0);
-            long millisecondsToSleep = (long)((m_readBuffer.capacity() / 2) / samplesPerMillisecond);
-            m_readBuffer.limit(m_readBuffer.capacity());
+            final SyntheticShotSource source = new SyntheticShotSource(m_sampleRate, m_random.nextLong());
+            final SampleClock clock = source.getClock();
+            m_frameBytes = source.getFormat().m_bytesPerFrame;
+            final long startNanos = System.nanoTime();
+            m_timeline.update(0, startNanos);
             while (m_shouldContinue) {
-                try {
-                    Thread.sleep(millisecondsToSleep);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                final ByteBuffer b = m_ring.claim();
+                b.limit(m_readSize.getReadBytes());
+                final int read = source.read(b);
+                final long aheadNanos = startNanos + clock.toMicros(source.getPosition()) * 1000 - System.nanoTime();
+                if (aheadNanos > 0) {
+                    try {
+                        Thread.sleep(aheadNanos / 1000000, (int)(aheadNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        // Told to stop, publish what was generated anyway
+                    }
                 }
-                ShotEvent events[] = m_shotDetector.processAudio(m_readBuffer);
-                for (ShotEvent e : events) {
-                    for (ShotEventListener l : m_shotEventListeners) {
-                        l.shotDetected(m_shotDetector, e);
+                publish(read, System.nanoTime());
+            }
+        }
+        
+        /**
+         * Keep the read size chosen for the next session, in frames so it carries across channel counts
+         */
+        private void saveReadSize() {
+            if (!m_session.m_adaptiveRead) {
+                return;
+            }
+            final int frames = m_readSize.getReadBytes() / (2 * m_session.m_channels);
+            if (frames != m_store.get().m_readSizeFrames) {
+                System.out.println("Adapted read size to " + frames + " frames");
+                m_store.update(new SettingsStore.Change() {
+                    @Override
+                    public ShotSettings apply(ShotSettings settings) {
+                        return settings.withReadSizeFrames(frames);
+                    }
+                });
+            }
+        }
+        
+        private void publish(int read, long nanos) {
+            m_frames += read / m_frameBytes;
+            m_timeline.update(m_frames, nanos);
+            final long overflows = m_ring.getOverflows();
+            m_ring.publish(read);
+            if (m_ring.getOverflows() != overflows) {
+                m_metrics.recordDropped(read);
+            }
+        }
+    }
+    
+    /**
+     * Runs the detector and the listeners over the audio published to the ring by the AudioPuller
+     */
+    private class ShotProcessor implements Runnable {
+        /**
+         * Set once nothing more will be published, the processor finishes what is in the ring and exits
+         */
+        private volatile boolean m_captureDone = false;
+        
+        /**
+         * Reused for every buffer so processing doesn't allocate unless there is a shot
+         */
+        private final ShotEventBuffer m_shotEvents = new ShotEventBuffer();
+        
+        /**
+         * Fed to the detector in place of audio lost to overflow, so its timeline stays in step with capture
+         */
+        private final ByteBuffer m_silence = ByteBuffer.allocateDirect(m_ring.getSlotBytes());
+        
+        /**
+         * Told where each shot is, or null if the string isn't being recorded
+         */
+        private final SessionRecorder m_recorder;
+        
+        /**
+         * Split of every shot, for the history
+         */
+        private int m_splits[] = new int[16];
+        private int m_shots = 0;
+        
+        private ShotProcessor(SessionRecorder recorder) {
+            m_recorder = recorder;
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                final ByteBuffer b = m_ring.take(TAKE_TIMEOUT_NANOS);
+                if (b == null) {
+                    if (m_captureDone && m_ring.size() == 0) {
+                        // Nothing more is coming for shots still waiting on the audio after them
+                        if (m_shotDetector.flush(m_shotEvents) > 0) {
+                            dispatchShotEvents();
+                        }
+                        return;
                     }
+                    continue;
+                }
+                long lost = m_ring.getLostBefore();
+                while (lost > 0) {
+                    final int length = (int)Math.min(lost, m_silence.capacity());
+                    m_silence.position(0);
+                    m_silence.limit(length);
+                    m_shotDetector.processAudio(m_silence, m_shotEvents);
+                    lost -= length;
+                }
+                final int bytes = b.remaining();
+                final long processStart = System.nanoTime();
+                m_shotDetector.processAudio(b, m_shotEvents);
+                m_readSize.recordProcess(bytes, System.nanoTime() - processStart, m_ring.size() - 1);
+                m_ring.release();
+                if (!m_shotEvents.isEmpty()) {
+                    final long start = System.nanoTime();
+                    dispatchShotEvents();
+                    m_metrics.recordDispatch(System.nanoTime() - start);
                 }
-                m_readBuffer.position(0);
             }
         }
+        
+        /**
+         * Hand the events from the last buffer to the listeners and clear them. Indexed loops
+         * so that the common case of no events doesn't create iterators.
+         */
+        private void dispatchShotEvents() {
+            final int count = m_shotEvents.size();
+            for (int ii = 0; ii < count; ii++) {
+                final ShotEvent e = m_shotEvents.get(ii);
+                if (m_recorder != null) {
+                    m_recorder.shotDetected(e.m_sample);
+                }
+                if (m_shots == m_splits.length) {
+                    final int splits[] = new int[m_shots * 2];
+                    System.arraycopy(m_splits, 0, splits, 0, m_shots);
+                    m_splits = splits;
+                }
+                m_splits[m_shots++] = (int)Math.min(Integer.MAX_VALUE, e.m_splitMicros);
+                for (int jj = 0; jj < m_shotEventListeners.size(); jj++) {
+                    m_shotEventListeners.get(jj).shotDetected(m_shotDetector, e);
+                }
+            }
+            m_shotEvents.clear();
+        }
     }
     
     public ShotString(
@@ -226,59 +700,275 @@ public class ShotString {
             SharedPreferences settings,
             AudioManager manager) throws Exception {
         assert(handler != null);
+        m_context = context;
         m_settings = settings;
         m_audioManager = manager;
         
         m_systemStreamVolume = manager.getStreamVolume(m_systemStream);
-        m_randomStart = m_settings.getBoolean(Preferences.RANDOM_START.name(), false);
-        m_sensitivity = m_settings.getInt(Preferences.SENSITIVITY.name(), 4);
-        m_buzzerVolume = m_settings.getInt(Preferences.BUZZER_VOLUME.name(), 100);
-        m_buzzerDelay = m_settings.getInt(Preferences.BUZZER_DELAY.name(), 0);
+        m_store = new SettingsStore(m_settings, Executors.newSingleThreadScheduledExecutor());
+        m_exceptionHandler = handler;
+        
+        // Probing opens the microphone at every sample rate, so use what was found last time on this build
+        // and only check it in the background
+        final int cachedRate = m_settings.getInt(Preferences.PROBE_SAMPLE_RATE.name(), -1);
+        if (cachedRate > 0 && Build.FINGERPRINT.equals(m_settings.getString(Preferences.PROBE_BUILD.name(), null))) {
+            m_sampleRate = cachedRate;
+            m_minBufferSize = m_settings.getInt(Preferences.PROBE_MIN_BUFFER_SIZE.name(), -1);
+            m_probeCached = true;
+            System.out.println("Using cached probe of sample rate " + m_sampleRate +
+                    " with minBufferSize " + m_minBufferSize);
+        }
+        m_probeThread = new Thread() {
+            @Override
+            public void run() {
+                probe(m_probeCached);
+            }
+        };
+        m_probeThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                m_exceptionHandler.handleException(ex);
+            }
+        
+        });
+        m_probeThread.start();
+        
+        final ShotSettings stored = m_store.get();
+        if (Build.FINGERPRINT.equals(stored.m_latencyBuild)) {
+            m_outputLatencyMicros = stored.m_outputLatencyMicros;
+        }
+        m_buzzerId = m_pool.load(context, R.raw.buzz, 1);
+    }
+    
+    /**
+     * Find the sample rate and buffer size to record with and cache them for the next launch
+     * @param validate Only probe if the cached values no longer look right
+     */
+    private void probe(boolean validate) {
+        if (validate && AudioRecord.getMinBufferSize(
+                m_sampleRate,
+                AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                AudioFormat.ENCODING_PCM_16BIT) == m_minBufferSize) {
+            return;
+        }
         
         final Pair p = probeHardware();
+        m_probeCached = false;
+        final SharedPreferences.Editor editor = m_settings.edit();
         if (p.a > 0) {
             m_sampleRate = p.a;
             m_minBufferSize = p.b;
-            m_readBuffer = ByteBuffer.allocateDirect(m_minBufferSize);
+            editor.putString(Preferences.PROBE_BUILD.name(), Build.FINGERPRINT);
+            editor.putInt(Preferences.PROBE_SAMPLE_RATE.name(), p.a);
+            editor.putInt(Preferences.PROBE_MIN_BUFFER_SIZE.name(), p.b);
+        } else {
+            m_minBufferSize = -1;
+            editor.remove(Preferences.PROBE_BUILD.name());
+            editor.remove(Preferences.PROBE_SAMPLE_RATE.name());
+            editor.remove(Preferences.PROBE_MIN_BUFFER_SIZE.name());
         }
-        m_exceptionHandler = handler;
+        editor.commit();
         System.out.println("Going to request sample rate " + m_sampleRate + " with minBufferSize " + m_minBufferSize);
-        m_buzzerId = m_pool.load(context, R.raw.buzz, 1);
+    }
+    
+    /**
+     * Wait for the probe started by the constructor and any calibration, which use the microphone
+     */
+    private void awaitProbe() {
+        join(m_probeThread);
+        m_probeThread = null;
+        join(m_calibrationThread);
+        m_calibrationThread = null;
+    }
+    
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Measure how long the buzzer takes to reach the capture timeline by playing it and finding it in the captured
+     * audio, and correct the start of every string by it from now on. Stops any string being shot. Runs in the
+     * background and tells the listener when it is done.
+     */
+    public synchronized void calibrate(final CalibrationListener listener) {
+        terminateAudioSystem();
+        awaitProbe();
+        final ShotSettings settings = m_store.get();
+        m_calibrationThread = new Thread() {
+            @Override
+            public void run() {
+                final boolean success = measureOutputLatency(settings.m_buzzerVolume / (float)100.0);
+                listener.calibrated(success, m_outputLatencyMicros);
+            }
+        };
+        m_calibrationThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                m_exceptionHandler.handleException(ex);
+            }
+        
+        });
+        m_calibrationThread.start();
+    }
+    
+    public long getOutputLatencyMicros() {
+        return m_outputLatencyMicros;
+    }
+    
+    private boolean measureOutputLatency(float buzzerVolume) {
+        if (m_minBufferSize <= 0) {
+            return false;
+        }
+        try {
+            if (m_calibrator == null || m_calibrator.getClock().getSampleRate() != m_sampleRate) {
+                final InputStream in = m_context.getResources().openRawResource(R.raw.buzz);
+                try {
+                    m_calibrator = LatencyCalibrator.fromWav(in, m_sampleRate);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+        final SampleClock clock = m_calibrator.getClock();
+        
+        final AudioRecord record = new AudioRecord(
+                AudioSource.MIC,
+                m_sampleRate,
+                AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                m_minBufferSize * 5);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            return false;
+        }
+        
+        final short captured[] = new short[(int)clock.millisToSamples(CALIBRATION_MILLIS)];
+        final int preRoll = (int)clock.millisToSamples(CALIBRATION_PRE_ROLL_MILLIS);
+        final ByteBuffer b = ByteBuffer.allocateDirect(m_minBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        final CaptureTimeline timeline = new CaptureTimeline(clock);
+        int count = 0;
+        long playSample = -1;
+        try {
+            timeline.update(0, System.nanoTime());
+            record.startRecording();
+            while (count < captured.length) {
+                b.clear();
+                final int read = record.read(b, b.capacity());
+                final long nanos = System.nanoTime();
+                if (read < 0) {
+                    return false;
+                }
+                final int samples = Math.min(read / 2, captured.length - count);
+                for (int ii = 0; ii < samples; ii++) {
+                    captured[count + ii] = b.getShort(ii * 2);
+                }
+                count += samples;
+                timeline.update(count, nanos);
+                if (playSample < 0 && count >= preRoll) {
+                    // Placed exactly as the start signal of a string is
+                    final long playNanos = System.nanoTime();
+                    m_pool.play(m_buzzerId, buzzerVolume, buzzerVolume, 1, 0, (float)1.0);
+                    playSample = timeline.sampleAt(playNanos);
+                }
+            }
+            record.stop();
+        } finally {
+            record.release();
+        }
+        
+        final int onset = m_calibrator.locate(
+                captured,
+                count,
+                (int)(playSample + MIN_OUTPUT_LATENCY_MILLIS * (long)m_sampleRate / 1000),
+                (int)(playSample + MAX_OUTPUT_LATENCY_MILLIS * (long)m_sampleRate / 1000));
+        if (onset < 0) {
+            System.out.println("Didn't hear the buzzer, best match scored " + m_calibrator.getScore());
+            return false;
+        }
+        final long latencyMicros = (onset - playSample) * 1000000L / m_sampleRate;
+        System.out.println("Buzzer reached the capture timeline after " + latencyMicros + " us, match scored " +
+                m_calibrator.getScore());
+        m_outputLatencyMicros = latencyMicros;
+        m_store.update(new SettingsStore.Change() {
+            @Override
+            public ShotSettings apply(ShotSettings settings) {
+                return settings.withLatencyBuild(Build.FINGERPRINT).withOutputLatencyMicros((int)latencyMicros);
+            }
+        });
+        return true;
     }
 
     public synchronized boolean start() {
         terminateAudioSystem();
+        awaitProbe();
         
         boolean success = true;
+        m_session = m_store.get();
+        final int sensitivity = m_session.m_sensitivity;
+        final boolean adaptive = m_session.m_adaptiveThreshold;
         
-        if (m_shotDetector != null) {
-            if (m_shotDetector instanceof SpuriousShotDetector) {
-                ((SpuriousShotDetector)m_shotDetector).stop();
-            }
+        int recordState = openRecord();
+        if (recordState != AudioRecord.STATE_INITIALIZED && m_probeCached) {
+            System.out.println("Failed to initialize AudioRecord with the cached probe, probing again");
+            probe(false);
+            recordState = openRecord();
         }
-        
-        int recordState = AudioRecord.ERROR;
-        if (m_minBufferSize > 0) {
-            m_record = new AudioRecord(
-                    AudioSource.MIC,
-                    m_sampleRate,
-                    AudioFormat.CHANNEL_CONFIGURATION_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    m_minBufferSize * 5);
-            recordState = m_record.getState();
+        if (recordState != AudioRecord.STATE_INITIALIZED && m_session.m_channels > 1) {
+            // Not every microphone captures in stereo, listen on one rather than not at all
+            System.out.println("Failed to initialize AudioRecord in stereo, capturing in mono");
+            m_session = m_session.withChannels(1);
+            recordState = openRecord();
         }
+        final int channels = m_session.m_channels;
         
         m_audioPuller = new AudioPuller();
         if (recordState != AudioRecord.STATE_INITIALIZED){
             System.out.println("Failed to initialized AudioRecord, error code is " + recordState);
             m_audioPuller.m_fakeIt = true;
             success = false;
-            m_shotDetector = new SpuriousShotDetector(m_sampleRate, 16);
-            ((SpuriousShotDetector)m_shotDetector).start();
+            m_shotDetector =
+                new AmplitudeSpikeShotDetector(m_sampleRate, PcmFormat.PCM_16BIT_MONO, sensitivity, adaptive);
+        } else if (channels == 1) {
+            m_shotDetector =
+                new AmplitudeSpikeShotDetector(m_sampleRate, PcmFormat.PCM_16BIT_MONO, sensitivity, adaptive);
         } else {
-            m_shotDetector = new AmplitudeSpikeShotDetector(m_sampleRate, 16, m_sensitivity);
+            final ShotDetector channelDetectors[] = new ShotDetector[channels];
+            for (int ii = 0; ii < channels; ii++) {
+                channelDetectors[ii] =
+                    new AmplitudeSpikeShotDetector(m_sampleRate, PcmFormat.PCM_16BIT_MONO, sensitivity, adaptive);
+            }
+            if (m_channelExecutor == null) {
+                m_channelExecutor = Executors.newFixedThreadPool(
+                        Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            }
+            m_shotDetector = new MultiChannelShotDetector(
+                    m_sampleRate,
+                    PcmFormat.PCM_16BIT_MONO.withChannels(channels),
+                    channelDetectors,
+                    m_channelExecutor);
         }
         
+        m_shotDetector.setMetrics(m_metrics);
+        m_shotDetector.setStartSample(ShotDetector.NOT_STARTED);
+        m_timeline = new CaptureTimeline(new SampleClock(m_sampleRate));
+        
         m_audioPullerThread = new Thread(m_audioPuller);
         m_audioPullerThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
 
@@ -289,11 +979,115 @@ public class ShotString {
         
         });
         m_audioPullerThread.start();
+        scheduleString();
         
         return success;
     }
     
+    /**
+     * Schedule the start signal of the string just started, placing it on the capture timeline when it fires
+     * so shots are timed from it, and the deadline that ends the string if it runs too long
+     */
+    private void scheduleString() {
+        long delayMillis = m_session.m_buzzerDelay * 1000L;
+        if (m_session.m_randomStart && delayMillis > MIN_RANDOM_START_MILLIS) {
+            delayMillis = MIN_RANDOM_START_MILLIS + m_random.nextInt((int)(delayMillis - MIN_RANDOM_START_MILLIS));
+        }
+        final float buzzerVolume = m_session.m_buzzerVolume / (float)100.0;
+        final ShotDetector detector = m_shotDetector;
+        final CaptureTimeline timeline = m_timeline;
+        final long latencySamples = m_outputLatencyMicros * m_sampleRate / 1000000;
+        final AudioPuller puller = m_audioPuller;
+        m_startSignal = m_scheduler.scheduleAt(System.nanoTime() + delayMillis * 1000000L, new StringScheduler.Task() {
+            @Override
+            public void fire(long nanos) {
+                try {
+                    m_pool.play(m_buzzerId, buzzerVolume, buzzerVolume, 1, 3, (float)1.0);
+                    detector.setStartSample(Math.max(0, timeline.sampleAt(nanos) + latencySamples));
+                    puller.m_startMillis = System.currentTimeMillis();
+                } catch (Throwable t) {
+                    m_exceptionHandler.handleException(t);
+                }
+            }
+        });
+        
+        m_deadline = m_scheduler.scheduleDeadline(MAX_STRING_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (ShotString.this) {
+                        // Unless the string already ended and another started
+                        if (m_audioPuller == puller) {
+                            System.out.println("String ran for " + MAX_STRING_MILLIS + " ms, ending it");
+                            terminateAudioSystem();
+                        }
+                    }
+                } catch (Throwable t) {
+                    m_exceptionHandler.handleException(t);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Size the reads and the ring for the probed hardware and create the AudioRecord
+     * @return State of the AudioRecord
+     */
+    private int openRecord() {
+        // Probed in mono, so scale the sizes up by the number of channels
+        final int channels = m_session.m_channels;
+        final int readSize = m_minBufferSize > 0 ? m_minBufferSize * channels : 4096;
+        final int frameBytes = 2 * channels;
+        final SampleClock clock = new SampleClock(m_sampleRate);
+        if (m_session.m_adaptiveRead) {
+            final long minFrames = clock.millisToSamples(MIN_READ_MILLIS);
+            final long maxFrames = clock.millisToSamples(MAX_READ_MILLIS);
+            final int savedFrames = m_session.m_readSizeFrames;
+            m_readSize = new ReadSizeController(
+                    clock,
+                    frameBytes,
+                    (int)Math.min(readSize, minFrames * frameBytes),
+                    (int)Math.max(readSize, maxFrames * frameBytes),
+                    savedFrames > 0 ? savedFrames * frameBytes : readSize,
+                    READ_LATENCY_MILLIS);
+        } else {
+            m_readSize = new ReadSizeController(clock, frameBytes, readSize, readSize, readSize, READ_LATENCY_MILLIS);
+        }
+        
+        final int bytesPerSecond = m_sampleRate * frameBytes;
+        final int slots = Math.max(4, Math.min(
+                MAX_RING_SLOTS, (int)((long)bytesPerSecond * RING_MILLIS / 1000 / m_readSize.getMinBytes()) + 1));
+        if (m_ring == null || m_ring.getSlotBytes() != m_readSize.getMaxBytes() || m_ring.getSlotCount() != slots) {
+            m_ring = new AudioRing(slots, m_readSize.getMaxBytes());
+        }
+        
+        int recordState = AudioRecord.ERROR;
+        if (m_minBufferSize > 0) {
+            m_record = new AudioRecord(
+                    AudioSource.MIC,
+                    m_sampleRate,
+                    channels == 2 ?
+                            AudioFormat.CHANNEL_CONFIGURATION_STEREO : AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(readSize * 5, m_readSize.getMaxBytes() * 2));
+            recordState = m_record.getState();
+            if (recordState != AudioRecord.STATE_INITIALIZED) {
+                m_record.release();
+                m_record = null;
+            }
+        }
+        return recordState;
+    }
+    
     private synchronized void terminateAudioSystem() {
+        if (m_startSignal != null) {
+            m_startSignal.cancel(true);
+            m_startSignal = null;
+        }
+        if (m_deadline != null) {
+            m_deadline.cancel(false);
+            m_deadline = null;
+        }
         if (m_audioPuller != null) {
             m_audioPuller.m_shouldContinue = false;
             m_audioPullerThread.interrupt();
@@ -309,24 +1103,58 @@ public class ShotString {
     
     public synchronized void end() {
         terminateAudioSystem();
-        
-        if (m_shotDetector != null) {
-            if (m_shotDetector instanceof SpuriousShotDetector) {
-                ((SpuriousShotDetector)m_shotDetector).stop();
-            }
-        }
+    }
+    
+    /**
+     * Start saving any changed settings now, for when the app may be about to be killed
+     */
+    public void saveSettings() {
+        m_store.flush();
     }
     
     public synchronized void close() {
         terminateAudioSystem();
-        m_pool.release();
-        if (m_shotDetector != null) {
-            if (m_shotDetector instanceof SpuriousShotDetector) {
-                ((SpuriousShotDetector)m_shotDetector).stop();
+        m_scheduler.shutdown();
+        m_store.close();
+        m_historyExecutor.shutdown();
+        try {
+            m_historyExecutor.awaitTermination(HISTORY_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+            synchronized (m_historyLock) {
+                if (m_history != null) {
+                    m_history.close();
+                    m_history = null;
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Failed to close the history, " + e);
+        }
+        m_pool.release();
+        if (m_channelExecutor != null) {
+            m_channelExecutor.shutdown();
+            m_channelExecutor = null;
         }
     }
     
+    public PipelineMetrics getMetrics() {
+        return m_metrics;
+    }
+    
+    /**
+     * How late the start signals fired, in nanoseconds
+     */
+    public void getStartJitter(LogHistogram.Snapshot into) {
+        m_scheduler.getJitter(into);
+    }
+    
+    /**
+     * Number of captured buffers dropped because detection fell too far behind
+     */
+    public synchronized long getOverflows() {
+        return m_ring == null ? 0 : m_ring.getOverflows();
+    }
+    
     public void addShotEventListener(ShotEventListener listener) {
         m_shotEventListeners.add(listener);
     }
@@ -335,7 +1163,7 @@ public class ShotString {
         m_shotEventListeners.remove(listener);
     }
     
-    private Pair probeHardware() throws Exception {
+    private Pair probeHardware() {
         final ByteBuffer b = ByteBuffer.allocateDirect(1024);
         
         final int sampleRates[] = new int [] { 44800, 44100, 22000, 22050, 11025, 11000, 8000 };
@@ -0,0 +1,40 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Second look at a shot candidate from a cheap detector, given the audio on both sides of it
+ */
+public interface ShotVerifier {
+    /**
+     * Samples needed before the candidate
+     */
+    public int getPreTriggerSamples();
+
+    /**
+     * Samples needed from the candidate on, including the candidate itself
+     */
+    public int getPostTriggerSamples();
+
+    /**
+     * @param window getPreTriggerSamples() samples of audio before the candidate followed by getPostTriggerSamples()
+     * starting with the candidate. Only valid for the duration of the call.
+     * @return true if the candidate is a shot
+     */
+    public boolean verify(final short window[]);
+}
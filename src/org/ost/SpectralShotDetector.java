@@ -0,0 +1,216 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Detects shots from the energy in a few frequency bands instead of raw amplitude.
+ * <p>
+ * Audio is cut into fixed length blocks on the timeline. For every block a {@link GoertzelBank} measures the
+ * energy at a handful of frequencies spread across each band. The filter coefficients are computed once up front
+ * and the block and band levels live in preallocated arrays, so detection doesn't allocate.
+ * Each bin costs one multiply and two adds per sample, which for the default eight bins is a small fraction of
+ * real time even at 44.1 kHz.
+ * <p>
+ * A block is a shot when the blast band is above the trigger level, at least one band jumps to ONSET_RATIO times
+ * its own slow moving background, and no reject band outweighs the blast band by more than REJECT_RATIO. A shot
+ * starts with a broadband crack, so even in the loud tail of the previous shot, which is mostly low frequency
+ * echo, the higher bands jump well clear of their background. Voices and ringing that build up or sustain
+ * never jump that far. A ringing plate is loud in its own band but has almost nothing in the blast band, so the
+ * reject ratio and the trigger level both rule it out. The shot is placed at the first sample of the block that
+ * reaches half the block's peak magnitude and is followed by the same hold off as the other detectors.
+ */
+public class SpectralShotDetector extends ShotDetector {
+
+    /**
+     * Bulk of the energy of the muzzle blast
+     */
+    public static final GoertzelBank.Band DEFAULT_BLAST_BAND = new GoertzelBank.Band(250, 1500, 4);
+
+    /**
+     * Where ringing steel and sibilants put most of their energy
+     */
+    public static final GoertzelBank.Band DEFAULT_REJECT_BAND = new GoertzelBank.Band(3000, 6000, 4);
+
+    /**
+     * Highest band frequency used by default, as a fraction of the sample rate, keeping the bins clear of Nyquist
+     */
+    private static final double MAX_BAND_FRACTION = 0.45;
+
+    public static final int DEFAULT_BLOCK_MILLIS = 5;
+
+    /**
+     * Default trigger level as the average amplitude of a sine at each blast band bin
+     */
+    public static final int DEFAULT_TRIGGER_LEVEL = 2000;
+
+    /**
+     * Some band's energy has to be this many times its background level
+     */
+    private static final float ONSET_RATIO = 8.0f;
+
+    /**
+     * The background levels move 1/2^BACKGROUND_SHIFT of the way to each block's energy
+     */
+    private static final int BACKGROUND_SHIFT = 3;
+
+    /**
+     * A block isn't a shot if a reject band has this many times the energy of the blast band
+     */
+    private static final float REJECT_RATIO = 4.0f;
+
+    private final int m_blockLength;
+
+    /**
+     * The block being filled, it can span several buffers
+     */
+    private final short m_block[];
+    private int m_blockFill = 0;
+
+    private final GoertzelBank m_bank;
+
+    /**
+     * Average bin energy of each band for the last block
+     */
+    private final float m_bandEnergy[];
+
+    private final float m_triggerEnergy;
+
+    /**
+     * Slow moving average of the energy of each band
+     */
+    private final float m_background[];
+    private boolean m_haveBackground = false;
+
+    private long m_ignoreUntilSample;
+
+    private final long m_holdoffSamples;
+
+    public SpectralShotDetector(int sampleRate, PcmFormat format) {
+        this(
+                sampleRate,
+                format,
+                DEFAULT_BLOCK_MILLIS,
+                DEFAULT_BLAST_BAND,
+                new GoertzelBank.Band[] { rejectBandFor(sampleRate) },
+                DEFAULT_TRIGGER_LEVEL);
+    }
+
+    /**
+     * The default reject band, cut off below Nyquist at sample rates like 8000 and 11025 Hz that can't hold all
+     * of it. What is left still covers most of the ringing that gets through the microphone at those rates.
+     */
+    public static GoertzelBank.Band rejectBandFor(int sampleRate) {
+        final int limit = (int)(sampleRate * MAX_BAND_FRACTION);
+        if (DEFAULT_REJECT_BAND.m_highHz <= limit) {
+            return DEFAULT_REJECT_BAND;
+        }
+        final int low = Math.min(DEFAULT_REJECT_BAND.m_lowHz, limit * 2 / 3);
+        return new GoertzelBank.Band(low, limit, DEFAULT_REJECT_BAND.m_bins);
+    }
+
+    /**
+     * @param blockMillis Length of the blocks the spectrum is measured over
+     * @param blastBand Band whose energy triggers a shot
+     * @param rejectBands Bands that mustn't outweigh the blast band, they also count towards the onset
+     * @param triggerLevel Blast band level that counts as a shot, as the amplitude of a sine at each bin
+     */
+    public SpectralShotDetector(
+            int sampleRate,
+            PcmFormat format,
+            int blockMillis,
+            GoertzelBank.Band blastBand,
+            GoertzelBank.Band rejectBands[],
+            int triggerLevel) {
+        super(sampleRate, format);
+        m_blockLength = (int)m_clock.millisToSamples(blockMillis);
+        if (m_blockLength < 16) {
+            throw new IllegalArgumentException("Block of " + blockMillis + " ms is too short at " + sampleRate + " Hz");
+        }
+        m_block = new short[m_blockLength];
+
+        final GoertzelBank.Band bands[] = new GoertzelBank.Band[rejectBands.length + 1];
+        bands[0] = blastBand;
+        System.arraycopy(rejectBands, 0, bands, 1, rejectBands.length);
+        m_bank = new GoertzelBank(sampleRate, m_blockLength, bands);
+        m_bandEnergy = new float[bands.length];
+        m_background = new float[bands.length];
+        m_triggerEnergy = m_bank.energyOf(triggerLevel);
+        m_ignoreUntilSample = m_clock.millisToSamples(1000);
+        m_holdoffSamples = m_clock.millisToSamples(120);
+    }
+
+    public int getBlockLength() {
+        return m_blockLength;
+    }
+
+    /**
+     * Average bin energy of a band in the last complete block, band 0 being the blast band
+     */
+    public float getBandEnergy(int band) {
+        return m_bandEnergy[band];
+    }
+
+    @Override
+    protected void p_processSamples(short samples[], int offset, int length, ShotEventBuffer events) {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int count = Math.min(end - position, m_blockLength - m_blockFill);
+            System.arraycopy(samples, position, m_block, m_blockFill, count);
+            m_blockFill += count;
+            position += count;
+            if (m_blockFill == m_blockLength) {
+                m_blockFill = 0;
+                // Timeline index of the first sample of the block
+                final long blockStart = m_currentSample + (position - offset) - m_blockLength;
+                processBlock(blockStart, events);
+            }
+        }
+    }
+
+    private void processBlock(final long blockStart, final ShotEventBuffer events) {
+        m_bank.measure(m_block, 0, m_bandEnergy);
+
+        final float energy[] = m_bandEnergy;
+        final float background[] = m_background;
+        if (!m_haveBackground) {
+            System.arraycopy(energy, 0, background, 0, energy.length);
+            m_haveBackground = true;
+        }
+
+        final float blastEnergy = energy[0];
+        boolean onset = false;
+        boolean rejected = false;
+        for (int band = 0; band < energy.length; band++) {
+            onset |= energy[band] > background[band] * ONSET_RATIO;
+            rejected |= band > 0 && energy[band] > blastEnergy * REJECT_RATIO;
+            background[band] += (energy[band] - background[band]) / (1 << BACKGROUND_SHIFT);
+        }
+        final boolean shot = onset && !rejected && blastEnergy > m_triggerEnergy;
+
+        if (!shot || blockStart + m_blockLength <= m_ignoreUntilSample) {
+            return;
+        }
+
+        final int half = ThresholdScanner.peak(m_block, 0, m_blockLength) / 2;
+        final int rise = Math.max(0, ThresholdScanner.indexOfAbove(m_block, 0, m_blockLength, half));
+        final long shotSample = Math.max(blockStart + rise, m_ignoreUntilSample);
+        addShot(events, shotSample);
+        m_ignoreUntilSample = shotSample + m_holdoffSamples;
+    }
+}
@@ -0,0 +1,76 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Constant memory running estimate of a quantile of a stream of non-negative values.
+ * <p>
+ * Each value nudges the estimate up if it is above the estimate and down if it is below, with the
+ * up and down steps in the ratio q : 1 - q, so the estimate settles where a fraction q of the values fall below it.
+ * Steps are a fixed fraction of the current estimate so it tracks quiet and loud levels equally quickly, and
+ * follows the level as it changes instead of converging on the quantile of everything seen so far.
+ * Deterministic and integer only, the estimate is kept in 16.16 fixed point.
+ */
+public final class StreamingQuantile {
+
+    private static final int FRACTION_BITS = 16;
+
+    private static final long ONE = 1L << FRACTION_BITS;
+
+    /**
+     * Step is 1/2^RATE_SHIFT of the estimate
+     */
+    private final int m_rateShift;
+
+    /**
+     * q and 1 - q in 16.16
+     */
+    private final long m_upWeight;
+    private final long m_downWeight;
+
+    private long m_estimate;
+
+    /**
+     * @param quantile Quantile to estimate, 0 - 1
+     * @param rateShift The estimate moves by up to 1/2^rateShift of itself per value
+     * @param initial Starting estimate
+     */
+    public StreamingQuantile(double quantile, int rateShift, int initial) {
+        if (quantile <= 0.0 || quantile >= 1.0) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1, got " + quantile);
+        }
+        m_rateShift = rateShift;
+        m_upWeight = (long)(quantile * ONE);
+        m_downWeight = ONE - m_upWeight;
+        m_estimate = (long)initial << FRACTION_BITS;
+    }
+
+    public void update(int value) {
+        final long scaled = (long)value << FRACTION_BITS;
+        final long step = Math.max(ONE, m_estimate >> m_rateShift);
+        if (scaled > m_estimate) {
+            m_estimate = Math.min(scaled, m_estimate + ((step * m_upWeight) >> FRACTION_BITS));
+        } else if (scaled < m_estimate) {
+            m_estimate = Math.max(scaled, m_estimate - ((step * m_downWeight) >> FRACTION_BITS));
+        }
+    }
+
+    public int getEstimate() {
+        return (int)(m_estimate >> FRACTION_BITS);
+    }
+}
@@ -0,0 +1,109 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the timed parts of shooting a string on one thread without anything sleeping or polling: the start signal,
+ * fired as close to its instant as possible, and deadlines like the longest a string may run, which are cancelled
+ * when the string ends first.
+ * <p>
+ * Instants are on the monotonic {@link System#nanoTime()} clock, so changes to the wall clock can't move them.
+ * A scheduled executor can wake a task late by up to its timer's granularity, so a start signal is woken a little
+ * early and yields until its instant. How late each one actually fired is recorded.
+ */
+public final class StringScheduler {
+
+    /**
+     * Something to run at an instant that needs to know exactly when it ran
+     */
+    public interface Task {
+        /**
+         * @param nanos {@link System#nanoTime()} when it fired, at or just after the instant it was scheduled for
+         */
+        void fire(long nanos);
+    }
+
+    /**
+     * How early a task is woken before its instant
+     */
+    static final long WAKE_EARLY_NANOS = 2000000;
+
+    private final ScheduledExecutorService m_executor;
+
+    /**
+     * Nanoseconds each task fired after its instant, only recorded on the executor's thread
+     */
+    private final LogHistogram m_jitter = new LogHistogram();
+
+    /**
+     * @param executor Single threaded, so tasks fire in order and the jitter has one writer
+     */
+    public StringScheduler(ScheduledExecutorService executor) {
+        m_executor = executor;
+    }
+
+    /**
+     * Fire the task at the instant. Cancel with interruption so a task already yielding to its instant stops too.
+     * @param nanos Instant on the {@link System#nanoTime()} clock
+     */
+    public ScheduledFuture<?> scheduleAt(final long nanos, final Task task) {
+        final Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                while (now < nanos) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    Thread.yield();
+                    now = System.nanoTime();
+                }
+                m_jitter.record(now - nanos);
+                task.fire(now);
+            }
+        };
+        final long delay = Math.max(0, nanos - WAKE_EARLY_NANOS - System.nanoTime());
+        return m_executor.schedule(r, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run the task once the delay has passed unless it is cancelled first. For timeouts, which don't need the
+     * precision of {@link #scheduleAt(long, Task)}.
+     */
+    public ScheduledFuture<?> scheduleDeadline(long delayMillis, Runnable task) {
+        return m_executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * How late the tasks fired, in nanoseconds
+     */
+    public void getJitter(LogHistogram.Snapshot into) {
+        m_jitter.snapshot(into);
+    }
+
+    /**
+     * Cancel everything scheduled and stop the thread
+     */
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+}
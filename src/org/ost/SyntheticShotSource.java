@@ -0,0 +1,283 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates 16 bit little endian mono audio of a string of shots over background noise, for running the real
+ * detectors when there is no microphone and for soak tests.
+ * <p>
+ * A shot is a short broadband crack on top of a low passed blast that decays exponentially, followed by a quieter
+ * echo of itself. The first shot comes after a fixed delay and the splits between shots are drawn from a normal
+ * distribution, never shorter than half the mean. Everything is drawn from one seeded random number generator a
+ * sample at a time, so the same seed gives the same audio however it is read. The true sample of every shot is
+ * recorded as it is generated.
+ * <p>
+ * Nothing here sleeps, audio is generated as fast as it is read and the position in samples is the clock. Pacing
+ * it to real time, or any multiple of it, is up to the reader.
+ */
+public final class SyntheticShotSource {
+
+    public static final int DEFAULT_NOISE_LEVEL = 300;
+
+    /**
+     * Past full scale, shots close to the phone clip the microphone just as real ones do
+     */
+    public static final int DEFAULT_SHOT_LEVEL = 60000;
+
+    public static final int DEFAULT_DECAY_MILLIS = 40;
+
+    public static final int DEFAULT_ECHO_DELAY_MILLIS = 60;
+
+    public static final float DEFAULT_ECHO_GAIN = 0.3f;
+
+    public static final int DEFAULT_FIRST_SHOT_MILLIS = 2000;
+
+    public static final int DEFAULT_SPLIT_MILLIS = 250;
+
+    public static final int DEFAULT_SPLIT_DEVIATION_MILLIS = 60;
+
+    /**
+     * The crack at the start of a shot is over in about a millisecond
+     */
+    private static final float CRACK_MILLIS = 1.0f;
+
+    /**
+     * Cut off of the one pole low pass that shapes the blast
+     */
+    private static final float BLAST_CUTOFF_HZ = 1500.0f;
+
+    /**
+     * Shots and echoes that can be sounding at once, more than this and the oldest is cut short
+     */
+    private static final int MAX_IMPULSES = 16;
+
+    /**
+     * Impulses are dropped once their envelope is below this
+     */
+    private static final float SILENT_LEVEL = 1.0f;
+
+    private final SampleClock m_clock;
+
+    private final Random m_random;
+
+    private final float m_noiseLevel;
+
+    private final float m_shotLevel;
+
+    private final float m_echoGain;
+
+    private final long m_echoDelaySamples;
+
+    private final long m_splitSamples;
+
+    private final long m_splitDeviationSamples;
+
+    /**
+     * Per sample decay of the blast and crack envelopes, and the low pass coefficient
+     */
+    private final float m_blastDecay;
+    private final float m_crackDecay;
+    private final float m_lowpass;
+
+    /**
+     * Sounding shots and echoes, in a ring of parallel arrays. An impulse doesn't sound until its start sample.
+     */
+    private final long m_impulseStart[] = new long[MAX_IMPULSES];
+    private final float m_impulseBlast[] = new float[MAX_IMPULSES];
+    private final float m_impulseCrack[] = new float[MAX_IMPULSES];
+    private final float m_impulseFiltered[] = new float[MAX_IMPULSES];
+    private int m_impulseHead = 0;
+    private int m_impulseCount = 0;
+
+    private long m_position = 0;
+
+    private long m_nextShot;
+
+    /**
+     * True sample of every shot generated so far
+     */
+    private long m_shots[] = new long[64];
+    private int m_shotCount = 0;
+
+    public SyntheticShotSource(int sampleRate, long seed) {
+        this(
+                sampleRate,
+                seed,
+                DEFAULT_NOISE_LEVEL,
+                DEFAULT_SHOT_LEVEL,
+                DEFAULT_DECAY_MILLIS,
+                DEFAULT_ECHO_DELAY_MILLIS,
+                DEFAULT_ECHO_GAIN,
+                DEFAULT_FIRST_SHOT_MILLIS,
+                DEFAULT_SPLIT_MILLIS,
+                DEFAULT_SPLIT_DEVIATION_MILLIS);
+    }
+
+    /**
+     * @param noiseLevel RMS amplitude of the background noise
+     * @param shotLevel Loudest a shot's blast starts at, each shot is between half this and this
+     * @param decayMillis Time for a blast to decay to 1/e of its starting level
+     * @param echoGain Level of the echo relative to the shot, 0 for no echo
+     * @param firstShotMillis When the first shot is fired
+     * @param splitDeviationMillis Standard deviation of the splits
+     */
+    public SyntheticShotSource(
+            int sampleRate,
+            long seed,
+            int noiseLevel,
+            int shotLevel,
+            int decayMillis,
+            int echoDelayMillis,
+            float echoGain,
+            int firstShotMillis,
+            int splitMillis,
+            int splitDeviationMillis) {
+        if (decayMillis < 1 || splitMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Decay of " + decayMillis + " ms and split of " + splitMillis + " ms must be positive");
+        }
+        m_clock = new SampleClock(sampleRate);
+        m_random = new Random(seed);
+        m_noiseLevel = noiseLevel;
+        m_shotLevel = shotLevel;
+        m_echoGain = echoGain;
+        m_echoDelaySamples = m_clock.millisToSamples(echoDelayMillis);
+        m_splitSamples = m_clock.millisToSamples(splitMillis);
+        m_splitDeviationSamples = m_clock.millisToSamples(splitDeviationMillis);
+        m_nextShot = m_clock.millisToSamples(firstShotMillis);
+        m_blastDecay = (float)Math.exp(-1000.0 / (decayMillis * (double)sampleRate));
+        m_crackDecay = (float)Math.exp(-1000.0 / (CRACK_MILLIS * sampleRate));
+        m_lowpass = (float)(1.0 - Math.exp(-2.0 * Math.PI * BLAST_CUTOFF_HZ / sampleRate));
+    }
+
+    public PcmFormat getFormat() {
+        return PcmFormat.PCM_16BIT_MONO;
+    }
+
+    public SampleClock getClock() {
+        return m_clock;
+    }
+
+    /**
+     * Number of samples generated so far
+     */
+    public long getPosition() {
+        return m_position;
+    }
+
+    /**
+     * Number of shots generated so far
+     */
+    public int getShotCount() {
+        return m_shotCount;
+    }
+
+    /**
+     * Sample the shot started at
+     */
+    public long getShotSample(int index) {
+        if (index < 0 || index >= m_shotCount) {
+            throw new IndexOutOfBoundsException("Shot " + index + " of " + m_shotCount);
+        }
+        return m_shots[index];
+    }
+
+    /**
+     * Fill the remaining space in the buffer with as many whole samples as fit, leaving the position after them
+     * @return Number of bytes generated
+     */
+    public int read(ByteBuffer b) {
+        final int samples = b.remaining() / 2;
+        for (int ii = 0; ii < samples; ii++) {
+            final int sample = nextSample();
+            b.put((byte)sample);
+            b.put((byte)(sample >> 8));
+        }
+        return samples * 2;
+    }
+
+    private int nextSample() {
+        if (m_position == m_nextShot) {
+            fire();
+        }
+
+        float value = (float)m_random.nextGaussian() * m_noiseLevel;
+        for (int ii = 0; ii < m_impulseCount; ii++) {
+            final int impulse = (m_impulseHead + ii) % MAX_IMPULSES;
+            if (m_impulseStart[impulse] > m_position) {
+                continue;
+            }
+            final float white = m_random.nextFloat() * 2.0f - 1.0f;
+            m_impulseFiltered[impulse] += m_lowpass * (white - m_impulseFiltered[impulse]);
+            // The low pass takes the blast down to about a third of its level, make that up
+            value += m_impulseFiltered[impulse] * m_impulseBlast[impulse] * 3.0f +
+                white * m_impulseCrack[impulse];
+            m_impulseBlast[impulse] *= m_blastDecay;
+            m_impulseCrack[impulse] *= m_crackDecay;
+        }
+        // Impulses finish in the order they started, bar echoes of loud shots outlasting quieter later shots
+        while (m_impulseCount > 0 &&
+                m_impulseBlast[m_impulseHead] < SILENT_LEVEL &&
+                m_impulseStart[m_impulseHead] <= m_position) {
+            m_impulseHead = (m_impulseHead + 1) % MAX_IMPULSES;
+            m_impulseCount--;
+        }
+
+        m_position++;
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (int)value;
+    }
+
+    private void fire() {
+        if (m_shotCount == m_shots.length) {
+            final long shots[] = new long[m_shots.length * 2];
+            System.arraycopy(m_shots, 0, shots, 0, m_shotCount);
+            m_shots = shots;
+        }
+        m_shots[m_shotCount++] = m_position;
+
+        final float level = m_shotLevel * (0.5f + 0.5f * m_random.nextFloat());
+        addImpulse(m_position, level);
+        if (m_echoGain > 0) {
+            addImpulse(m_position + m_echoDelaySamples, level * m_echoGain);
+        }
+
+        final long split = m_splitSamples + (long)(m_random.nextGaussian() * m_splitDeviationSamples);
+        m_nextShot = m_position + Math.max(m_splitSamples / 2, split);
+    }
+
+    private void addImpulse(long start, float level) {
+        if (m_impulseCount == MAX_IMPULSES) {
+            m_impulseHead = (m_impulseHead + 1) % MAX_IMPULSES;
+            m_impulseCount--;
+        }
+        final int impulse = (m_impulseHead + m_impulseCount) % MAX_IMPULSES;
+        m_impulseStart[impulse] = start;
+        m_impulseBlast[impulse] = level;
+        m_impulseCrack[impulse] = level;
+        m_impulseFiltered[impulse] = 0;
+        m_impulseCount++;
+    }
+}
@@ -0,0 +1,92 @@
+/* This file is part of Open Shot Timer.
+ * Copyright (C) 2009-10 Ariel Weisberg
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.ost;
+
+/**
+ * Bulk scanning of decoded 16-bit samples for magnitudes above a threshold.
+ * <p>
+ * Almost every sample the detectors see is below threshold so the scan tests a whole block of
+ * samples at a time without branching and only looks at individual samples once a block is
+ * known to contain a hit. The block loop is simple enough for HotSpot to turn into SIMD
+ * instructions and on Dalvik it still saves a compare and branch per sample.
+ * <p>
+ * Magnitudes are computed in int so -32768 is 32768 and not the -32768 you get from
+ * <tt>(short)Math.abs(sample)</tt>.
+ */
+public final class ThresholdScanner {
+
+    /**
+     * Number of samples tested per block. Should stay a power of two.
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    private ThresholdScanner() {}
+
+    /**
+     * Magnitude of a sample without the short overflow at -32768.
+     */
+    public static int magnitude(int sample) {
+        final int sign = sample >> 31;
+        return (sample ^ sign) - sign;
+    }
+
+    /**
+     * Find the first sample in <tt>samples[from, to)</tt> whose magnitude is greater than <tt>threshold</tt>.
+     * @param threshold Magnitude threshold, 0 - 32767
+     * @return Index of the sample or -1 if there is none
+     */
+    public static int indexOfAbove(final short samples[], final int from, final int to, final int threshold) {
+        int ii = from;
+        final int blockEnd = to - ((to - from) & (BLOCK_SIZE - 1));
+        while (ii < blockEnd) {
+            /*
+             * threshold - magnitude is negative iff the sample is above threshold,
+             * so the or of a block is negative iff any sample in it is.
+             */
+            int hits = 0;
+            for (int jj = ii; jj < ii + BLOCK_SIZE; jj++) {
+                hits |= threshold - magnitude(samples[jj]);
+            }
+            if (hits < 0) {
+                return scalarIndexOfAbove(samples, ii, ii + BLOCK_SIZE, threshold);
+            }
+            ii += BLOCK_SIZE;
+        }
+        return scalarIndexOfAbove(samples, ii, to, threshold);
+    }
+
+    /**
+     * Largest magnitude in <tt>samples[from, to)</tt>, 0 if the range is empty
+     */
+    public static int peak(final short samples[], final int from, final int to) {
+        int peak = 0;
+        for (int ii = from; ii < to; ii++) {
+            peak = Math.max(peak, magnitude(samples[ii]));
+        }
+        return peak;
+    }
+
+    private static int scalarIndexOfAbove(final short samples[], final int from, final int to, final int threshold) {
+        for (int ii = from; ii < to; ii++) {
+            if (magnitude(samples[ii]) > threshold) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,115 @@
+package org.ost;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures AmplitudeSpikeShotDetector throughput in samples per second over the test corpus,
+ * fed from heap buffers, a direct buffer, and slices of the memory mapped files.
+ * Not a unit test, run it by hand from the project directory:
+ * <pre>java -cp &lt;classes&gt; org.ost.AmplitudeSpikeShotDetectorBenchmark [bufferSize] [seconds]</pre>
+ */
+public class AmplitudeSpikeShotDetectorBenchmark {
+
+    private static final String samples[] = new String[] {
+            "test/samples/9_shots_bigendian.raw",
+            "test/samples/9_shots_bigendian_2.raw",
+            "test/samples/9_shots_bigendian_soft.raw",
+            "test/samples/android_rec.raw",
+            "test/samples/android_rec_edited.raw" };
+
+    public static void main(String args[]) throws IOException {
+        final int bufferSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final byte corpus[][] = new byte[samples.length][];
+        long corpusSamples = 0;
+        for (int ii = 0; ii < samples.length; ii++) {
+            corpus[ii] = readFully(new File(samples[ii]));
+            corpusSamples += corpus[ii].length / 2;
+        }
+
+        final MappedReplaySource mapped[] = new MappedReplaySource[samples.length];
+        for (int ii = 0; ii < samples.length; ii++) {
+            mapped[ii] = new MappedReplaySource(
+                    new File(samples[ii]), bufferSize, MappedReplaySource.DEFAULT_WINDOW_BYTES);
+        }
+        
+        final String sources[] = new String[] { "heap  ", "direct", "mapped" };
+        final ShotEventBuffer events = new ShotEventBuffer();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bufferSize);
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean warmup = pass == 0;
+            for (int source = 0; source < sources.length; source++) {
+                final long end = System.nanoTime() + (warmup ? 2 : seconds) * 1000000000L;
+                long processed = 0;
+                long shots = 0;
+                final long start = System.nanoTime();
+                while (System.nanoTime() < end) {
+                    if (source == 2) {
+                        for (MappedReplaySource recording : mapped) {
+                            recording.rewind();
+                            ByteBuffer b;
+                            final AmplitudeSpikeShotDetector sd =
+                                new AmplitudeSpikeShotDetector(44100, 16, 5);
+                            while ((b = recording.next()) != null) {
+                                events.clear();
+                                shots += sd.processAudio(b, events);
+                            }
+                        }
+                        processed += corpusSamples;
+                        continue;
+                    }
+                    for (byte recording[] : corpus) {
+                        final AmplitudeSpikeShotDetector sd =
+                            new AmplitudeSpikeShotDetector(44100, 16, 5);
+                        for (int offset = 0; offset < recording.length; offset += bufferSize) {
+                            final int length = Math.min(bufferSize, recording.length - offset);
+                            final ByteBuffer b;
+                            if (source == 0) {
+                                b = ByteBuffer.wrap(recording, offset, length);
+                            } else {
+                                direct.clear();
+                                direct.put(recording, offset, length);
+                                direct.flip();
+                                b = direct;
+                            }
+                            events.clear();
+                            shots += sd.processAudio(b, events);
+                        }
+                    }
+                    processed += corpusSamples;
+                }
+                final double elapsed = (System.nanoTime() - start) / 1000000000.0;
+                if (!warmup) {
+                    System.out.printf("%s buffer %d bytes: %.1f million samples/sec (%d shots)%n",
+                            sources[source], bufferSize, processed / elapsed / 1000000.0, shots);
+                }
+            }
+        }
+        
+        for (MappedReplaySource recording : mapped) {
+            recording.close();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final byte bytes[] = new byte[(int)file.length()];
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = fis.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,94 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+public class AudioRingTest {
+
+    @org.junit.Test
+    public void testHandsOverInOrder() throws Exception {
+        final AudioRing ring = new AudioRing(4, 256);
+        final int buffers = 100000;
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                int value = 0;
+                for (int ii = 0; ii < buffers; ii++) {
+                    // Wait for room rather than overflow, the consumer is checking every value arrives
+                    while (ring.size() == ring.getSlotCount()) {
+                        Thread.yield();
+                    }
+                    final ByteBuffer b = ring.claim();
+                    final int length = 4 * (1 + ii % 64);
+                    for (int jj = 0; jj < length; jj += 4) {
+                        b.putInt(value++);
+                    }
+                    ring.publish(length);
+                }
+            }
+        };
+        producer.start();
+
+        int expected = 0;
+        for (int ii = 0; ii < buffers; ii++) {
+            final ByteBuffer b = ring.take(10000000000L);
+            assertNotNull(b);
+            assertEquals(0, ring.getLostBefore());
+            assertEquals(4 * (1 + ii % 64), b.remaining());
+            while (b.hasRemaining()) {
+                assertEquals(expected++, b.getInt());
+            }
+            ring.release();
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getOverflows());
+    }
+
+    @org.junit.Test
+    public void testOverflowIsCounted() {
+        final AudioRing ring = new AudioRing(2, 64);
+        for (int ii = 0; ii < 5; ii++) {
+            final ByteBuffer b = ring.claim();
+            b.put((byte)ii);
+            ring.publish(ii == 3 ? 32 : 64);
+        }
+        // The ring held the first two, the other three were read into the spare and dropped
+        assertEquals(2, ring.size());
+        assertEquals(3, ring.getOverflows());
+        assertEquals(160, ring.getLostBytes());
+
+        ByteBuffer b = ring.take(0);
+        assertEquals(0, b.get(0));
+        assertEquals(0, ring.getLostBefore());
+        ring.release();
+        b = ring.claim();
+        b.put((byte)5);
+        ring.publish(64);
+        ring.take(0);
+        ring.release();
+
+        // The next buffer published after the overflow carries the count of what was lost before it
+        b = ring.take(0);
+        assertEquals(5, b.get(0));
+        assertEquals(160, ring.getLostBefore());
+        ring.release();
+        assertNull(ring.take(1000000));
+
+        // Unless the producer restarts, as for a new recording
+        for (int ii = 0; ii < 3; ii++) {
+            ring.claim();
+            ring.publish(64);
+        }
+        ring.restart();
+        ring.take(0);
+        ring.release();
+        ring.take(0);
+        ring.release();
+        ring.claim();
+        ring.publish(64);
+        ring.take(0);
+        assertEquals(0, ring.getLostBefore());
+    }
+}
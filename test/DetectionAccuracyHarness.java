@@ -0,0 +1,198 @@
+package org.ost;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Scores the detectors against the labelled recordings in test/samples. Each recording is replayed in buffers the
+ * size a capture thread would get and the detections are matched to the labels within 20 ms. The report gives
+ * precision, recall, the timestamp error of the matched shots and how long after each true shot it was reported.
+ * <p>
+ * Latency is measured as if the audio was being captured live. A buffer arrives when its last sample has been
+ * recorded, so a shot's latency is the audio from the true shot to the end of the buffer it was reported in, plus
+ * the wall clock time spent processing that buffer. Given a speed the replay is paced at that multiple of real time
+ * and latency is measured on the wall clock instead. Not a unit test, run it by hand from the project directory:
+ * <pre>java -cp &lt;classes&gt; org.ost.DetectionAccuracyHarness [bufferMillis] [speed] [detector ...]</pre>
+ */
+public class DetectionAccuracyHarness {
+
+    private static final String SAMPLES[] = new String[] {
+            "test/samples/9_shots_bigendian.raw",
+            "test/samples/9_shots_bigendian_2.raw",
+            "test/samples/9_shots_bigendian_soft.raw",
+            "test/samples/android_rec.raw",
+            "test/samples/android_rec_edited.raw" };
+
+    private static final String DETECTORS[] = new String[] {
+            "amplitude", "verified", "adaptive", "envelope", "spectral" };
+
+    private static final int TOLERANCE_MILLIS = 20;
+
+    /**
+     * Results for one detector over one or more recordings
+     */
+    private static final class Score {
+        int m_truePositives = 0;
+        int m_falsePositives = 0;
+        int m_falseNegatives = 0;
+        long m_errorMicros[] = new long[0];
+        long m_latencyMicros[] = new long[0];
+
+        void add(Score other) {
+            m_truePositives += other.m_truePositives;
+            m_falsePositives += other.m_falsePositives;
+            m_falseNegatives += other.m_falseNegatives;
+            m_errorMicros = concat(m_errorMicros, other.m_errorMicros);
+            m_latencyMicros = concat(m_latencyMicros, other.m_latencyMicros);
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        final int bufferMillis = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        final String detectors[];
+        if (args.length > 2) {
+            detectors = new String[args.length - 2];
+            System.arraycopy(args, 2, detectors, 0, detectors.length);
+        } else {
+            detectors = DETECTORS;
+        }
+
+        System.out.printf("%-10s %-28s %4s %4s %4s %6s %6s  %-26s %s%n",
+                "detector", "recording", "tp", "fp", "fn", "prec", "recall",
+                "|error| ms p50/p95/max", "latency ms p50/p95/p99/max");
+        for (String detector : detectors) {
+            final Score total = new Score();
+            for (String sample : SAMPLES) {
+                final File recording = new File(sample);
+                final Score score = score(detector, recording, bufferMillis, speed);
+                print(detector, recording.getName(), score);
+                total.add(score);
+            }
+            print(detector, "all", total);
+            System.out.println();
+        }
+    }
+
+    private static Score score(String name, File recording, int bufferMillis, double speed)
+            throws IOException, InterruptedException {
+        final ShotLabels labels = ShotLabels.load(recording);
+        final ShotDetector detector =
+            ShotDetectorCli.createDetector(name, labels.m_sampleRate, PcmFormat.PCM_16BIT_MONO, 5);
+        final SampleClock clock = detector.getClock();
+        final int frameSize = detector.getFormat().m_bytesPerFrame;
+        final int bufferBytes = (int)clock.millisToSamples(bufferMillis) * frameSize;
+        final MappedReplaySource source = new MappedReplaySource(recording, bufferBytes, bufferBytes * 1024);
+
+        final ShotEventBuffer events = new ShotEventBuffer();
+        long reportedAt[] = new long[16];
+        final long startNanos = System.nanoTime();
+        try {
+            ByteBuffer buffer;
+            while ((buffer = source.next()) != null) {
+                final long endMicros = clock.toMicros(source.getPosition() / frameSize);
+                if (speed > 0) {
+                    final long aheadNanos = startNanos + (long)(endMicros * 1000 / speed) - System.nanoTime();
+                    if (aheadNanos > 0) {
+                        Thread.sleep(aheadNanos / 1000000, (int)(aheadNanos % 1000000));
+                    }
+                }
+                final long processNanos = System.nanoTime();
+                final int before = events.size();
+                detector.processAudio(buffer, events);
+                final long doneNanos = System.nanoTime();
+                for (int ii = before; ii < events.size(); ii++) {
+                    if (ii == reportedAt.length) {
+                        reportedAt = resize(reportedAt, ii * 2);
+                    }
+                    // Audio time at which the shot was reported
+                    reportedAt[ii] = speed > 0 ?
+                            (long)((doneNanos - startNanos) / 1000 * speed) :
+                            endMicros + (doneNanos - processNanos) / 1000;
+                }
+            }
+            // Shots still waiting on audio after the end are reported when the recording ends
+            final int before = events.size();
+            detector.flush(events);
+            final long doneNanos = System.nanoTime();
+            for (int ii = before; ii < events.size(); ii++) {
+                if (ii == reportedAt.length) {
+                    reportedAt = resize(reportedAt, ii * 2);
+                }
+                reportedAt[ii] = speed > 0 ?
+                        (long)((doneNanos - startNanos) / 1000 * speed) :
+                        clock.toMicros(source.getPosition() / frameSize);
+            }
+        } finally {
+            source.close();
+        }
+
+        final Score score = new Score();
+        final int matches[] = labels.match(events, clock.millisToSamples(TOLERANCE_MILLIS));
+        score.m_errorMicros = new long[events.size()];
+        score.m_latencyMicros = new long[events.size()];
+        for (int ii = 0; ii < matches.length; ii++) {
+            if (matches[ii] == -1) {
+                score.m_falsePositives++;
+                continue;
+            }
+            final long trueMicros = clock.toMicros(labels.m_samples[matches[ii]]);
+            score.m_errorMicros[score.m_truePositives] = Math.abs(events.getTimeMicros(ii) - trueMicros);
+            score.m_latencyMicros[score.m_truePositives] = reportedAt[ii] - trueMicros;
+            score.m_truePositives++;
+        }
+        score.m_errorMicros = resize(score.m_errorMicros, score.m_truePositives);
+        score.m_latencyMicros = resize(score.m_latencyMicros, score.m_truePositives);
+        score.m_falseNegatives = labels.m_samples.length - score.m_truePositives;
+        return score;
+    }
+
+    private static void print(String detector, String recording, Score score) {
+        final int detected = score.m_truePositives + score.m_falsePositives;
+        final int labelled = score.m_truePositives + score.m_falseNegatives;
+        System.out.printf("%-10s %-28s %4d %4d %4d %6.3f %6.3f  %-26s %s%n",
+                detector,
+                recording,
+                score.m_truePositives,
+                score.m_falsePositives,
+                score.m_falseNegatives,
+                detected == 0 ? 1.0 : score.m_truePositives / (double)detected,
+                labelled == 0 ? 1.0 : score.m_truePositives / (double)labelled,
+                percentiles(score.m_errorMicros, 50, 95, 100),
+                percentiles(score.m_latencyMicros, 50, 95, 99, 100));
+    }
+
+    /**
+     * Nearest rank percentiles in milliseconds separated by slashes
+     */
+    private static String percentiles(long micros[], int... percents) {
+        if (micros.length == 0) {
+            return "-";
+        }
+        final long sorted[] = micros.clone();
+        Arrays.sort(sorted);
+        final StringBuilder sb = new StringBuilder();
+        for (int percent : percents) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            final int rank = Math.max(1, (int)Math.ceil(percent / 100.0 * sorted.length));
+            sb.append(String.format("%.1f", sorted[rank - 1] / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    private static long[] concat(long a[], long b[]) {
+        final long result[] = resize(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static long[] resize(long values[], int length) {
+        final long resized[] = new long[length];
+        System.arraycopy(values, 0, resized, 0, Math.min(length, values.length));
+        return resized;
+    }
+}
@@ -0,0 +1,57 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class FixedPointFormatterTest {
+
+    private static String seconds(long micros) {
+        final char out[] = new char[FixedPointFormatter.MAX_LENGTH + 4];
+        final int length = FixedPointFormatter.formatSeconds(micros, out, 2);
+        return new String(out, 2, length);
+    }
+
+    private static String integer(long value) {
+        final char out[] = new char[FixedPointFormatter.MAX_LENGTH];
+        return new String(out, 0, FixedPointFormatter.formatInteger(value, out, 0));
+    }
+
+    @org.junit.Test
+    public void testFormatSeconds() {
+        assertEquals("0.00", seconds(0));
+        assertEquals("0.00", seconds(4999));
+        assertEquals("0.01", seconds(5000));
+        assertEquals("1.23", seconds(1234567));
+        assertEquals("0.99", seconds(994999));
+        assertEquals("1.00", seconds(995000));
+        assertEquals("600.00", seconds(600000000));
+        assertEquals("-0.26", seconds(-260680));
+        assertEquals("-0.01", seconds(-5000));
+        assertEquals("-0.00", seconds(-4999));
+        assertEquals("9223372036854.78", seconds(Long.MAX_VALUE));
+        assertEquals("-9223372036854.78", seconds(Long.MIN_VALUE));
+
+        // Same as printf on the exact decimal value
+        final Random random = new Random(17);
+        for (int ii = 0; ii < 100000; ii++) {
+            final long micros = random.nextInt(Integer.MAX_VALUE);
+            final String expected =
+                new BigDecimal(micros).movePointLeft(6).setScale(2, RoundingMode.HALF_UP).toPlainString();
+            assertEquals(expected, seconds(micros));
+        }
+    }
+
+    @org.junit.Test
+    public void testFormatInteger() {
+        assertEquals("0", integer(0));
+        assertEquals("7", integer(7));
+        assertEquals("10", integer(10));
+        assertEquals("123456789", integer(123456789));
+        assertEquals("-42", integer(-42));
+        assertEquals(Long.toString(Long.MAX_VALUE), integer(Long.MAX_VALUE));
+        assertEquals(Long.toString(Long.MIN_VALUE), integer(Long.MIN_VALUE));
+    }
+}
@@ -0,0 +1,97 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+public class LatencyCalibratorTest {
+
+    private static final File BUZZ = new File("res/raw/buzz.wav");
+
+    /**
+     * Two seconds of background noise with the buzzer played into it at <tt>onset</tt>, quieter and through a low
+     * pass like a phone speaker heard by its own microphone
+     */
+    private static short[] capture(int sampleRate, int onset, long seed) throws Exception {
+        final Random random = new Random(seed);
+        final short captured[] = new short[sampleRate * 2];
+        final short buzz[] = readBuzz(sampleRate);
+        final double lowpass = 1.0 - Math.exp(-2.0 * Math.PI * 3000.0 / sampleRate);
+        double filtered = 0;
+        for (int ii = 0; ii < captured.length; ii++) {
+            final int index = ii - onset;
+            final double sound = index >= 0 && index < buzz.length ? buzz[index] * 0.2 : 0;
+            filtered += lowpass * (sound - filtered);
+            captured[ii] = (short)(filtered + random.nextGaussian() * 300);
+        }
+        return captured;
+    }
+
+    /**
+     * The buzzer resampled to the capture rate by dropping or repeating samples
+     */
+    private static short[] readBuzz(int sampleRate) throws Exception {
+        final InputStream in = new FileInputStream(BUZZ);
+        try {
+            in.skip(44);
+            final byte bytes[] = new byte[(int)BUZZ.length() - 44];
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+            final short buzz[] = new short[(int)((long)bytes.length / 2 * sampleRate / 44100)];
+            for (int ii = 0; ii < buzz.length; ii++) {
+                final int index = (int)((long)ii * 44100 / sampleRate);
+                buzz[ii] = (short)((bytes[index * 2] & 0xff) | (bytes[index * 2 + 1] << 8));
+            }
+            return buzz;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static LatencyCalibrator calibrator(int sampleRate) throws Exception {
+        final InputStream in = new FileInputStream(BUZZ);
+        try {
+            return LatencyCalibrator.fromWav(in, sampleRate);
+        } finally {
+            in.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testLocatesTheOnset() throws Exception {
+        final LatencyCalibrator calibrator = calibrator(44100);
+        for (int ii = 0; ii < 10; ii++) {
+            final int onset = 13000 + ii * 1111;
+            final short captured[] = capture(44100, onset, ii);
+            final int found = calibrator.locate(captured, captured.length, 8820, 8820 + 22050);
+            // Within a millisecond, half a period of the buzzer's tone
+            assertTrue("Found " + found + " for " + onset, Math.abs(found - onset) <= 44);
+            assertTrue(calibrator.getScore() > LatencyCalibrator.MIN_SCORE);
+        }
+    }
+
+    @org.junit.Test
+    public void testResamples() throws Exception {
+        final LatencyCalibrator calibrator = calibrator(8000);
+        final short captured[] = capture(8000, 3456, 7);
+        final int found = calibrator.locate(captured, captured.length, 1600, 1600 + 4000);
+        assertTrue("Found " + found, Math.abs(found - 3456) <= 8);
+    }
+
+    @org.junit.Test
+    public void testNothingToFind() throws Exception {
+        final LatencyCalibrator calibrator = calibrator(44100);
+        final short captured[] = capture(44100, 100000, 3);
+        assertEquals(-1, calibrator.locate(captured, captured.length, 0, captured.length));
+        assertTrue(calibrator.getScore() < LatencyCalibrator.MIN_SCORE);
+
+        // Or only the part of it after the onset
+        final short late[] = capture(44100, 2000, 3);
+        assertEquals(-1, calibrator.locate(late, late.length, 8820, 30000));
+    }
+}
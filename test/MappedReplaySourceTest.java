@@ -0,0 +1,64 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MappedReplaySourceTest {
+
+    private File testFiles[] = new File[] {
+            new File("test/samples/9_shots_bigendian.raw"),
+            new File("test/samples/9_shots_bigendian_2.raw"),
+            new File("test/samples/android_rec_edited.raw") };
+    
+    private static ShotEventBuffer detect(File file) throws IOException {
+        AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+        ShotEventBuffer events = new ShotEventBuffer();
+        byte readBytes[] = new byte[1024];
+        int read = 0;
+        try {
+            while((read = bis.read(readBytes)) != -1) {
+                sd.processAudio(ByteBuffer.wrap(readBytes, 0, read), events);
+            }
+        } finally {
+            bis.close();
+        }
+        return events;
+    }
+    
+    @org.junit.Test
+    public void testMappedReplay() throws Exception {
+        for (File file : testFiles) {
+            ShotEventBuffer expected = detect(file);
+            // Small windows so the file is remapped many times, and slices that don't divide them evenly
+            MappedReplaySource source = new MappedReplaySource(file, 1000, 10240);
+            try {
+                AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+                ShotEventBuffer events = new ShotEventBuffer();
+                assertEquals(file.length(), source.replay(sd, events, 0));
+                assertNull(source.next());
+                assertEquals(expected.size(), events.size());
+                for (int ii = 0; ii < expected.size(); ii++) {
+                    assertEquals(expected.getSample(ii), events.getSample(ii));
+                }
+            } finally {
+                source.close();
+            }
+        }
+        
+        // 4.7 seconds of audio at 20 times real time
+        MappedReplaySource source = new MappedReplaySource(testFiles[0]);
+        try {
+            long start = System.nanoTime();
+            source.replay(new EnvelopeShotDetector(44100, PcmFormat.PCM_16BIT_MONO), new ShotEventBuffer(), 20);
+            assertTrue(System.nanoTime() - start >= 230000000L);
+        } finally {
+            source.close();
+        }
+    }
+}
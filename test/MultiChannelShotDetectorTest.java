@@ -0,0 +1,144 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MultiChannelShotDetectorTest {
+
+    private ExecutorService executor;
+
+    @org.junit.Before
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @org.junit.After
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    private static short[] readSamples(String path) throws IOException {
+        File file = new File(path);
+        byte bytes[] = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += fis.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            fis.close();
+        }
+        short samples[] = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    /**
+     * Interleave the channels into little endian 16-bit audio, padding short channels with silence
+     */
+    private static byte[] interleave(short channels[][]) {
+        int frames = 0;
+        for (short channel[] : channels) {
+            frames = Math.max(frames, channel.length);
+        }
+        ByteBuffer b = ByteBuffer.allocate(frames * channels.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int ii = 0; ii < frames; ii++) {
+            for (short channel[] : channels) {
+                b.putShort(ii < channel.length ? channel[ii] : 0);
+            }
+        }
+        return b.array();
+    }
+
+    private static short[] delay(short samples[], int delay) {
+        short delayed[] = new short[samples.length];
+        System.arraycopy(samples, 0, delayed, delay, samples.length - delay);
+        return delayed;
+    }
+
+    private static ShotEventBuffer detect(byte audio[], int channels, ExecutorService executor) {
+        ShotDetector detectors[] = new ShotDetector[channels];
+        for (int ii = 0; ii < channels; ii++) {
+            detectors[ii] = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        }
+        MultiChannelShotDetector sd = new MultiChannelShotDetector(
+                44100, PcmFormat.PCM_16BIT_MONO.withChannels(channels), detectors, executor);
+        ShotEventBuffer events = new ShotEventBuffer();
+        for (int offset = 0; offset < audio.length; offset += 4096) {
+            sd.processAudio(ByteBuffer.wrap(audio, offset, Math.min(4096, audio.length - offset)), events);
+        }
+        return events;
+    }
+
+    @org.junit.Test
+    public void testCoincidentShotsAreFused() throws IOException {
+        short samples[] = readSamples("test/samples/9_shots_bigendian.raw");
+        AmplitudeSpikeShotDetector mono = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        ShotEventBuffer expected = new ShotEventBuffer();
+        mono.processSamples(samples, 0, samples.length, expected);
+        assertEquals(9, expected.size());
+
+        // The second microphone hears everything 10 milliseconds later
+        byte audio[] = interleave(new short[][] { samples, delay(samples, 441) });
+        for (ExecutorService e : new ExecutorService[] { null, executor }) {
+            ShotEventBuffer events = detect(audio, 2, e);
+            assertEquals(expected.size(), events.size());
+            for (int ii = 0; ii < expected.size(); ii++) {
+                assertEquals(expected.getSample(ii), events.getSample(ii));
+                assertEquals(expected.getSplitMicros(ii), events.getSplitMicros(ii));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testChannelsAreMerged() throws IOException {
+        short first[] = readSamples("test/samples/9_shots_bigendian.raw");
+        short second[] = readSamples("test/samples/9_shots_bigendian_2.raw");
+        byte audio[] = interleave(new short[][] { first, new short[0], second, delay(first, 200) });
+        ShotEventBuffer sequential = detect(audio, 4, null);
+        ShotEventBuffer parallel = detect(audio, 4, executor);
+        // Nine shots in the first recording, then the eight the amplitude detector finds in the second
+        assertEquals(17, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int ii = 0; ii < sequential.size(); ii++) {
+            assertEquals(ii + 1, parallel.getShotNum(ii));
+            assertEquals(sequential.getSample(ii), parallel.getSample(ii));
+            if (ii > 0) {
+                assertTrue(parallel.getSample(ii) > parallel.getSample(ii - 1));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testMixedDownSamplesGoToEveryChannel() throws IOException {
+        short samples[] = readSamples("test/samples/9_shots_bigendian.raw");
+        AmplitudeSpikeShotDetector mono = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        ShotEventBuffer expected = new ShotEventBuffer();
+        mono.processSamples(samples, 0, samples.length, expected);
+
+        for (ExecutorService e : new ExecutorService[] { null, executor }) {
+            ShotDetector detectors[] = new ShotDetector[] {
+                new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5),
+                new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5)
+            };
+            MultiChannelShotDetector sd = new MultiChannelShotDetector(
+                    44100, PcmFormat.PCM_16BIT_MONO.withChannels(2), detectors, e);
+            ShotEventBuffer events = new ShotEventBuffer();
+            for (int offset = 0; offset < samples.length; offset += 1000) {
+                sd.processSamples(samples, offset, Math.min(1000, samples.length - offset), events);
+            }
+            assertEquals(expected.size(), events.size());
+            for (int ii = 0; ii < expected.size(); ii++) {
+                assertEquals(expected.getSample(ii), events.getSample(ii));
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class OfflineAnalyzerTest {
+
+    private ExecutorService executor;
+
+    private ByteBuffer recording;
+
+    @org.junit.Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        // About 45 seconds of recordings back to back
+        String paths[] = new String[] {
+                "test/samples/android_rec_edited.raw",
+                "test/samples/9_shots_bigendian.raw",
+                "test/samples/9_shots_bigendian_2.raw",
+                "test/samples/android_rec.raw",
+                "test/samples/9_shots_bigendian.raw",
+                "test/samples/android_rec_edited.raw" };
+        int length = 0;
+        for (String path : paths) {
+            length += (int)new File(path).length();
+        }
+        byte bytes[] = new byte[length];
+        int offset = 0;
+        for (String path : paths) {
+            FileInputStream fis = new FileInputStream(path);
+            try {
+                int end = offset + (int)new File(path).length();
+                while (offset < end) {
+                    offset += fis.read(bytes, offset, end - offset);
+                }
+            } finally {
+                fis.close();
+            }
+        }
+        recording = ByteBuffer.wrap(bytes);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    private ShotEventBuffer sequential(ShotDetector sd) {
+        ShotEventBuffer events = new ShotEventBuffer();
+        ByteBuffer b = recording.duplicate();
+        while (b.hasRemaining()) {
+            ByteBuffer read = b.slice();
+            read.limit(Math.min(1024, b.remaining()));
+            sd.processAudio(read, events);
+            b.position(b.position() + read.limit());
+        }
+        return events;
+    }
+
+    private static void assertSameShots(ShotEventBuffer expected, ShotEventBuffer actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int ii = 0; ii < expected.size(); ii++) {
+            assertEquals(expected.getShotNum(ii), actual.getShotNum(ii));
+            assertEquals(expected.getSample(ii), actual.getSample(ii));
+            assertEquals(expected.getTimeMicros(ii), actual.getTimeMicros(ii));
+            assertEquals(expected.getSplitMicros(ii), actual.getSplitMicros(ii));
+        }
+    }
+
+    @org.junit.Test
+    public void testMatchesSequential() throws Exception {
+        OfflineAnalyzer.DetectorFactory amplitude = new OfflineAnalyzer.DetectorFactory() {
+            @Override
+            public ShotDetector create() {
+                return new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+            }
+        };
+        ShotEventBuffer expected = sequential(amplitude.create());
+        assertTrue(expected.size() > 60);
+        // 12 chunks, most of whose overlaps have a shot to stitch on
+        OfflineAnalyzer analyzer = new OfflineAnalyzer(amplitude, executor, 4000, 2500);
+        assertSameShots(expected, analyzer.analyze(recording));
+        assertTrue(analyzer.getResumedChunks() < 6);
+        assertEquals(0, recording.position());
+
+        OfflineAnalyzer.DetectorFactory envelope = new OfflineAnalyzer.DetectorFactory() {
+            @Override
+            public ShotDetector create() {
+                return new EnvelopeShotDetector(44100, PcmFormat.PCM_16BIT_MONO);
+            }
+        };
+        assertSameShots(
+                sequential(envelope.create()),
+                new OfflineAnalyzer(envelope, executor, 4000, 2500).analyze(recording));
+    }
+
+    @org.junit.Test
+    public void testResumesDetectorsThatCantBeStitched() throws Exception {
+        OfflineAnalyzer.DetectorFactory spectral = new OfflineAnalyzer.DetectorFactory() {
+            @Override
+            public ShotDetector create() {
+                return new SpectralShotDetector(44100, PcmFormat.PCM_16BIT_MONO);
+            }
+        };
+        OfflineAnalyzer analyzer = new OfflineAnalyzer(spectral, executor, 10000, 2500);
+        assertSameShots(sequential(spectral.create()), analyzer.analyze(recording));
+        int chunks = (recording.remaining() / 2 + 440999) / 441000;
+        assertEquals(chunks - 1, analyzer.getResumedChunks());
+    }
+}
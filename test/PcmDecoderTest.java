@@ -0,0 +1,180 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PcmDecoderTest {
+
+    private short samples[];
+
+    @org.junit.Before
+    public void readSamples() throws IOException {
+        File file = new File("test/samples/9_shots_bigendian.raw");
+        byte bytes[] = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += fis.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            fis.close();
+        }
+        samples = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+    }
+
+    private static byte[] encode(short samples[], PcmFormat format) {
+        ByteBuffer b = ByteBuffer.allocate(samples.length * format.m_bytesPerFrame).order(format.m_byteOrder);
+        for (short sample : samples) {
+            for (int channel = 0; channel < format.m_channels; channel++) {
+                // Extra channels are quieter copies, the mix down should pick the first
+                int value = channel == 0 ? sample : sample / 4;
+                switch (format.m_encoding) {
+                case PCM_8BIT:
+                    b.put((byte)((value >> 8) + 128));
+                    break;
+                case PCM_16BIT:
+                    b.putShort((short)value);
+                    break;
+                case PCM_24BIT:
+                    if (format.m_byteOrder == ByteOrder.BIG_ENDIAN) {
+                        b.put((byte)(value >> 8)).put((byte)value).put((byte)0x7f);
+                    } else {
+                        b.put((byte)0x7f).put((byte)value).put((byte)(value >> 8));
+                    }
+                    break;
+                case PCM_FLOAT:
+                    b.putFloat(value / 32768.0f);
+                    break;
+                }
+            }
+        }
+        return b.array();
+    }
+
+    private static long[] detect(byte audio[], PcmFormat format, int readSize, boolean direct) {
+        AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(44100, format, 5);
+        ShotEventBuffer events = new ShotEventBuffer();
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(readSize);
+        for (int offset = 0; offset < audio.length; offset += readSize) {
+            int length = Math.min(readSize, audio.length - offset);
+            if (direct) {
+                directBuffer.clear();
+                directBuffer.put(audio, offset, length);
+                directBuffer.flip();
+                sd.processAudio(directBuffer, events);
+            } else {
+                sd.processAudio(ByteBuffer.wrap(audio, offset, length), events);
+            }
+        }
+        long shots[] = new long[events.size()];
+        for (int ii = 0; ii < shots.length; ii++) {
+            shots[ii] = events.getSample(ii);
+        }
+        return shots;
+    }
+
+    @org.junit.Test
+    public void testFormatsDetectTheSameShots() {
+        long expected[] = detect(encode(samples, PcmFormat.PCM_16BIT_MONO), PcmFormat.PCM_16BIT_MONO, 1024, false);
+        assertEquals(9, expected.length);
+        for (PcmFormat.Encoding encoding :
+            new PcmFormat.Encoding[] { PcmFormat.Encoding.PCM_16BIT, PcmFormat.Encoding.PCM_24BIT, PcmFormat.Encoding.PCM_FLOAT }) {
+            for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+                for (int channels = 1; channels <= 2; channels++) {
+                    PcmFormat format = new PcmFormat(encoding, order, channels);
+                    byte audio[] = encode(samples, format);
+                    // 1000 doesn't divide into 3, 4 or 6 byte frames so frames get split across reads
+                    for (int readSize : new int[] { 1000, 1024, 4096 }) {
+                        assertArrayEquals(expected, detect(audio, format, readSize, false));
+                        assertArrayEquals(expected, detect(audio, format, readSize, true));
+                    }
+                }
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testDecodedValues() {
+        short values[] = new short[] { 0, 1, -1, 255, -256, 32767, -32768, 12345, -12345 };
+        for (PcmFormat.Encoding encoding : PcmFormat.Encoding.values()) {
+            for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+                PcmFormat format = new PcmFormat(encoding, order, 1);
+                PcmDecoder decoder = new PcmDecoder(format);
+                byte audio[] = encode(values, format);
+                // Feed a byte at a time to exercise the partial frame handling
+                short decoded[] = new short[values.length];
+                int count = 0;
+                for (int ii = 0; ii < audio.length; ii++) {
+                    int frames = decoder.decode(ByteBuffer.wrap(audio, ii, 1));
+                    for (int jj = 0; jj < frames; jj++) {
+                        decoded[count++] = decoder.getSamples()[jj];
+                    }
+                }
+                assertEquals(values.length, count);
+                for (int ii = 0; ii < values.length; ii++) {
+                    int expected = encoding == PcmFormat.Encoding.PCM_8BIT ? (values[ii] >> 8) << 8 : values[ii];
+                    assertEquals(format.toString(), expected, decoded[ii]);
+                }
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testSplitChannels() {
+        PcmFormat format = new PcmFormat(PcmFormat.Encoding.PCM_16BIT, ByteOrder.BIG_ENDIAN, 3);
+        PcmDecoder decoder = new PcmDecoder(format, true);
+        ByteBuffer b = ByteBuffer.allocate(300 * format.m_bytesPerFrame).order(ByteOrder.BIG_ENDIAN);
+        for (int ii = 0; ii < 300; ii++) {
+            b.putShort((short)ii).putShort((short)-ii).putShort((short)(ii * 2));
+        }
+        byte audio[] = b.array();
+        // Odd read size so frames are split across reads
+        int count = 0;
+        for (int offset = 0; offset < audio.length; offset += 100) {
+            int frames = decoder.decode(ByteBuffer.wrap(audio, offset, Math.min(100, audio.length - offset)));
+            for (int ii = 0; ii < frames; ii++) {
+                assertEquals(count, decoder.getChannelSamples(0)[ii]);
+                assertEquals(-count, decoder.getChannelSamples(1)[ii]);
+                assertEquals(count * 2, decoder.getChannelSamples(2)[ii]);
+                count++;
+            }
+        }
+        assertEquals(300, count);
+    }
+
+    @org.junit.Test
+    public void testRingOfDirectBuffers() {
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+            for (int channels = 1; channels <= 2; channels++) {
+                PcmFormat format = new PcmFormat(PcmFormat.Encoding.PCM_16BIT, order, channels);
+                PcmDecoder decoder = new PcmDecoder(format);
+                byte audio[] = encode(samples, format);
+                // As AudioRing hands out a different slot each time, direct buffers default to big endian
+                ByteBuffer slots[] = new ByteBuffer[3];
+                for (int ii = 0; ii < slots.length; ii++) {
+                    slots[ii] = ByteBuffer.allocateDirect(1000);
+                }
+                int count = 0;
+                for (int offset = 0, slot = 0; offset < audio.length; offset += 1000, slot++) {
+                    ByteBuffer b = slots[slot % slots.length];
+                    b.clear();
+                    b.put(audio, offset, Math.min(1000, audio.length - offset));
+                    b.flip();
+                    int frames = decoder.decode(b);
+                    assertEquals(0, b.remaining());
+                    for (int ii = 0; ii < frames; ii++) {
+                        assertEquals(samples[count++], decoder.getSamples()[ii]);
+                    }
+                }
+                assertEquals(samples.length, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+public class PipelineMetricsTest {
+
+    @org.junit.Test
+    public void testLogHistogram() {
+        final LogHistogram histogram = new LogHistogram();
+        final LogHistogram.Snapshot snapshot = new LogHistogram.Snapshot();
+        histogram.snapshot(snapshot);
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+
+        for (int ii = 1; ii <= 100; ii++) {
+            histogram.record(ii * 1000);
+        }
+        histogram.record(0);
+        histogram.snapshot(snapshot);
+        assertEquals(101, snapshot.getCount());
+        assertEquals(5050000, snapshot.getSum());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(0));
+        // 50,000 is in [32768, 65536)
+        assertEquals(65535, snapshot.getPercentile(50));
+        assertEquals(100000, snapshot.getPercentile(100));
+        assertEquals("{\"count\":101,\"mean\":50000,\"p50\":65535,\"p99\":100000,\"max\":100000}",
+                snapshot.toJson(new StringBuilder()).toString());
+    }
+
+    @org.junit.Test
+    public void testDetectorRecordsProcessing() {
+        final ShotDetector detector = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        final PipelineMetrics metrics = new PipelineMetrics();
+        detector.setMetrics(metrics);
+
+        final SyntheticShotSource source = new SyntheticShotSource(44100, 5);
+        final ShotEventBuffer events = new ShotEventBuffer();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4410);
+        for (int ii = 0; ii < 100; ii++) {
+            buffer.clear();
+            final int read = source.read(buffer);
+            metrics.recordRead(1000, buffer.capacity(), read);
+            buffer.flip();
+            detector.processAudio(buffer, events);
+        }
+        metrics.recordDropped(4410);
+
+        final PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.m_reads);
+        assertEquals(0, snapshot.m_shortReads);
+        assertEquals(1, snapshot.m_droppedBuffers);
+        assertEquals(4410, snapshot.m_droppedBytes);
+        assertEquals(100, snapshot.m_buffersProcessed);
+        assertEquals(220500, snapshot.m_samplesProcessed);
+        assertEquals(5000000000L, snapshot.m_audioNanos);
+        assertEquals(events.size(), snapshot.m_shots);
+        assertTrue(snapshot.m_shots > 0);
+        assertEquals(100, snapshot.m_processNanosHistogram.getCount());
+        assertTrue(snapshot.getLoad() > 0 && snapshot.getLoad() < 1);
+
+        // Stops recording when the metrics are taken away
+        detector.setMetrics(null);
+        buffer.clear();
+        source.read(buffer);
+        buffer.flip();
+        detector.processAudio(buffer, events);
+        assertEquals(100, metrics.snapshot().m_buffersProcessed);
+    }
+}
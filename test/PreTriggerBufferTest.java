@@ -0,0 +1,34 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+public class PreTriggerBufferTest {
+
+    @org.junit.Test
+    public void testPreTriggerBuffer() {
+        PreTriggerBuffer history = new PreTriggerBuffer(10);
+        short samples[] = new short[25];
+        for (int ii = 0; ii < samples.length; ii++) {
+            samples[ii] = (short)ii;
+        }
+        history.write(samples, 0, 7);
+        history.write(samples, 7, 6);
+        assertEquals(3, history.getStart());
+        assertEquals(13, history.getEnd());
+        short out[] = new short[10];
+        history.read(3, out, 0, 10);
+        for (int ii = 0; ii < 10; ii++) {
+            assertEquals(3 + ii, out[ii]);
+        }
+        // A write longer than the buffer keeps its newest samples
+        history.write(samples, 13, 12);
+        assertEquals(15, history.getStart());
+        history.read(20, out, 0, 5);
+        assertEquals(20, out[0]);
+        assertEquals(24, out[4]);
+        try {
+            history.read(14, out, 0, 2);
+            fail("Read samples that were overwritten");
+        } catch (IllegalArgumentException expected) {}
+    }
+}
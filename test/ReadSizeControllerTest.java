@@ -0,0 +1,79 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+public class ReadSizeControllerTest {
+
+    /**
+     * 10 ms of 16 bit mono at 44.1 kHz
+     */
+    private static final int TEN_MILLIS = 882;
+
+    /**
+     * Run the controller over a second of audio where processing a read costs a fixed overhead plus a cost per byte
+     * and every read blocks for as long as its audio lasts
+     */
+    private static void run(ReadSizeController controller, long overheadNanos, long nanosPerByte) {
+        for (int ii = 0; ii < 1000; ii++) {
+            final int bytes = controller.getReadBytes();
+            final long audioNanos = bytes / 2 * 1000000000L / 44100;
+            controller.recordRead(audioNanos, bytes);
+            controller.recordProcess(bytes, overheadNanos + nanosPerByte * bytes, 0);
+        }
+    }
+
+    @org.junit.Test
+    public void testGrowsToTheTarget() {
+        final ReadSizeController controller =
+            new ReadSizeController(new SampleClock(44100), 2, 221, TEN_MILLIS * 6, 221, 30);
+        assertEquals(220, controller.getReadBytes());
+        run(controller, 100000, 10);
+        // Doubled to 20 ms reads processed in about a quarter of a millisecond, 40 ms would be over
+        assertEquals(1760, controller.getReadBytes());
+        final long adjustments = controller.getAdjustments();
+        run(controller, 100000, 10);
+        assertEquals(adjustments, controller.getAdjustments());
+    }
+
+    @org.junit.Test
+    public void testShrinksToTheTarget() {
+        final ReadSizeController controller =
+            new ReadSizeController(new SampleClock(44100), 2, 220, TEN_MILLIS * 6, TEN_MILLIS * 6, 30);
+        run(controller, 100000, 10);
+        // Halved to 30 ms, which is over once processing is added, then to 15 ms
+        assertEquals(1322, controller.getReadBytes());
+    }
+
+    @org.junit.Test
+    public void testGrowsWhenProcessingFallsBehind() {
+        final ReadSizeController controller =
+            new ReadSizeController(new SampleClock(44100), 2, 220, TEN_MILLIS * 6, 220, 30);
+        // Each read costs 4 ms of overhead, 5 ms reads would be most of the CPU
+        run(controller, 4000000, 10);
+        assertTrue(controller.getReadBytes() >= 4 * 220);
+        assertTrue(controller.getReadBytes() <= TEN_MILLIS * 3);
+    }
+
+    @org.junit.Test
+    public void testLatencyOfSlowReads() {
+        final ReadSizeController controller =
+            new ReadSizeController(new SampleClock(44100), 2, 220, TEN_MILLIS * 6, TEN_MILLIS * 4, 30);
+        // Reads block for 50 ms whatever their size, the target can't be met and reading less than 25 ms is pointless
+        for (int ii = 0; ii < 1000; ii++) {
+            final int bytes = controller.getReadBytes();
+            controller.recordRead(50000000, bytes);
+            controller.recordProcess(bytes, 100000, 0);
+        }
+        assertEquals(TEN_MILLIS * 2, controller.getReadBytes());
+        assertEquals(1, controller.getAdjustments());
+    }
+
+    @org.junit.Test
+    public void testFixed() {
+        final ReadSizeController controller =
+            new ReadSizeController(new SampleClock(44100), 4, 2048, 2048, 100, 30);
+        run(controller, 100000000, 10);
+        assertEquals(2048, controller.getReadBytes());
+        assertEquals(0, controller.getAdjustments());
+    }
+}
@@ -0,0 +1,182 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class SessionRecorderTest {
+
+    private static final int RATE = 44100;
+
+    /**
+     * Audio like a string, noise with a decaying tone and the odd full scale impulse
+     */
+    private static short[] audio(int frames, int channels, long seed) {
+        final Random r = new Random(seed);
+        final short samples[] = new short[frames * channels];
+        for (int ii = 0; ii < frames; ii++) {
+            for (int jj = 0; jj < channels; jj++) {
+                double v = r.nextGaussian() * 200 + Math.sin(ii * 0.07 + jj) * 3000 * Math.exp(-(ii % 20000) / 4000.0);
+                if (ii % 15000 < 3) {
+                    v = ii % 2 == 0 ? 32767 : -32768;
+                }
+                samples[ii * channels + jj] = (short)Math.max(-32768, Math.min(32767, Math.round(v)));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Publish the audio to the ring a buffer at a time, taking and releasing each as the detector would
+     */
+    private static void publish(AudioRing ring, short samples[], int from, int frames, int channels, int bufferFrames) {
+        for (int frame = from; frame < from + frames; frame += bufferFrames) {
+            final int n = Math.min(bufferFrames, from + frames - frame);
+            final ByteBuffer b = ring.claim();
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            for (int ii = 0; ii < n * channels; ii++) {
+                b.putShort(samples[frame * channels + ii]);
+            }
+            ring.publish(n * channels * 2);
+            assertNotNull(ring.take(0));
+            ring.release();
+        }
+    }
+
+    private static Thread start(SessionRecorder recorder) {
+        final Thread thread = new Thread(recorder);
+        thread.start();
+        return thread;
+    }
+
+    private static void assertRecorded(short expected[], SessionRecording recording, long from, int frames) throws Exception {
+        final int channels = recording.getChannels();
+        final short read[] = new short[frames * channels];
+        assertEquals(frames, recording.read(from, read, 0, frames));
+        for (int ii = 0; ii < read.length; ii++) {
+            assertEquals("Sample " + (from * channels + ii), expected[(int)from * channels + ii], read[ii]);
+        }
+    }
+
+    @org.junit.Test
+    public void testRoundTrip() throws Exception {
+        for (int channels = 1; channels <= 2; channels++) {
+            final File file = File.createTempFile("string", ".osr");
+            try {
+                final int frames = 100000;
+                final short samples[] = audio(frames, channels, channels);
+                // Published faster than real time, so the ring holds the whole string for the recorder to keep up
+                final AudioRing ring = new AudioRing(128, 1000 * channels * 2);
+                final SessionRecorder recorder =
+                    new SessionRecorder(ring, new FileOutputStream(file).getChannel(), RATE, channels);
+                final Thread thread = start(recorder);
+                publish(ring, samples, 0, frames, channels, 1000);
+                recorder.shotDetected(15000);
+                recorder.shotDetected(90001);
+                recorder.finish(thread);
+                assertNull(recorder.getFailure());
+                assertEquals(0, recorder.getGapFrames());
+                assertEquals(file.length(), recorder.getBytes());
+                // Well under the raw 16 bits a sample
+                assertTrue(file.length() + " bytes", file.length() < frames * channels * 2 * 3 / 4);
+
+                final SessionRecording recording = SessionRecording.open(file);
+                try {
+                    assertEquals(RATE, recording.getSampleRate());
+                    assertEquals(channels, recording.getChannels());
+                    assertEquals(frames, recording.getFrames());
+                    assertEquals(2, recording.getShotCount());
+                    assertEquals(15000, recording.getShotFrame(0));
+                    assertEquals(90001, recording.getShotFrame(1));
+                    // Seek straight to the second shot, then read the lot across chunk boundaries
+                    assertRecorded(samples, recording, recording.getShotFrame(1) - 100, 500);
+                    assertRecorded(samples, recording, 0, frames);
+                    final short tail[] = new short[100 * channels];
+                    assertEquals(10, recording.read(frames - 10, tail, 0, 100));
+                } finally {
+                    recording.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testFallingBehindLeavesAGap() throws Exception {
+        final File file = File.createTempFile("string", ".osr");
+        try {
+            final int frames = 10000;
+            final short samples[] = audio(frames, 1, 7);
+            final AudioRing ring = new AudioRing(4, 2000);
+            final SessionRecorder recorder = new SessionRecorder(ring, new FileOutputStream(file).getChannel(), RATE, 1);
+            // The recorder isn't running yet, so capture and detection get ten buffers ahead of it
+            publish(ring, samples, 0, frames, 1, 1000);
+            final Thread thread = start(recorder);
+            recorder.finish(thread);
+            assertNull(recorder.getFailure());
+            // It skips to the oldest buffer it can safely read, three buffers from the end of the ten
+            assertEquals(7000, recorder.getGapFrames());
+
+            final SessionRecording recording = SessionRecording.open(file);
+            try {
+                assertEquals(frames, recording.getFrames());
+                final short gap[] = new short[7000];
+                assertEquals(7000, recording.read(0, gap, 0, 7000));
+                for (int ii = 0; ii < gap.length; ii++) {
+                    assertEquals(0, gap[ii]);
+                }
+                assertRecorded(samples, recording, 7000, frames - 7000);
+            } finally {
+                recording.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @org.junit.Test
+    public void testCutShort() throws Exception {
+        final File file = File.createTempFile("string", ".osr");
+        try {
+            final int frames = 30000;
+            final short samples[] = audio(frames, 1, 3);
+            final AudioRing ring = new AudioRing(64, 2000);
+            final SessionRecorder recorder = new SessionRecorder(ring, new FileOutputStream(file).getChannel(), RATE, 1);
+            final Thread thread = start(recorder);
+            recorder.shotDetected(100);
+            publish(ring, samples, 0, frames, 1, 1000);
+            recorder.finish(thread);
+
+            // Lose the index and part of the last chunk, as if the app died while recording
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            final SessionRecording whole = SessionRecording.open(file);
+            final long cut;
+            try {
+                cut = file.length() - 100 - (whole.getShotCount() * 8 + 8 * 20);
+            } finally {
+                whole.close();
+            }
+            raf.setLength(cut);
+            raf.close();
+
+            final SessionRecording recording = SessionRecording.open(file);
+            try {
+                assertEquals(1, recording.getShotCount());
+                assertEquals(100, recording.getShotFrame(0));
+                // The last chunk was lost with the index
+                assertEquals(frames - frames % SessionRecorder.CHUNK_FRAMES, recording.getFrames());
+                assertRecorded(samples, recording, 0, (int)recording.getFrames());
+            } finally {
+                recording.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
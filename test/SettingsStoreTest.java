@@ -0,0 +1,260 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import android.content.SharedPreferences;
+
+public class SettingsStoreTest {
+
+    /**
+     * Preferences in a map, counting commits
+     */
+    private static class MapPreferences implements SharedPreferences {
+        private final Map<String, Object> m_values = new HashMap<String, Object>();
+        private int m_commits = 0;
+
+        private synchronized Object get(String key, Object defaultValue) {
+            return m_values.containsKey(key) ? m_values.get(key) : defaultValue;
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<String, Object>(m_values);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return m_values.containsKey(key);
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            return (Integer)get(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            return (Long)get(key, defaultValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defaultValue) {
+            return (Float)get(key, defaultValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            return (Boolean)get(key, defaultValue);
+        }
+
+        @Override
+        public String getString(String key, String defaultValue) {
+            return (String)get(key, defaultValue);
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public Editor edit() {
+            final Map<String, Object> changes = new HashMap<String, Object>();
+            return new Editor() {
+                private Editor put(String key, Object value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putString(String key, String value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    return put(key, null);
+                }
+
+                @Override
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (MapPreferences.this) {
+                        for (Map.Entry<String, Object> e : changes.entrySet()) {
+                            if (e.getValue() == null) {
+                                m_values.remove(e.getKey());
+                            } else {
+                                m_values.put(e.getKey(), e.getValue());
+                            }
+                        }
+                        m_commits++;
+                    }
+                    return true;
+                }
+            };
+        }
+    }
+
+    @org.junit.Test
+    public void testCoalescesWrites() {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        assertEquals(100, store.get().m_buzzerVolume);
+
+        // Dragging a seek bar across its whole range
+        for (int ii = 0; ii <= 100; ii++) {
+            store.set(store.get().withBuzzerVolume(ii));
+        }
+        store.set(store.get().withRandomStart(true));
+        assertEquals(100, store.get().m_buzzerVolume);
+        store.close();
+
+        assertTrue(store.getWrites() >= 1 && store.getWrites() <= 2);
+        assertEquals(store.getWrites(), preferences.m_commits);
+        final ShotSettings saved = ShotSettings.load(preferences);
+        assertEquals(100, saved.m_buzzerVolume);
+        assertTrue(saved.m_randomStart);
+        assertEquals(ShotSettings.DEFAULTS.m_sensitivity, saved.m_sensitivity);
+    }
+
+    @org.junit.Test
+    public void testWritesAfterDelay() throws Exception {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        store.set(store.get().withSensitivity(7));
+        assertEquals(0, store.getWrites());
+        final long deadline = System.currentTimeMillis() + SettingsStore.WRITE_DELAY_MILLIS * 10;
+        while (store.getWrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, store.getWrites());
+        assertEquals(7, ShotSettings.load(preferences).m_sensitivity);
+
+        // Nothing changed since, so closing doesn't write again
+        store.close();
+        assertEquals(1, store.getWrites());
+    }
+
+    @org.junit.Test
+    public void testFlushAfterClose() {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        store.close();
+        // As when quitting closes the string and finishing the activity then pauses it
+        store.flush();
+        store.set(store.get().withSensitivity(9));
+        store.flush();
+        store.close();
+        assertEquals(9, store.get().m_sensitivity);
+        assertEquals(0, store.getWrites());
+    }
+
+    @org.junit.Test
+    public void testSavesOutputLatency() {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        assertNull(store.get().m_latencyBuild);
+        assertEquals(0, store.get().m_outputLatencyMicros);
+        // As a calibration does, without committing on its own thread
+        store.set(store.get().withLatencyBuild("build").withOutputLatencyMicros(42000));
+        assertEquals(0, preferences.m_commits);
+        store.close();
+
+        final ShotSettings saved = ShotSettings.load(preferences);
+        assertEquals("build", saved.m_latencyBuild);
+        assertEquals(42000, saved.m_outputLatencyMicros);
+    }
+
+    @org.junit.Test
+    public void testConcurrentUpdatesAreKept() throws Exception {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        // A calibration saving its latency while the user drags the volume
+        final Thread calibration = new Thread() {
+            @Override
+            public void run() {
+                for (int ii = 1; ii <= 10000; ii++) {
+                    final int micros = ii;
+                    store.update(new SettingsStore.Change() {
+                        @Override
+                        public ShotSettings apply(ShotSettings settings) {
+                            return settings.withOutputLatencyMicros(micros);
+                        }
+                    });
+                }
+            }
+        };
+        calibration.start();
+        for (int ii = 1; ii <= 10000; ii++) {
+            final int volume = ii;
+            store.update(new SettingsStore.Change() {
+                @Override
+                public ShotSettings apply(ShotSettings settings) {
+                    return settings.withBuzzerVolume(volume);
+                }
+            });
+        }
+        calibration.join();
+        store.close();
+        assertEquals(10000, store.get().m_buzzerVolume);
+        assertEquals(10000, store.get().m_outputLatencyMicros);
+        assertEquals(10000, ShotSettings.load(preferences).m_outputLatencyMicros);
+    }
+
+    @org.junit.Test
+    public void testSavesReadSize() {
+        final MapPreferences preferences = new MapPreferences();
+        final SettingsStore store = new SettingsStore(preferences, Executors.newSingleThreadScheduledExecutor());
+        assertEquals(-1, store.get().m_readSizeFrames);
+        // As the capture thread does when a string ends, without committing on its own thread
+        store.set(store.get().withReadSizeFrames(1024));
+        assertEquals(0, preferences.m_commits);
+        store.close();
+        assertEquals(1024, ShotSettings.load(preferences).m_readSizeFrames);
+    }
+
+    @org.junit.Test
+    public void testSnapshotsAreImmutable() {
+        final ShotSettings before = ShotSettings.DEFAULTS;
+        final ShotSettings after = before.withChannels(2).withBuzzerDelay(5);
+        assertEquals(1, before.m_channels);
+        assertEquals(0, before.m_buzzerDelay);
+        assertEquals(2, after.m_channels);
+        assertEquals(5, after.m_buzzerDelay);
+        assertEquals(before.m_buzzerVolume, after.m_buzzerVolume);
+        try {
+            before.withChannels(3);
+            fail("Three channels accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+public class ShotDetectorCliTest {
+
+    private static String[] lines(ByteArrayOutputStream bytes) {
+        final String text = bytes.toString().trim();
+        return text.length() == 0 ? new String[0] : text.split("\n");
+    }
+
+    @org.junit.Test
+    public void testStreamsShotsFromStdin() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        final int status = ShotDetectorCli.run(
+                new String[] { "-d", "verified", "-b", "1000", "-" },
+                new FileInputStream("test/samples/android_rec.raw"),
+                new PrintStream(out),
+                new PrintStream(err));
+        assertEquals(0, status);
+
+        // The 18 shots and a burst of the noise at the end that gets past the verifier
+        final String shots[] = lines(out);
+        assertEquals(19, shots.length);
+        for (int ii = 0; ii < shots.length; ii++) {
+            assertTrue(shots[ii], shots[ii].startsWith("{\"shot\":" + (ii + 1) + ",\"sample\":"));
+            assertTrue(shots[ii], shots[ii].endsWith("}"));
+        }
+
+        final String summary[] = lines(err);
+        assertEquals(1, summary.length);
+        assertTrue(summary[0], summary[0].startsWith("{\"frames\":889622,"));
+        assertTrue(summary[0], summary[0].contains("\"shots\":19,"));
+    }
+
+    @org.junit.Test
+    public void testReadsFilesAndFormats() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(0, ShotDetectorCli.run(
+                new String[] { "-f", "S16_LE", "test/samples/9_shots_bigendian.raw" },
+                new ByteArrayInputStream(new byte[0]),
+                new PrintStream(out),
+                new PrintStream(err)));
+        assertEquals(9, lines(out).length);
+    }
+
+    @org.junit.Test
+    public void testSummaryIgnoresLocale() throws Exception {
+        final Locale locale = Locale.getDefault();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try {
+            // Writes a decimal comma
+            Locale.setDefault(Locale.GERMANY);
+            assertEquals(0, ShotDetectorCli.run(
+                    new String[] { "test/samples/9_shots_bigendian.raw" },
+                    new ByteArrayInputStream(new byte[0]),
+                    new PrintStream(new ByteArrayOutputStream()),
+                    new PrintStream(err)));
+        } finally {
+            Locale.setDefault(locale);
+        }
+        final String summary = err.toString();
+        assertTrue(summary, summary.matches(
+                "(?s)\\{\"frames\":\\d+,\"audio_s\":\\d+\\.\\d{3},\"wall_s\":\\d+\\.\\d{3}," +
+                "\"frames_per_s\":\\d+,\"realtime\":\\d+\\.\\d,\"shots\":9,.*"));
+    }
+
+    @org.junit.Test
+    public void testLowSampleRates() throws Exception {
+        // Rates the phone's microphone may only offer, where the default bands don't fit below Nyquist
+        for (String detector : new String[] { "amplitude", "verified", "adaptive", "envelope", "spectral" }) {
+            for (String rate : new String[] { "8000", "11025" }) {
+                final ByteArrayOutputStream err = new ByteArrayOutputStream();
+                assertEquals(detector + " at " + rate + " Hz", 0, ShotDetectorCli.run(
+                        new String[] { "-d", detector, "-r", rate, "test/samples/9_shots_bigendian.raw" },
+                        new ByteArrayInputStream(new byte[0]),
+                        new PrintStream(new ByteArrayOutputStream()),
+                        new PrintStream(err)));
+                assertTrue(err.toString(), err.toString().startsWith("{\"frames\":"));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testRejectsBadArguments() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(2, ShotDetectorCli.run(
+                new String[] { "-d", "psychic" },
+                new ByteArrayInputStream(new byte[0]),
+                new PrintStream(out),
+                new PrintStream(err)));
+        assertEquals(2, ShotDetectorCli.run(
+                new String[] { "-f", "S32_LE" },
+                new ByteArrayInputStream(new byte[0]),
+                new PrintStream(out),
+                new PrintStream(err)));
+        assertEquals(0, lines(out).length);
+        assertTrue(err.toString().contains("usage:"));
+    }
+}
@@ -8,6 +8,7 @@ import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class ShotDetectorTest {
 
@@ -16,8 +17,6 @@ public class ShotDetectorTest {
             new File("test/samples/9_shots_bigendian_2.raw"),
             new File("test/samples/android_rec_edited.raw") };
     
-    private int numExpectedShots[] = new int[] { 9, 9, 17 };
-    
     private BufferedInputStream inputStreams[];
     
     @org.junit.Before
@@ -44,19 +43,495 @@ public class ShotDetectorTest {
         }
     }
     
+    /**
+     * Assert that the events are the labelled shots to within 20 milliseconds. The shots in the first second,
+     * which detectors ignore, and the known misses, given as indexes into the labels, must not be found.
+     */
+    private static void assertLabelledShots(File file, ShotEventBuffer events, int... misses) throws IOException {
+        ShotLabels labels = ShotLabels.load(file);
+        boolean found[] = new boolean[labels.m_samples.length];
+        for (int match : labels.match(events, 882)) {
+            assertTrue(file.getName() + " false positive", match != -1);
+            found[match] = true;
+        }
+        int miss = 0;
+        for (int ii = 0; ii < found.length; ii++) {
+            boolean missed = labels.m_samples[ii] < 44100;
+            if (miss < misses.length && misses[miss] == ii) {
+                missed = true;
+                miss++;
+            }
+            assertEquals(file.getName() + " shot " + (ii + 1), !missed, found[ii]);
+        }
+    }
+    
     @org.junit.Test
     public void testShotDetector() throws IOException {
+        // The fifth shot of the second file lands in the ringing of the fourth, too soon after it to count
+        int misses[][] = new int[][] { {}, { 4 }, {} };
         int inputStreamIndex = 0;
         for (BufferedInputStream bis : inputStreams) {
             AmplitudeSpikeShotDetector sd =
                 new AmplitudeSpikeShotDetector( 44100, 16, 5);
             byte readBytes[] = new byte[1024];
-            int shotEvents = 0;
+            ShotEventBuffer events = new ShotEventBuffer();
             int read = 0;
             while((read = bis.read(readBytes)) != -1) {
-                shotEvents += sd.processAudio(ByteBuffer.wrap(readBytes, 0, read)).length;
+                for (ShotEvent e : sd.processAudio(ByteBuffer.wrap(readBytes, 0, read))) {
+                    events.add(e.m_shotNum, e.m_sample, e.m_timeMicros, e.m_splitMicros);
+                }
+            }
+            assertLabelledShots(testFiles[inputStreamIndex], events, misses[inputStreamIndex]);
+            inputStreamIndex++;
+        }
+    }
+    
+    @org.junit.Test
+    public void testShotEventBufferMatchesArrays() throws IOException {
+        for (File file : testFiles) {
+            AmplitudeSpikeShotDetector arrays =
+                new AmplitudeSpikeShotDetector( 44100, 16, 5);
+            AmplitudeSpikeShotDetector sink =
+                new AmplitudeSpikeShotDetector( 44100, 16, 5);
+            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+            ShotEventBuffer events = new ShotEventBuffer(1);
+            byte readBytes[] = new byte[1024];
+            int read = 0;
+            try {
+                while((read = bis.read(readBytes)) != -1) {
+                    ShotEvent expected[] = arrays.processAudio(ByteBuffer.wrap(readBytes, 0, read));
+                    events.clear();
+                    assertEquals(expected.length, sink.processAudio(ByteBuffer.wrap(readBytes, 0, read), events));
+                    assertEquals(expected.length, events.size());
+                    for (int ii = 0; ii < expected.length; ii++) {
+                        assertEquals(expected[ii].m_shotNum, events.getShotNum(ii));
+                        assertEquals(expected[ii].m_time, events.getTime(ii));
+                        assertEquals(expected[ii].m_split, events.getSplit(ii));
+                    }
+                }
+            } finally {
+                bis.close();
             }
-            assertEquals(numExpectedShots[inputStreamIndex++], shotEvents);
         }
     }
+    
+    @org.junit.Test
+    public void testThresholdScanner() {
+        short samples[] = new short[100];
+        assertEquals(-1, ThresholdScanner.indexOfAbove(samples, 0, samples.length, 32000));
+        for (int index : new int[] { 0, 15, 16, 17, 63, 99 }) {
+            java.util.Arrays.fill(samples, (short)0);
+            samples[index] = Short.MIN_VALUE;
+            assertEquals(index, ThresholdScanner.indexOfAbove(samples, 0, samples.length, 32000));
+            assertEquals(-1, ThresholdScanner.indexOfAbove(samples, index + 1, samples.length, 32000));
+            samples[index] = 32000;
+            assertEquals(-1, ThresholdScanner.indexOfAbove(samples, 0, samples.length, 32000));
+            samples[index] = -32001;
+            assertEquals(index, ThresholdScanner.indexOfAbove(samples, 0, samples.length, 32000));
+        }
+    }
+    
+    @org.junit.Test
+    public void testSampleClock() {
+        for (int rate : new int[] { 8000, 11000, 11025, 22050, 44100, 44800, 48000, 96000, 192000 }) {
+            SampleClock clock = new SampleClock(rate);
+            for (long sample = 0; sample < rate * 3; sample++) {
+                assertEquals(sample * 1000000 / rate, clock.toMicros(sample));
+            }
+            long tenHours = rate * 36000L;
+            assertEquals(36000L * 1000000, clock.toMicros(tenHours));
+            assertEquals((tenHours + 12345) * 1000000 / rate, clock.toMicros(tenHours + 12345));
+            assertEquals(rate, clock.millisToSamples(1000));
+            assertEquals((120L * rate + 999) / 1000, clock.millisToSamples(120));
+        }
+    }
+    
+    @org.junit.Test
+    public void testDetectionIndependentOfReadSize() throws IOException {
+        for (File file : testFiles) {
+            long expected[] = null;
+            for (int readSize : new int[] { 2, 100, 1024, 4096, 65536 }) {
+                AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector( 44100, 16, 5);
+                ShotEventBuffer events = new ShotEventBuffer();
+                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+                byte readBytes[] = new byte[readSize];
+                int read = 0;
+                try {
+                    while((read = bis.read(readBytes)) != -1) {
+                        sd.processAudio(ByteBuffer.wrap(readBytes, 0, read), events);
+                    }
+                } finally {
+                    bis.close();
+                }
+                long samples[] = new long[events.size()];
+                long splits = 0;
+                for (int ii = 0; ii < events.size(); ii++) {
+                    samples[ii] = events.getSample(ii);
+                    splits += events.getSplitMicros(ii);
+                    assertEquals(splits, events.getTimeMicros(ii));
+                }
+                if (expected == null) {
+                    expected = samples;
+                } else {
+                    assertArrayEquals(expected, samples);
+                }
+            }
+        }
+    }
+    
+    @org.junit.Test
+    public void testEnvelopeShotDetector() throws IOException {
+        // Unlike the amplitude detector this finds all nine shots in the second file
+        for (File file : testFiles) {
+            EnvelopeShotDetector sd = new EnvelopeShotDetector(44100, PcmFormat.PCM_16BIT_MONO);
+            assertEquals(221, sd.getWindowLength());
+            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+            ShotEventBuffer events = new ShotEventBuffer();
+            byte readBytes[] = new byte[1024];
+            int read = 0;
+            try {
+                while((read = bis.read(readBytes)) != -1) {
+                    sd.processAudio(ByteBuffer.wrap(readBytes, 0, read), events);
+                }
+            } finally {
+                bis.close();
+            }
+            assertLabelledShots(file, events);
+            for (int ii = 1; ii < events.size(); ii++) {
+                assertTrue(events.getSplitMicros(ii) >= 120000);
+            }
+        }
+    }
+    
+    /**
+     * One second of low noise, then a .3 second spaced string of shots that
+     * peak well under the fixed threshold, like a suppressed gun
+     */
+    private static short[] quietString(int shots) {
+        java.util.Random random = new java.util.Random(42);
+        short samples[] = new short[44100 * 2 + shots * 13230];
+        for (int ii = 0; ii < samples.length; ii++) {
+            samples[ii] = (short)(random.nextInt(600) - 300);
+        }
+        for (int shot = 0; shot < shots; shot++) {
+            int start = 44100 + shot * 13230;
+            for (int ii = 0; ii < 2000; ii++) {
+                int amplitude = 12000 * (2000 - ii) / 2000;
+                samples[start + ii] = (short)(ii % 2 == 0 ? amplitude : -amplitude);
+            }
+        }
+        return samples;
+    }
+    
+    @org.junit.Test
+    public void testAdaptiveThreshold() {
+        short samples[] = quietString(10);
+        AmplitudeSpikeShotDetector fixed =
+            new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        AmplitudeSpikeShotDetector adaptive =
+            new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5, true);
+        ShotEventBuffer fixedEvents = new ShotEventBuffer();
+        ShotEventBuffer adaptiveEvents = new ShotEventBuffer();
+        for (int offset = 0; offset < samples.length; offset += 512) {
+            int length = Math.min(512, samples.length - offset);
+            fixed.processSamples(samples, offset, length, fixedEvents);
+            adaptive.processSamples(samples, offset, length, adaptiveEvents);
+        }
+        assertEquals(0, fixedEvents.size());
+        assertEquals(10, adaptiveEvents.size());
+        for (int ii = 0; ii < 10; ii++) {
+            long expected = 44100 + ii * 13230;
+            assertTrue(adaptiveEvents.getSample(ii) >= expected);
+            assertTrue(adaptiveEvents.getSample(ii) < expected + 20);
+        }
+        assertTrue(adaptive.getNoiseFloor() < 600);
+        assertTrue(adaptive.getThreshold() < AmplitudeSpikeShotDetector.DEFAULT_THRESHOLD);
+    }
+    
+    @org.junit.Test
+    public void testAdaptiveBeatsFixedOnTheLabels() throws IOException {
+        String names[] = new String[] {
+                "9_shots_bigendian", "9_shots_bigendian_2", "9_shots_bigendian_soft", "android_rec", "android_rec_edited" };
+        int fixedFound = 0, fixedFalse = 0, adaptiveFound = 0, adaptiveFalse = 0;
+        for (String name : names) {
+            File file = new File("test/samples/" + name + ".raw");
+            short samples[] = readSamples(file);
+            AmplitudeSpikeShotDetector fixed = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+            AmplitudeSpikeShotDetector adaptive =
+                new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5, true);
+            ShotEventBuffer fixedEvents = new ShotEventBuffer();
+            ShotEventBuffer adaptiveEvents = new ShotEventBuffer();
+            for (int offset = 0; offset < samples.length; offset += 882) {
+                int length = Math.min(882, samples.length - offset);
+                fixed.processSamples(samples, offset, length, fixedEvents);
+                adaptive.processSamples(samples, offset, length, adaptiveEvents);
+            }
+            fixedFound += labelled(file, fixedEvents);
+            fixedFalse += fixedEvents.size() - labelled(file, fixedEvents);
+            adaptiveFound += labelled(file, adaptiveEvents);
+            adaptiveFalse += adaptiveEvents.size() - labelled(file, adaptiveEvents);
+        }
+        assertEquals(50, fixedFound);
+        assertEquals(16, fixedFalse);
+        // Every shot outside the first second, with half the false alarms
+        assertEquals(56, adaptiveFound);
+        assertEquals(8, adaptiveFalse);
+    }
+    
+    private static long[] detectSpectral(File file, int readSize) throws IOException {
+        SpectralShotDetector sd = new SpectralShotDetector(44100, PcmFormat.PCM_16BIT_MONO);
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+        ShotEventBuffer events = new ShotEventBuffer();
+        byte readBytes[] = new byte[readSize];
+        int read = 0;
+        try {
+            while((read = bis.read(readBytes)) != -1) {
+                sd.processAudio(ByteBuffer.wrap(readBytes, 0, read), events);
+            }
+        } finally {
+            bis.close();
+        }
+        long shots[] = new long[events.size()];
+        for (int ii = 0; ii < shots.length; ii++) {
+            shots[ii] = events.getSample(ii);
+        }
+        return shots;
+    }
+    
+    @org.junit.Test
+    public void testSpectralShotDetector() throws IOException {
+        for (File file : testFiles) {
+            long shots[] = detectSpectral(file, 1024);
+            ShotEventBuffer events = new ShotEventBuffer();
+            for (int ii = 0; ii < shots.length; ii++) {
+                events.add(ii + 1, shots[ii], 0, 0);
+            }
+            assertLabelledShots(file, events);
+            // Blocks are cut on the timeline, not per read, so the read size makes no difference
+            assertArrayEquals(shots, detectSpectral(file, 1000));
+            assertArrayEquals(shots, detectSpectral(file, 8192));
+        }
+    }
+    
+    /**
+     * 4 kHz rings that clip the microphone and decay over .2 seconds, like a nearby steel plate, every .5 seconds
+     */
+    private static short[] ringingPlates() {
+        return ringingPlates(44100);
+    }
+    
+    private static short[] ringingPlates(int rate) {
+        java.util.Random random = new java.util.Random(42);
+        short samples[] = new short[rate * 4];
+        for (int ii = 0; ii < samples.length; ii++) {
+            samples[ii] = (short)(random.nextInt(600) - 300);
+        }
+        final int ring = rate / 5;
+        for (int start = rate; start + ring < samples.length; start += rate / 2) {
+            for (int ii = 0; ii < ring; ii++) {
+                double amplitude = 60000.0 * (ring - ii) / ring;
+                double value = samples[start + ii] + amplitude * Math.sin(2 * Math.PI * 4000 * ii / (double)rate);
+                samples[start + ii] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            }
+        }
+        return samples;
+    }
+    
+    @org.junit.Test
+    public void testSpectralIgnoresRinging() {
+        short samples[] = ringingPlates();
+        AmplitudeSpikeShotDetector amplitude =
+            new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        SpectralShotDetector spectral = new SpectralShotDetector(44100, PcmFormat.PCM_16BIT_MONO);
+        ShotEventBuffer amplitudeEvents = new ShotEventBuffer();
+        ShotEventBuffer spectralEvents = new ShotEventBuffer();
+        amplitude.processSamples(samples, 0, samples.length, amplitudeEvents);
+        spectral.processSamples(samples, 0, samples.length, spectralEvents);
+        assertEquals(6, amplitudeEvents.size());
+        assertEquals(0, spectralEvents.size());
+    }
+    
+    @org.junit.Test
+    public void testSpectralAtLowSampleRates() {
+        for (int rate : new int[] { 8000, 11025, 22050, 44100 }) {
+            GoertzelBank.Band reject = SpectralShotDetector.rejectBandFor(rate);
+            assertTrue(reject.m_highHz * 2 < rate);
+            new SpectralShotDetector(rate, PcmFormat.PCM_16BIT_MONO);
+        }
+        assertSame(SpectralShotDetector.DEFAULT_REJECT_BAND, SpectralShotDetector.rejectBandFor(44100));
+        
+        // The 4 kHz rings still fall in what is left of the reject band at 11025 Hz
+        short samples[] = ringingPlates(11025);
+        SpectralShotDetector spectral = new SpectralShotDetector(11025, PcmFormat.PCM_16BIT_MONO);
+        ShotEventBuffer events = new ShotEventBuffer();
+        spectral.processSamples(samples, 0, samples.length, events);
+        assertEquals(0, events.size());
+    }
+    
+    @org.junit.Test
+    public void testVerifierAtLowSampleRates() {
+        for (int rate : new int[] { 8000, 11025 }) {
+            AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(
+                    rate, PcmFormat.PCM_16BIT_MONO, 5, false, new ImpulseShotVerifier(rate));
+            SyntheticShotSource source = new SyntheticShotSource(rate, 2010);
+            ShotEventBuffer events = new ShotEventBuffer();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            while (source.getPosition() < rate * 60L) {
+                buffer.clear();
+                source.read(buffer);
+                buffer.flip();
+                sd.processAudio(buffer, events);
+            }
+            sd.flush(events);
+
+            // Every event is a different shot, and no more than one shot in a hundred is lost with the crack
+            // above Nyquist
+            final int tolerance = rate / 40;
+            int found = 0;
+            int lastShot = -1;
+            for (int ii = 0, jj = 0; ii < events.size(); ii++) {
+                final long sample = events.getSample(ii);
+                while (jj < source.getShotCount() - 1 && source.getShotSample(jj) < sample - tolerance) {
+                    jj++;
+                }
+                assertTrue(rate + " Hz event " + ii, Math.abs(sample - source.getShotSample(jj)) <= tolerance);
+                assertTrue(rate + " Hz event " + ii, jj != lastShot);
+                lastShot = jj;
+                found++;
+            }
+            assertTrue(rate + " Hz found " + found, found * 100 >= source.getShotCount() * 99);
+        }
+    }
+    
+    private static ShotEventBuffer detectVerified(File file, int readSize, ShotVerifier verifier) throws IOException {
+        AmplitudeSpikeShotDetector sd =
+            new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5, false, verifier);
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+        ShotEventBuffer events = new ShotEventBuffer();
+        byte readBytes[] = new byte[readSize];
+        int read = 0;
+        try {
+            while((read = bis.read(readBytes)) != -1) {
+                sd.processAudio(ByteBuffer.wrap(readBytes, 0, read), events);
+            }
+            sd.flush(events);
+        } finally {
+            bis.close();
+        }
+        return events;
+    }
+    
+    /**
+     * Number of events that match a label within 20 milliseconds
+     */
+    private static int labelled(File file, ShotEventBuffer events) throws IOException {
+        int matched = 0;
+        for (int match : ShotLabels.load(file).match(events, 882)) {
+            if (match != -1) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+    
+    private static short[] readSamples(File file) throws IOException {
+        byte bytes[] = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += fis.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            fis.close();
+        }
+        short samples[] = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+    
+    @org.junit.Test
+    public void testShotVerifier() throws IOException {
+        // The unedited recording ends in loud noise the amplitude gate fires on 16 times
+        File file = new File("test/samples/android_rec.raw");
+        assertEquals(34, detectVerified(file, 1024, null).size());
+        // Every shot gets through, and one burst of the noise that is as sharp as the softer shots
+        ShotEventBuffer verified = detectVerified(file, 1024, new ImpulseShotVerifier(44100));
+        assertEquals(19, verified.size());
+        assertEquals(18, labelled(file, verified));
+        for (int readSize : new int[] { 1000, 100000 }) {
+            ShotEventBuffer other = detectVerified(file, readSize, new ImpulseShotVerifier(44100));
+            assertEquals(verified.size(), other.size());
+            for (int ii = 0; ii < verified.size(); ii++) {
+                assertEquals(verified.getSample(ii), other.getSample(ii));
+                assertEquals(ii + 1, other.getShotNum(ii));
+            }
+        }
+        
+        // Real shots all get through, and the lower threshold hears more of them
+        for (File shots : testFiles) {
+            ShotEventBuffer unverified = detectVerified(shots, 1024, null);
+            ShotEventBuffer events = detectVerified(shots, 1024, new ImpulseShotVerifier(44100));
+            assertEquals(events.size(), labelled(shots, events));
+            assertTrue(events.size() >= labelled(shots, unverified));
+        }
+        
+        // Shots from further away than the fixed threshold can hear, bar the ones in the first second
+        File soft = new File("test/samples/9_shots_bigendian_soft.raw");
+        assertEquals(0, detectVerified(soft, 1024, null).size());
+        ShotEventBuffer softEvents = detectVerified(soft, 1024, new ImpulseShotVerifier(44100));
+        assertEquals(5, softEvents.size());
+        assertEquals(5, labelled(soft, softEvents));
+        
+        short samples[] = ringingPlates();
+        AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(
+                44100, PcmFormat.PCM_16BIT_MONO, 5, false, new ImpulseShotVerifier(44100));
+        ShotEventBuffer events = new ShotEventBuffer();
+        sd.processSamples(samples, 0, samples.length, events);
+        assertEquals(0, events.size());
+    }
+    
+    @org.junit.Test
+    public void testVerifierHoldsOffAfterAPass() throws IOException {
+        // A loud 4 kHz whine that fails verification ends just before every shot
+        File file = testFiles[0];
+        short samples[] = readSamples(file);
+        long shots[] = ShotLabels.load(file).m_samples;
+        for (long shot : shots) {
+            for (int ii = 0; ii < 882; ii++) {
+                final int index = (int)shot - 1323 + ii;
+                samples[index] = (short)(samples[index] + 12000 * Math.sin(2 * Math.PI * 4000 * ii / 44100.0));
+            }
+        }
+        AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(
+                44100, PcmFormat.PCM_16BIT_MONO, 5, false, new ImpulseShotVerifier(44100));
+        ShotEventBuffer events = new ShotEventBuffer();
+        sd.processSamples(samples, 0, samples.length, events);
+        sd.flush(events);
+        assertEquals(shots.length, events.size());
+        assertEquals(shots.length, labelled(file, events));
+    }
+    
+    @org.junit.Test
+    public void testVerifierFlush() throws IOException {
+        // The audio ends 20 milliseconds into the last shot, short of the verifier's window
+        File file = testFiles[0];
+        short samples[] = readSamples(file);
+        long shots[] = ShotLabels.load(file).m_samples;
+        int length = (int)shots[shots.length - 1] + 882;
+        AmplitudeSpikeShotDetector sd = new AmplitudeSpikeShotDetector(
+                44100, PcmFormat.PCM_16BIT_MONO, 5, false, new ImpulseShotVerifier(44100));
+        ShotEventBuffer events = new ShotEventBuffer();
+        sd.processSamples(samples, 0, length, events);
+        assertEquals(shots.length - 1, events.size());
+        assertEquals(1, sd.flush(events));
+        assertEquals(shots.length, labelled(file, events));
+        assertEquals(shots.length, events.getShotNum(shots.length - 1));
+        assertEquals(0, sd.flush(events));
+        
+        // Nothing ever waits without a verifier
+        AmplitudeSpikeShotDetector unverified = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        unverified.processSamples(samples, 0, length, new ShotEventBuffer());
+        assertEquals(0, unverified.flush(new ShotEventBuffer()));
+    }
 }
@@ -0,0 +1,148 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class ShotHistoryTest {
+
+    private static final long WEEK = ShotHistory.WEEK_MILLIS;
+
+    private static final long T0 = 1262304000000L;
+
+    private static File directory() throws Exception {
+        final File dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Two strings a day for four weeks, getting faster each week. The first shot of string n of a week is
+     * 2000 ms less 100 ms a week, splits alternate 250 and 350 ms.
+     */
+    private static void shootFourWeeks(ShotHistory history) throws Exception {
+        for (int week = 0; week < 4; week++) {
+            for (int day = 0; day < 7; day++) {
+                for (int ii = 0; ii < 2; ii++) {
+                    final int splits[] = new int[] { 2000000 - week * 100000 + ii * 1000, 250000, 350000, 250000 };
+                    history.append(
+                            T0 + week * WEEK + day * 86400000L + ii * 60000, ii == 0 ? "Bill drill" : "El Prez",
+                            splits, ii == 0 ? 4 : 2);
+                }
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testQueries() throws Exception {
+        final File dir = directory();
+        try {
+            final ShotHistory history = ShotHistory.open(dir);
+            try {
+                shootFourWeeks(history);
+                assertEquals(56, history.size());
+                assertArrayEquals(new String[] { "Bill drill", "El Prez" }, history.getDrills());
+
+                assertEquals(56, history.countStrings(null, T0, T0 + 4 * WEEK));
+                assertEquals(7, history.countStrings("Bill drill", T0 + WEEK, T0 + 2 * WEEK));
+                assertEquals(0, history.countStrings("Nope", T0, T0 + 4 * WEEK));
+
+                assertEquals(1700000, history.bestFirstShotMicros(null, T0, T0 + 4 * WEEK));
+                assertEquals(1901000, history.bestFirstShotMicros("El Prez", T0 + WEEK, T0 + 2 * WEEK));
+                assertEquals(-1, history.bestFirstShotMicros(null, T0 - WEEK, T0));
+
+                final int splits[] = history.splits("Bill drill", T0, T0 + WEEK);
+                assertEquals(21, splits.length);
+                assertEquals(250000, splits[0]);
+                assertEquals(350000, splits[20]);
+                assertEquals(7, history.splits("El Prez", T0, T0 + WEEK).length);
+
+                final ShotHistory.Week weeks[] = history.weeks("Bill drill", T0 + 4 * WEEK, 5);
+                assertEquals(5, weeks.length);
+                assertEquals(0, weeks[0].m_strings);
+                assertEquals(-1, weeks[0].m_meanFirstShotMicros);
+                for (int ii = 1; ii < 5; ii++) {
+                    assertEquals(T0 + (ii - 1) * WEEK, weeks[ii].m_startMillis);
+                    assertEquals(7, weeks[ii].m_strings);
+                    assertEquals(28, weeks[ii].m_shots);
+                    assertEquals(2000000 - (ii - 1) * 100000, weeks[ii].m_bestFirstShotMicros);
+                    assertEquals(2000000 - (ii - 1) * 100000, weeks[ii].m_meanFirstShotMicros);
+                    assertEquals(283333, weeks[ii].m_meanSplitMicros);
+                }
+            } finally {
+                history.close();
+            }
+
+            final ShotHistory reopened = ShotHistory.open(dir);
+            try {
+                assertEquals(56, reopened.size());
+                assertEquals(1700000, reopened.bestFirstShotMicros("Bill drill", T0, T0 + 4 * WEEK));
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @org.junit.Test
+    public void testStringsOutOfOrderAreFiledInOrder() throws Exception {
+        final File dir = directory();
+        try {
+            final ShotHistory history = ShotHistory.open(dir);
+            try {
+                history.append(T0 + 1000, "Drill", new int[] { 1000000 }, 1);
+                // The clock was set back
+                history.append(T0, "Drill", new int[] { 900000 }, 1);
+                assertEquals(0, history.countStrings(null, T0, T0 + 1000));
+                assertEquals(900000, history.bestFirstShotMicros(null, T0 + 1000, T0 + 1001));
+            } finally {
+                history.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @org.junit.Test
+    public void testRecoversFromDyingWhileWriting() throws Exception {
+        final File dir = directory();
+        try {
+            final ShotHistory history = ShotHistory.open(dir);
+            shootFourWeeks(history);
+            history.append(T0 + 5 * WEEK, "New drill", new int[] { 1500000, 200000 }, 2);
+            // Never closed, so the last batch of index entries isn't written, and the last string is cut short
+            final File log = new File(dir, "history.log");
+            final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+            raf.setLength(raf.length() - 2);
+            raf.close();
+            assertTrue(new File(dir, "history.idx").length() <
+                    ShotHistory.FILE_HEADER_BYTES + 57 * ShotHistory.ENTRY_BYTES);
+
+            final ShotHistory reopened = ShotHistory.open(dir);
+            try {
+                assertEquals(56, reopened.size());
+                assertEquals(28, reopened.countStrings("El Prez", T0, T0 + 4 * WEEK));
+                assertEquals(1701000, reopened.bestFirstShotMicros("El Prez", T0, T0 + 4 * WEEK));
+                // Appends carry on where the last whole string ended
+                reopened.append(T0 + 5 * WEEK, "New drill", new int[] { 1500000, 200000 }, 2);
+                assertArrayEquals(new int[] { 200000 }, reopened.splits("New drill", T0, T0 + 6 * WEEK));
+            } finally {
+                reopened.close();
+            }
+            assertEquals(ShotHistory.FILE_HEADER_BYTES + 57 * ShotHistory.ENTRY_BYTES,
+                    new File(dir, "history.idx").length());
+        } finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.ost;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The true shots of a recording in test/samples, read from the .labels file next to it.
+ * <p>
+ * A labels file is text with one shot per line, given as the sample index of the leading edge of the shot, in
+ * increasing order. The leading edge is the first sample louder than three times the RMS of the 10 ms before it.
+ * Lines starting with # are comments and a <tt>rate</tt> line gives the sample rate of the recording.
+ */
+public final class ShotLabels {
+
+    public final File m_recording;
+
+    public final int m_sampleRate;
+
+    public final long m_samples[];
+
+    private ShotLabels(File recording, int sampleRate, long samples[]) {
+        m_recording = recording;
+        m_sampleRate = sampleRate;
+        m_samples = samples;
+    }
+
+    /**
+     * Labels file for a recording, foo.raw is labelled by foo.labels
+     */
+    public static File labelsFile(File recording) {
+        final String name = recording.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(recording.getParentFile(), (dot == -1 ? name : name.substring(0, dot)) + ".labels");
+    }
+
+    public static ShotLabels load(File recording) throws IOException {
+        final File file = labelsFile(recording);
+        final ArrayList<Long> samples = new ArrayList<Long>();
+        int sampleRate = 0;
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    if (line.startsWith("rate ")) {
+                        sampleRate = Integer.parseInt(line.substring(5).trim());
+                        continue;
+                    }
+                    final long sample = Long.parseLong(line);
+                    if (!samples.isEmpty() && sample <= samples.get(samples.size() - 1)) {
+                        throw new IOException(file + ":" + lineNumber + ": shots out of order");
+                    }
+                    samples.add(sample);
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": can't parse " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (sampleRate <= 0) {
+            throw new IOException(file + ": no sample rate");
+        }
+        final long array[] = new long[samples.size()];
+        for (int ii = 0; ii < array.length; ii++) {
+            array[ii] = samples.get(ii);
+        }
+        return new ShotLabels(recording, sampleRate, array);
+    }
+
+    /**
+     * Match detected shots to the labels. Each detection is matched to the nearest unmatched label within the
+     * tolerance, detections are taken in order so a late duplicate of a shot is a false positive.
+     * @return For each detection the index of the label it matched, or -1 for a false positive
+     */
+    public int[] match(ShotEventBuffer events, long toleranceSamples) {
+        final int matches[] = new int[events.size()];
+        final boolean matched[] = new boolean[m_samples.length];
+        int first = 0;
+        for (int ii = 0; ii < events.size(); ii++) {
+            final long sample = events.getSample(ii);
+            while (first < m_samples.length && m_samples[first] < sample - toleranceSamples) {
+                first++;
+            }
+            int best = -1;
+            for (int jj = first; jj < m_samples.length && m_samples[jj] <= sample + toleranceSamples; jj++) {
+                if (!matched[jj] &&
+                        (best == -1 || Math.abs(m_samples[jj] - sample) < Math.abs(m_samples[best] - sample))) {
+                    best = jj;
+                }
+            }
+            if (best != -1) {
+                matched[best] = true;
+            }
+            matches[ii] = best;
+        }
+        return matches;
+    }
+}
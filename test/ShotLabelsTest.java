@@ -0,0 +1,79 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ShotLabelsTest {
+
+    private static final String SAMPLES[] = new String[] {
+            "test/samples/9_shots_bigendian.raw",
+            "test/samples/9_shots_bigendian_2.raw",
+            "test/samples/9_shots_bigendian_soft.raw",
+            "test/samples/android_rec.raw",
+            "test/samples/android_rec_edited.raw" };
+
+    private static final int LABELLED_SHOTS[] = new int[] { 9, 9, 9, 18, 18 };
+
+    @org.junit.Test
+    public void testEveryRecordingIsLabelled() throws IOException {
+        for (int ii = 0; ii < SAMPLES.length; ii++) {
+            final File recording = new File(SAMPLES[ii]);
+            final ShotLabels labels = ShotLabels.load(recording);
+            assertEquals(44100, labels.m_sampleRate);
+            assertEquals(LABELLED_SHOTS[ii], labels.m_samples.length);
+            final long frames = recording.length() / 2;
+            for (long sample : labels.m_samples) {
+                assertTrue(sample >= 0 && sample < frames);
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testEditedRecordingIsACutOfTheOriginal() throws IOException {
+        final long original[] = ShotLabels.load(new File("test/samples/android_rec.raw")).m_samples;
+        final long edited[] = ShotLabels.load(new File("test/samples/android_rec_edited.raw")).m_samples;
+        assertEquals(original.length, edited.length);
+        for (int ii = 0; ii < original.length; ii++) {
+            assertEquals(original[ii] - 142358, edited[ii]);
+        }
+    }
+
+    @org.junit.Test
+    public void testMatch() throws IOException {
+        final File recording = new File("test/samples/9_shots_bigendian.raw");
+        final ShotLabels labels = ShotLabels.load(recording);
+        final ShotEventBuffer events = new ShotEventBuffer();
+        final byte bytes[] = new byte[(int)recording.length()];
+        final FileInputStream fis = new FileInputStream(recording);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += fis.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            fis.close();
+        }
+        new AmplitudeSpikeShotDetector(44100, 16, 5).processAudio(ByteBuffer.wrap(bytes), events);
+
+        // Every shot found within 2 ms of its label
+        final int matches[] = labels.match(events, 88);
+        assertEquals(9, matches.length);
+        for (int ii = 0; ii < matches.length; ii++) {
+            assertEquals(ii, matches[ii]);
+        }
+
+        // A second report of a shot is a false positive, not a match for the next label
+        final ShotEventBuffer duplicated = new ShotEventBuffer();
+        duplicated.add(1, labels.m_samples[0], 0, 0);
+        duplicated.add(2, labels.m_samples[0] + 10, 0, 0);
+        duplicated.add(3, labels.m_samples[1] - 5000, 0, 0);
+        final int duplicateMatches[] = labels.match(duplicated, 882);
+        assertEquals(0, duplicateMatches[0]);
+        assertEquals(-1, duplicateMatches[1]);
+        assertEquals(-1, duplicateMatches[2]);
+    }
+}
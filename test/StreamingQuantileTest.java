@@ -0,0 +1,22 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+public class StreamingQuantileTest {
+
+    @org.junit.Test
+    public void testStreamingQuantile() {
+        Random random = new Random(7);
+        StreamingQuantile low = new StreamingQuantile(0.2, 4, 0);
+        StreamingQuantile median = new StreamingQuantile(0.5, 4, 0);
+        for (int ii = 0; ii < 100000; ii++) {
+            int value = 1000 + random.nextInt(1000);
+            low.update(value);
+            median.update(value);
+        }
+        assertEquals(1200, low.getEstimate(), 100);
+        assertEquals(1500, median.getEstimate(), 100);
+    }
+}
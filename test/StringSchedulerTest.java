@@ -0,0 +1,107 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StringSchedulerTest {
+
+    @org.junit.Test
+    public void testFiresAtTheInstant() throws Exception {
+        final StringScheduler scheduler = new StringScheduler(Executors.newSingleThreadScheduledExecutor());
+        try {
+            for (int ii = 0; ii < 5; ii++) {
+                final long target = System.nanoTime() + 20000000L;
+                final AtomicLong fired = new AtomicLong();
+                final CountDownLatch latch = new CountDownLatch(1);
+                scheduler.scheduleAt(target, new StringScheduler.Task() {
+                    @Override
+                    public void fire(long nanos) {
+                        fired.set(nanos);
+                        latch.countDown();
+                    }
+                });
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                assertTrue(fired.get() >= target);
+            }
+            // How late it fires depends on the machine, a yield can give away a whole timeslice on one CPU
+            final LogHistogram.Snapshot jitter = new LogHistogram.Snapshot();
+            scheduler.getJitter(jitter);
+            assertEquals(5, jitter.getCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testCancelledDeadlineDoesNotRun() throws Exception {
+        final StringScheduler scheduler = new StringScheduler(Executors.newSingleThreadScheduledExecutor());
+        try {
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            final CountDownLatch kept = new CountDownLatch(1);
+            final ScheduledFuture<?> deadline = scheduler.scheduleDeadline(50, new Runnable() {
+                @Override
+                public void run() {
+                    cancelled.countDown();
+                }
+            });
+            scheduler.scheduleDeadline(100, new Runnable() {
+                @Override
+                public void run() {
+                    kept.countDown();
+                }
+            });
+            assertTrue(deadline.cancel(false));
+            assertTrue(kept.await(5, TimeUnit.SECONDS));
+            assertEquals(1, cancelled.getCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testTimeline() {
+        final CaptureTimeline timeline = new CaptureTimeline(new SampleClock(44100));
+        final long now = System.nanoTime();
+        timeline.update(44100, now);
+        assertEquals(44100, timeline.sampleAt(now));
+        assertEquals(44100 + 4410, timeline.sampleAt(now + 100000000L));
+        assertEquals(44100 - 441, timeline.sampleAt(now - 10000000L));
+        assertEquals(0, timeline.sampleAt(now - 10000000000L));
+    }
+
+    @org.junit.Test
+    public void testShotsTimedFromStart() {
+        final SyntheticShotSource source = new SyntheticShotSource(44100, 3);
+        final ShotDetector detector = new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5);
+        detector.setStartSample(ShotDetector.NOT_STARTED);
+        final ShotEventBuffer events = new ShotEventBuffer();
+        final ByteBuffer buffer = ByteBuffer.allocate(4410);
+        long start = 0;
+        for (int ii = 0; ii < 200; ii++) {
+            if (ii == 100) {
+                // Start signal five seconds in, in the middle of the string
+                start = source.getPosition();
+                detector.setStartSample(start);
+            }
+            buffer.clear();
+            source.read(buffer);
+            buffer.flip();
+            detector.processAudio(buffer, events);
+        }
+        assertTrue(events.size() > 0);
+        assertEquals(1, events.getShotNum(0));
+        assertTrue(events.getSample(0) >= start);
+        assertEquals(detector.getClock().toMicros(events.getSample(0) - start), events.getTimeMicros(0));
+        assertEquals(events.getTimeMicros(0), events.getSplitMicros(0));
+        for (int ii = 1; ii < events.size(); ii++) {
+            assertEquals(ii + 1, events.getShotNum(ii));
+            assertEquals(events.getTimeMicros(ii) - events.getTimeMicros(ii - 1), events.getSplitMicros(ii));
+        }
+    }
+}
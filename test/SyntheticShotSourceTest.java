@@ -0,0 +1,84 @@
+package org.ost;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+public class SyntheticShotSourceTest {
+
+    private static byte[] generate(SyntheticShotSource source, int frames, int readSize) {
+        final byte bytes[] = new byte[frames * 2];
+        for (int offset = 0; offset < bytes.length; offset += readSize) {
+            source.read(ByteBuffer.wrap(bytes, offset, Math.min(readSize, bytes.length - offset)));
+        }
+        return bytes;
+    }
+
+    @org.junit.Test
+    public void testSameSeedSameAudio() {
+        final SyntheticShotSource a = new SyntheticShotSource(44100, 1234);
+        final SyntheticShotSource b = new SyntheticShotSource(44100, 1234);
+        final byte first[] = generate(a, 441000, 4096);
+        final byte second[] = generate(b, 441000, 1000);
+        assertArrayEquals(first, second);
+        assertEquals(441000, a.getPosition());
+        assertTrue(a.getShotCount() > 20);
+        assertEquals(a.getShotCount(), b.getShotCount());
+        for (int ii = 0; ii < a.getShotCount(); ii++) {
+            assertEquals(a.getShotSample(ii), b.getShotSample(ii));
+        }
+
+        final byte other[] = generate(new SyntheticShotSource(44100, 4321), 441000, 4096);
+        assertFalse(java.util.Arrays.equals(first, other));
+    }
+
+    @org.junit.Test
+    public void testSplits() {
+        final SyntheticShotSource source =
+            new SyntheticShotSource(44100, 99, 300, 60000, 40, 60, 0.3f, 1500, 400, 100);
+        generate(source, 44100 * 60, 4096);
+        final long first = source.getShotSample(0);
+        assertEquals(source.getClock().millisToSamples(1500), first);
+        final int splits = source.getShotCount() - 1;
+        final long mean = (source.getShotSample(splits) - first) / splits;
+        assertTrue(Math.abs(mean - 17640) < 1000);
+        for (int ii = 1; ii < source.getShotCount(); ii++) {
+            assertTrue(source.getShotSample(ii) - source.getShotSample(ii - 1) >= 8820);
+        }
+    }
+
+    /**
+     * Ten minutes of shots with echoes through the amplitude detectors, run far faster than real time.
+     * Every shot is found within 5 ms and no echo is reported.
+     */
+    @org.junit.Test
+    public void testSoak() {
+        final ShotDetector detectors[] = new ShotDetector[] {
+                new AmplitudeSpikeShotDetector(44100, PcmFormat.PCM_16BIT_MONO, 5),
+                new AmplitudeSpikeShotDetector(
+                        44100, PcmFormat.PCM_16BIT_MONO, 5, false, new ImpulseShotVerifier(44100)) };
+        for (ShotDetector detector : detectors) {
+            final SyntheticShotSource source = new SyntheticShotSource(44100, 2010);
+            final ShotEventBuffer events = new ShotEventBuffer();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            final long frames = 44100L * 600;
+            final long start = System.nanoTime();
+            while (source.getPosition() < frames) {
+                buffer.clear();
+                source.read(buffer);
+                buffer.flip();
+                detector.processAudio(buffer, events);
+            }
+            detector.flush(events);
+            final double seconds = (System.nanoTime() - start) / 1000000000.0;
+            assertTrue("Took " + seconds + " seconds", seconds < 60);
+
+            assertTrue(source.getShotCount() > 2000);
+            assertEquals(source.getShotCount(), events.size());
+            for (int ii = 0; ii < events.size(); ii++) {
+                assertEquals(ii + 1, events.getShotNum(ii));
+                assertTrue(Math.abs(events.getSample(ii) - source.getShotSample(ii)) <= 220);
+            }
+        }
+    }
+}